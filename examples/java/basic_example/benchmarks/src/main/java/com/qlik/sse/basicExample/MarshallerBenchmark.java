@@ -0,0 +1,123 @@
+package com.qlik.sse.basicexample;
+
+import com.qlik.sse.basicexample.benchmark.Workloads;
+
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the generated protobuf marshaller with the ColumnarConnector marshallers for one
+ * serialized bundle: parse the request, run a tensor function and serialize the response. It is
+ * in the plugin package to call TensorFunction.apply the way ColumnarConnector does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(MarshallerBenchmark.ROWS)
+public class MarshallerBenchmark {
+
+    static final int ROWS = 2000;
+
+    private static final MethodDescriptor.Marshaller<ServerSideExtension.BundledRows> PROTO_MARSHALLER =
+        ProtoUtils.marshaller(ServerSideExtension.BundledRows.getDefaultInstance());
+
+    /** SumOfRows only reads numbers, Cache reads and returns strings. */
+    @Param({"SumOfRows", "Cache"})
+    public String function;
+
+    /** Sends every value with both numData and strData, like Qlik does for dual parameters. */
+    @Param({"false", "true"})
+    public boolean dualInput;
+
+    @Param({"16"})
+    public int stringLength;
+
+    private byte[] request;
+    private FunctionCall stockCall;
+    private TensorFunction tensorFunction;
+    private final ColumnBatch batch = new ColumnBatch();
+    private ResultColumn result;
+    private final byte[] sink = new byte[64 * 1024];
+
+    @Setup
+    public void setUp() {
+        JavaPlugin plugin = new JavaPlugin();
+        ServerSideExtension.DataType[] columnTypes;
+        if("SumOfRows".equals(function)) {
+            tensorFunction = (TensorFunction) plugin.getFunctionRegistry().get(BasicFunctions.SUM_OF_ROWS);
+            columnTypes = new ServerSideExtension.DataType[] {ServerSideExtension.DataType.NUMERIC, ServerSideExtension.DataType.NUMERIC};
+        } else if("Cache".equals(function)) {
+            tensorFunction = (TensorFunction) plugin.getFunctionRegistry().get(BasicFunctions.CACHE);
+            columnTypes = new ServerSideExtension.DataType[] {ServerSideExtension.DataType.STRING};
+        } else {
+            throw new IllegalArgumentException("Unknown function: " + function);
+        }
+        ServerSideExtension.BundledRows bundle = Workloads.bundles(columnTypes, ROWS, ROWS, stringLength, 42).get(0);
+        if(dualInput) {
+            ServerSideExtension.BundledRows.Builder duals = ServerSideExtension.BundledRows.newBuilder();
+            for(ServerSideExtension.Row row : bundle.getRowsList()) {
+                ServerSideExtension.Row.Builder rowBuilder = ServerSideExtension.Row.newBuilder();
+                for(ServerSideExtension.Dual dual : row.getDualsList()) {
+                    double num = dual.getNumData() != 0 ? dual.getNumData() : dual.getStrData().length();
+                    String str = dual.getStrData().isEmpty() ? Double.toString(num) : dual.getStrData();
+                    rowBuilder.addDuals(ServerSideExtension.Dual.newBuilder().setNumData(num).setStrData(str));
+                }
+                duals.addRows(rowBuilder);
+            }
+            bundle = duals.build();
+        }
+        request = bundle.toByteArray();
+        stockCall = tensorFunction.newCall();
+        result = new ResultColumn(tensorFunction.getReturnType());
+    }
+
+    @Benchmark
+    public long stock() throws IOException {
+        ServerSideExtension.BundledRows bundledRows = PROTO_MARSHALLER.parse(new ByteArrayInputStream(request));
+        return drain(PROTO_MARSHALLER.stream(stockCall.onBundle(bundledRows)));
+    }
+
+    @Benchmark
+    public long columnar() throws IOException {
+        RawBundle bundle = RawBundle.MARSHALLER.parse(new ByteArrayInputStream(request));
+        bundle.decodeInto(batch);
+        result.clear();
+        tensorFunction.apply(batch, result);
+        return drain(EncodedBundle.MARSHALLER.stream(EncodedBundle.encode(result)));
+    }
+
+    /**
+     * Reads the response the way the transport does, and returns its size.
+     */
+    private long drain(InputStream stream) throws IOException {
+        long size = 0;
+        int read;
+        while((read = stream.read(sink)) > 0) {
+            size += read;
+        }
+        return size;
+    }
+}
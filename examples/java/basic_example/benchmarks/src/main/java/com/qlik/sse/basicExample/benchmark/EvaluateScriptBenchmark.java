@@ -0,0 +1,98 @@
+package com.qlik.sse.basicexample.benchmark;
+
+import com.qlik.sse.basicexample.BasicFunctions;
+import com.qlik.sse.basicexample.JavaPlugin;
+import com.qlik.sse.basicexample.ScriptBackend;
+import com.qlik.sse.basicexample.ScriptBackends;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One complete EvaluateScript call of ROWS rows through in-process gRPC per invocation. The tensor
+ * script adds up the numbers and string lengths of its arguments. The scores are per input row.
+ * The graal backend needs GraalVM JavaScript, and the jsr223 backend Nashorn, on the JDK that
+ * runs the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(EvaluateScriptBenchmark.ROWS)
+public class EvaluateScriptBenchmark {
+
+    static final int ROWS = 20000;
+
+    static final String SCRIPT = "var sum = 0; "
+        + "for (var i = 0; i < args.length; i++) { sum += args[i].getNumData() + args[i].getStrData().length; } "
+        + "sum";
+
+    @Param({"1", "4"})
+    public int columns;
+
+    /** The share of the columns that are strings, the rest are numeric. */
+    @Param({"0", "0.5"})
+    public double stringRatio;
+
+    @Param({"2000"})
+    public int bundleRows;
+
+    @Param({"16"})
+    public int stringLength;
+
+    @Param({"jsr223", "graal"})
+    public String backend;
+
+    private ServerSideExtension.ScriptRequestHeader header;
+    private List<ServerSideExtension.BundledRows> bundles;
+    private PluginHarness harness;
+
+    @Setup
+    public void setUp() throws Exception {
+        ServerSideExtension.DataType[] columnTypes = Workloads.columnTypes(columns, stringRatio);
+        ServerSideExtension.ScriptRequestHeader.Builder headerBuilder = ServerSideExtension.ScriptRequestHeader.newBuilder()
+            .setScript(SCRIPT)
+            .setFunctionType(ServerSideExtension.FunctionType.TENSOR)
+            .setReturnType(ServerSideExtension.DataType.NUMERIC);
+        for(int c = 0; c < columns; c++) {
+            headerBuilder.addParams(ServerSideExtension.Parameter.newBuilder()
+                .setName("arg" + c)
+                .setDataType(columnTypes[c]));
+        }
+        header = headerBuilder.build();
+        bundles = Workloads.bundles(columnTypes, ROWS, bundleRows, stringLength, 42);
+        ScriptBackend scriptBackend = ScriptBackends.create(backend, Runtime.getRuntime().availableProcessors(), 64);
+        if(!backend.equals(scriptBackend.getName())) {
+            throw new IllegalStateException("The " + backend + " script backend is not available.");
+        }
+        harness = new PluginHarness(new JavaPlugin(scriptBackend, BasicFunctions.DEFAULT_MAX_AGGREGATED_STRING_LENGTH));
+    }
+
+    @TearDown
+    public void tearDown() {
+        harness.close();
+    }
+
+    @Benchmark
+    public long evaluateScript() throws Exception {
+        return harness.evaluateScript(header, bundles);
+    }
+}
@@ -0,0 +1,99 @@
+package com.qlik.sse.basicexample.benchmark;
+
+import com.qlik.sse.basicexample.BasicFunctions;
+import com.qlik.sse.basicexample.JavaPlugin;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One complete ExecuteFunction call of ROWS rows through in-process gRPC per invocation. The scores
+ * are per input row: rows per microsecond for throughput and microseconds per row for average time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(ExecuteFunctionBenchmark.ROWS)
+public class ExecuteFunctionBenchmark {
+
+    static final int ROWS = 100000;
+
+    @Param({"HelloWorld", "SumOfRows", "SumOfColumn", "StringAggregation"})
+    public String function;
+
+    @Param({"2000"})
+    public int bundleRows;
+
+    @Param({"16"})
+    public int stringLength;
+
+    /** 0 runs the functions on the gRPC thread. */
+    @Param({"0", "4"})
+    public int workerThreads;
+
+    private int functionId;
+    private List<ServerSideExtension.BundledRows> bundles;
+    private ForkJoinPool workers;
+    private PluginHarness harness;
+
+    @Setup
+    public void setUp() throws Exception {
+        ServerSideExtension.DataType[] columnTypes;
+        if("HelloWorld".equals(function)) {
+            functionId = BasicFunctions.HELLO_WORLD;
+            columnTypes = new ServerSideExtension.DataType[] {ServerSideExtension.DataType.STRING};
+        } else if("SumOfRows".equals(function)) {
+            functionId = BasicFunctions.SUM_OF_ROWS;
+            columnTypes = new ServerSideExtension.DataType[] {ServerSideExtension.DataType.NUMERIC, ServerSideExtension.DataType.NUMERIC};
+        } else if("SumOfColumn".equals(function)) {
+            functionId = BasicFunctions.SUM_OF_COLUMN;
+            columnTypes = new ServerSideExtension.DataType[] {ServerSideExtension.DataType.NUMERIC};
+        } else if("StringAggregation".equals(function)) {
+            functionId = BasicFunctions.STRING_AGGREGATION;
+            columnTypes = new ServerSideExtension.DataType[] {ServerSideExtension.DataType.STRING};
+        } else {
+            throw new IllegalArgumentException("Unknown function: " + function);
+        }
+        bundles = Workloads.bundles(columnTypes, ROWS, bundleRows, stringLength, 42);
+
+        JavaPlugin plugin = new JavaPlugin();
+        if(workerThreads > 0) {
+            workers = new ForkJoinPool(workerThreads);
+            plugin.setWorkerExecutor(workers, 2 * workerThreads);
+        }
+        harness = new PluginHarness(plugin);
+    }
+
+    @TearDown
+    public void tearDown() {
+        harness.close();
+        if(workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public long executeFunction() throws Exception {
+        return harness.executeFunction(functionId, bundles);
+    }
+}
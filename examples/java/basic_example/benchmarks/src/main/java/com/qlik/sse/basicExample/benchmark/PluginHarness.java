@@ -0,0 +1,114 @@
+package com.qlik.sse.basicexample.benchmark;
+
+import com.qlik.sse.basicexample.JavaPlugin;
+import com.qlik.sse.basicexample.PluginServerInterceptor;
+
+import qlik.sse.ConnectorGrpc;
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a JavaPlugin behind an in-process gRPC server with the PluginServerInterceptor, and makes
+ * complete ExecuteFunction and EvaluateScript calls against it.
+ */
+public class PluginHarness {
+
+    private static final long CALL_TIMEOUT_SECONDS = 600;
+
+    private final Server server;
+    private final ManagedChannel channel;
+
+    public PluginHarness(JavaPlugin plugin) throws IOException {
+        String name = "benchmark-" + System.nanoTime();
+        server = InProcessServerBuilder.forName(name)
+            .addService(ServerInterceptors.intercept(plugin, new PluginServerInterceptor()))
+            .build()
+            .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    public void close() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    /**
+     * Sends the bundles to the function and returns the number of rows that came back.
+     */
+    public long executeFunction(int functionId, List<ServerSideExtension.BundledRows> bundles) throws Exception {
+        Metadata headers = new Metadata();
+        headers.put(PluginServerInterceptor.FUNCTION_REQUEST_HEADER_KEY, ServerSideExtension.FunctionRequestHeader.newBuilder()
+            .setFunctionId(functionId)
+            .build()
+            .toByteArray());
+        ConnectorGrpc.ConnectorStub stub = MetadataUtils.attachHeaders(ConnectorGrpc.newStub(channel), headers);
+        ResponseCounter responses = new ResponseCounter();
+        send(stub.executeFunction(responses), bundles);
+        return responses.await();
+    }
+
+    /**
+     * Sends the bundles to the script and returns the number of rows that came back.
+     */
+    public long evaluateScript(ServerSideExtension.ScriptRequestHeader header, List<ServerSideExtension.BundledRows> bundles)
+        throws Exception {
+        Metadata headers = new Metadata();
+        headers.put(PluginServerInterceptor.SCRIPT_REQUEST_HEADER_KEY, header.toByteArray());
+        ConnectorGrpc.ConnectorStub stub = MetadataUtils.attachHeaders(ConnectorGrpc.newStub(channel), headers);
+        ResponseCounter responses = new ResponseCounter();
+        send(stub.evaluateScript(responses), bundles);
+        return responses.await();
+    }
+
+    private static void send(StreamObserver<ServerSideExtension.BundledRows> requests, List<ServerSideExtension.BundledRows> bundles) {
+        for(ServerSideExtension.BundledRows bundledRows : bundles) {
+            requests.onNext(bundledRows);
+        }
+        requests.onCompleted();
+    }
+
+    private static final class ResponseCounter implements StreamObserver<ServerSideExtension.BundledRows> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile long rows;
+        private volatile Throwable error;
+
+        @Override
+        public void onNext(ServerSideExtension.BundledRows bundledRows) {
+            rows += bundledRows.getRowsCount();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+
+        long await() throws Exception {
+            if(!done.await(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("The call did not complete within " + CALL_TIMEOUT_SECONDS + " seconds.");
+            }
+            if(error != null) {
+                throw new IllegalStateException("The call failed.", error);
+            }
+            return rows;
+        }
+    }
+}
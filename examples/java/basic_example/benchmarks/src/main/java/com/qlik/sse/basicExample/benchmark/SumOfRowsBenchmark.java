@@ -0,0 +1,66 @@
+package com.qlik.sse.basicexample.benchmark;
+
+import com.qlik.sse.basicexample.BasicFunctions;
+import com.qlik.sse.basicexample.FunctionCall;
+import com.qlik.sse.basicexample.JavaPlugin;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares SumOfRows on one bundle without gRPC: the columnar ColumnBatch and BundleEncoder path
+ * of the plugin against summing each Row and building a new Row and Dual for every result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(SumOfRowsBenchmark.ROWS)
+public class SumOfRowsBenchmark {
+
+    static final int ROWS = 2000;
+
+    private ServerSideExtension.BundledRows bundle;
+    private FunctionCall call;
+
+    @Setup
+    public void setUp() {
+        ServerSideExtension.DataType[] columnTypes = {ServerSideExtension.DataType.NUMERIC, ServerSideExtension.DataType.NUMERIC};
+        bundle = Workloads.bundles(columnTypes, ROWS, ROWS, 0, 42).get(0);
+        call = new JavaPlugin().getFunctionRegistry().get(BasicFunctions.SUM_OF_ROWS).newCall();
+    }
+
+    @Benchmark
+    public ServerSideExtension.BundledRows columnar() {
+        return call.onBundle(bundle);
+    }
+
+    @Benchmark
+    public ServerSideExtension.BundledRows perRow() {
+        ServerSideExtension.BundledRows.Builder result = ServerSideExtension.BundledRows.newBuilder();
+        for(ServerSideExtension.Row row : bundle.getRowsList()) {
+            double rowSum = 0;
+            for(ServerSideExtension.Dual dual : row.getDualsList()) {
+                rowSum += dual.getNumData();
+            }
+            result.addRows(ServerSideExtension.Row.newBuilder()
+                .addDuals(ServerSideExtension.Dual.newBuilder().setNumData(rowSum)));
+        }
+        return result.build();
+    }
+}
@@ -0,0 +1,72 @@
+package com.qlik.sse.basicexample.benchmark;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic BundledRows. Numeric columns are filled with numData, string columns with
+ * strData of the given length. The data only depends on the seed, so runs can be compared.
+ */
+public final class Workloads {
+
+    private Workloads() {
+    }
+
+    /**
+     * Returns the number of string columns out of columns for a string ratio between 0 and 1.
+     * The string columns come after the numeric columns.
+     */
+    public static int stringColumns(int columns, double stringRatio) {
+        return Math.min(columns, (int) Math.round(columns * stringRatio));
+    }
+
+    public static ServerSideExtension.DataType[] columnTypes(int columns, double stringRatio) {
+        ServerSideExtension.DataType[] types = new ServerSideExtension.DataType[columns];
+        int numericColumns = columns - stringColumns(columns, stringRatio);
+        for(int c = 0; c < columns; c++) {
+            types[c] = c < numericColumns ? ServerSideExtension.DataType.NUMERIC : ServerSideExtension.DataType.STRING;
+        }
+        return types;
+    }
+
+    public static ServerSideExtension.BundledRows bundle(ServerSideExtension.DataType[] columnTypes, int rows,
+        int stringLength, Random random) {
+        ServerSideExtension.BundledRows.Builder bundle = ServerSideExtension.BundledRows.newBuilder();
+        ServerSideExtension.Row.Builder row = ServerSideExtension.Row.newBuilder();
+        ServerSideExtension.Dual.Builder dual = ServerSideExtension.Dual.newBuilder();
+        char[] chars = new char[stringLength];
+        for(int r = 0; r < rows; r++) {
+            row.clear();
+            for(ServerSideExtension.DataType type : columnTypes) {
+                dual.clear();
+                if(type == ServerSideExtension.DataType.STRING) {
+                    for(int i = 0; i < stringLength; i++) {
+                        chars[i] = (char) ('a' + random.nextInt(26));
+                    }
+                    dual.setStrData(new String(chars));
+                } else {
+                    dual.setNumData(random.nextInt(1000000) / 100.0);
+                }
+                row.addDuals(dual);
+            }
+            bundle.addRows(row);
+        }
+        return bundle.build();
+    }
+
+    /**
+     * Splits rows into bundles of at most bundleRows rows, like the engine does for one call.
+     */
+    public static List<ServerSideExtension.BundledRows> bundles(ServerSideExtension.DataType[] columnTypes, int rows,
+        int bundleRows, int stringLength, long seed) {
+        Random random = new Random(seed);
+        List<ServerSideExtension.BundledRows> bundles = new ArrayList<ServerSideExtension.BundledRows>();
+        for(int from = 0; from < rows; from += bundleRows) {
+            bundles.add(bundle(columnTypes, Math.min(bundleRows, rows - from), stringLength, random));
+        }
+        return bundles;
+    }
+}
@@ -0,0 +1,110 @@
+package com.qlik.sse.basicexample.loadtest;
+
+import com.qlik.sse.basicexample.CallRecorder;
+import com.qlik.sse.basicexample.PluginServerInterceptor;
+
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.Metadata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One call that the load test sends: the method, the request headers, as the Qlik engine sends
+ * them, the bundles, and when to start it relative to the start of the run.
+ */
+public final class LoadCall {
+
+    public static final String EXECUTE_FUNCTION = "ExecuteFunction";
+    public static final String EVALUATE_SCRIPT = "EvaluateScript";
+
+    private final String method;
+    private final Metadata headers;
+    private final List<ServerSideExtension.BundledRows> bundles;
+    private final long startMicros;
+    private final long rows;
+
+    public LoadCall(String method, Metadata headers, List<ServerSideExtension.BundledRows> bundles, long startMicros) {
+        this.method = method;
+        this.headers = headers;
+        this.bundles = bundles;
+        this.startMicros = startMicros;
+        long rows = 0;
+        for(ServerSideExtension.BundledRows bundle : bundles) {
+            rows += bundle.getRowsCount();
+        }
+        this.rows = rows;
+    }
+
+    /**
+     * The headers of a call from an app and user, with the cardinality of the bundles.
+     */
+    public static Metadata headers(ServerSideExtension.FunctionRequestHeader functionHeader,
+        ServerSideExtension.ScriptRequestHeader scriptHeader, String appId, String userId, long cardinality) {
+        Metadata headers = new Metadata();
+        if(functionHeader != null) {
+            headers.put(PluginServerInterceptor.FUNCTION_REQUEST_HEADER_KEY, functionHeader.toByteArray());
+        }
+        if(scriptHeader != null) {
+            headers.put(PluginServerInterceptor.SCRIPT_REQUEST_HEADER_KEY, scriptHeader.toByteArray());
+        }
+        headers.put(PluginServerInterceptor.COMMON_REQUEST_HEADER_KEY, ServerSideExtension.CommonRequestHeader.newBuilder()
+            .setAppId(appId)
+            .setUserId(userId)
+            .setCardinality(cardinality)
+            .build()
+            .toByteArray());
+        return headers;
+    }
+
+    /**
+     * Converts the calls of a recording. Calls of other methods than ExecuteFunction and
+     * EvaluateScript are skipped.
+     */
+    public static List<LoadCall> fromRecording(List<CallRecorder.RecordedCall> recordedCalls) throws IOException {
+        List<LoadCall> calls = new ArrayList<LoadCall>();
+        for(CallRecorder.RecordedCall recorded : recordedCalls) {
+            if(!recorded.getMethod().equals(EXECUTE_FUNCTION) && !recorded.getMethod().equals(EVALUATE_SCRIPT)) {
+                continue;
+            }
+            Metadata headers = new Metadata();
+            if(recorded.getFunctionHeader() != null) {
+                headers.put(PluginServerInterceptor.FUNCTION_REQUEST_HEADER_KEY, recorded.getFunctionHeader());
+            }
+            if(recorded.getScriptHeader() != null) {
+                headers.put(PluginServerInterceptor.SCRIPT_REQUEST_HEADER_KEY, recorded.getScriptHeader());
+            }
+            if(recorded.getCommonHeader() != null) {
+                headers.put(PluginServerInterceptor.COMMON_REQUEST_HEADER_KEY, recorded.getCommonHeader());
+            }
+            List<ServerSideExtension.BundledRows> bundles = new ArrayList<ServerSideExtension.BundledRows>();
+            for(byte[] bundle : recorded.getBundles()) {
+                bundles.add(ServerSideExtension.BundledRows.parseFrom(bundle));
+            }
+            calls.add(new LoadCall(recorded.getMethod(), headers, bundles, recorded.getStartMicros()));
+        }
+        return calls;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public Metadata getHeaders() {
+        return headers;
+    }
+
+    public List<ServerSideExtension.BundledRows> getBundles() {
+        return bundles;
+    }
+
+    public long getStartMicros() {
+        return startMicros;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+}
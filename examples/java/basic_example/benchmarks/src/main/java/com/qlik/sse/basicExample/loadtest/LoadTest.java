@@ -0,0 +1,386 @@
+package com.qlik.sse.basicexample.loadtest;
+
+import com.qlik.sse.basicexample.CallRecorder;
+import com.qlik.sse.basicexample.PluginConfig;
+import com.qlik.sse.basicexample.PluginGateway;
+import com.qlik.sse.basicexample.PluginServer;
+import com.qlik.sse.basicexample.PluginServerInterceptor;
+import com.qlik.sse.basicexample.benchmark.Workloads;
+
+import qlik.sse.ConnectorGrpc;
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.MetadataUtils;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates the Qlik engine against a plugin: sends ExecuteFunction and EvaluateScript calls with
+ * the request headers the engine sends, either synthetic calls at an open-loop arrival rate or
+ * the calls of a recording made with the recordFile setting of the plugin, and reports the
+ * throughput and latency percentiles.
+ *
+ * Calls are started at their scheduled time whether or not earlier calls have completed, and the
+ * latency is measured from the scheduled time, so a plugin that falls behind shows up in the
+ * latency instead of slowing down the load. Settings are given as --name value, see the README.
+ */
+public class LoadTest {
+
+    private static final long DRAIN_SECONDS = 60;
+
+    private final ManagedChannel[] channels;
+    private final int maxOutstanding;
+    private final Recorder latencyRecorder = new Recorder(3);
+    private final Histogram latencyTotal = new Histogram(3);
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rowsSent = new AtomicLong();
+    private final AtomicLong rowsReceived = new AtomicLong();
+    private final ConcurrentMap<Status.Code, AtomicLong> errors = new ConcurrentHashMap<Status.Code, AtomicLong>();
+    private Histogram latencyInterval;
+    private volatile long runStartNanos;
+
+    public LoadTest(String target, int channelCount, int maxOutstanding) {
+        this.channels = new ManagedChannel[Math.max(1, channelCount)];
+        for(int i = 0; i < channels.length; i++) {
+            channels[i] = ManagedChannelBuilder.forTarget(target)
+                .usePlaintext(true)
+                .maxInboundMessageSize(Integer.MAX_VALUE)
+                .build();
+        }
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    public static void main(String[] args) throws Exception {
+        PluginConfig config = PluginConfig.fromArgs(args);
+        PluginServer server = null;
+        List<Server> backends = new ArrayList<Server>();
+        if(config.getBoolean("local", false)) {
+            int localBackends = config.getInt("localBackends", 0);
+            server = localBackends > 0 ? new PluginServer(config, localGateway(config, localBackends, backends))
+                : new PluginServer(config, PluginServer.createPlugin(config));
+            server.start();
+        }
+        LoadTest loadTest = new LoadTest(config.getString("target", "localhost:" + config.getPort()),
+            config.getInt("channels", 1), config.getInt("maxOutstanding", 10000));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        try {
+            String replay = config.getString("replay", "");
+            List<LoadCall> calls = replay.isEmpty() ? syntheticCalls(config)
+                : LoadCall.fromRecording(CallRecorder.read(new File(replay)));
+            if(calls.isEmpty()) {
+                System.out.println("There are no calls to send.");
+                return;
+            }
+            loadTest.startProgress(reporter);
+            if(replay.isEmpty()) {
+                loadTest.runOpenLoop(calls, config.getString("arrival", "poisson"), config.getInt("rate", 50),
+                    config.getLong("duration", 30), config.getLong("seed", 42));
+            } else {
+                loadTest.runReplay(calls, config.getDouble("speed", 1), config.getLong("duration", 0));
+            }
+            loadTest.drain();
+            reporter.shutdownNow();
+            loadTest.report(System.nanoTime() - loadTest.runStartNanos);
+        } finally {
+            reporter.shutdownNow();
+            loadTest.close();
+            if(server != null) {
+                server.stop();
+            }
+            for(Server backend : backends) {
+                backend.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * A gateway to backend plugins that run in this process, each with its own in-process server,
+     * configured by the same arguments as a single plugin.
+     */
+    static PluginGateway localGateway(PluginConfig config, int count, List<Server> backends) throws IOException {
+        Map<String, ManagedChannel> channels = new LinkedHashMap<String, ManagedChannel>();
+        for(int i = 0; i < count; i++) {
+            String name = "sse-backend-" + i;
+            backends.add(InProcessServerBuilder.forName(name)
+                .addService(ServerInterceptors.intercept(PluginServer.createPlugin(config).bindService(), new PluginServerInterceptor()))
+                .build()
+                .start());
+            channels.put(name, InProcessChannelBuilder.forName(name).build());
+        }
+        PluginGateway gateway = new PluginGateway(channels);
+        gateway.setSharding(config.getGatewayShardMinRows(), config.getGatewayShardFunctions(), config.getMaxBundlesInFlight());
+        return gateway;
+    }
+
+    /**
+     * One call per tenant, where the tenants are all combinations of apps and users. The calls
+     * share the same synthetic bundles.
+     */
+    static List<LoadCall> syntheticCalls(PluginConfig config) {
+        int columns = config.getInt("columns", 2);
+        ServerSideExtension.DataType[] columnTypes = Workloads.columnTypes(columns, config.getDouble("stringRatio", 0));
+        int rows = config.getInt("rows", 1000);
+        List<ServerSideExtension.BundledRows> bundles = Workloads.bundles(columnTypes, rows,
+            Math.max(1, config.getInt("bundleRows", 500)), config.getInt("stringLength", 16), config.getLong("seed", 42));
+
+        String script = config.getString("script", "");
+        ServerSideExtension.FunctionRequestHeader functionHeader = null;
+        ServerSideExtension.ScriptRequestHeader scriptHeader = null;
+        if(script.isEmpty()) {
+            functionHeader = ServerSideExtension.FunctionRequestHeader.newBuilder()
+                .setFunctionId(config.getInt("function", 1))
+                .build();
+        } else {
+            ServerSideExtension.ScriptRequestHeader.Builder builder = ServerSideExtension.ScriptRequestHeader.newBuilder()
+                .setScript(script)
+                .setFunctionType(config.getString("scriptType", "tensor").equals("aggregation")
+                    ? ServerSideExtension.FunctionType.AGGREGATION : ServerSideExtension.FunctionType.TENSOR)
+                .setReturnType(ServerSideExtension.DataType.NUMERIC);
+            for(int c = 0; c < columns; c++) {
+                builder.addParams(ServerSideExtension.Parameter.newBuilder()
+                    .setName("arg" + c)
+                    .setDataType(columnTypes[c]));
+            }
+            scriptHeader = builder.build();
+        }
+        String method = script.isEmpty() ? LoadCall.EXECUTE_FUNCTION : LoadCall.EVALUATE_SCRIPT;
+
+        List<LoadCall> calls = new ArrayList<LoadCall>();
+        int apps = Math.max(1, config.getInt("apps", 1));
+        int users = Math.max(1, config.getInt("users", 1));
+        for(int a = 0; a < apps; a++) {
+            for(int u = 0; u < users; u++) {
+                calls.add(new LoadCall(method, LoadCall.headers(functionHeader, scriptHeader, "app" + a, "user" + u, rows), bundles, 0));
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * Starts calls at rate calls per second for durationSeconds, picking a random call for every
+     * start. With poisson arrivals the time between starts is exponentially distributed, with
+     * uniform arrivals it is constant.
+     */
+    public void runOpenLoop(List<LoadCall> calls, String arrival, int rate, long durationSeconds, long seed) {
+        Random random = new Random(seed);
+        boolean poisson = !arrival.equals("uniform");
+        double meanNanos = 1e9 / Math.max(1, rate);
+        runStartNanos = System.nanoTime();
+        long end = runStartNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long next = runStartNanos;
+        while(next < end) {
+            waitUntil(next);
+            start(calls.get(random.nextInt(calls.size())), next);
+            next += poisson ? (long) (-Math.log(1 - random.nextDouble()) * meanNanos) : (long) meanNanos;
+        }
+    }
+
+    /**
+     * Starts the calls at the times they were recorded, speed times faster. With a duration, the
+     * recording is replayed from the start again until the duration has passed.
+     */
+    public void runReplay(List<LoadCall> calls, double speed, long durationSeconds) {
+        runStartNanos = System.nanoTime();
+        long end = runStartNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long firstMicros = calls.get(0).getStartMicros();
+        do {
+            long base = System.nanoTime();
+            for(LoadCall call : calls) {
+                long scheduled = base + (long) ((call.getStartMicros() - firstMicros) * 1000 / speed);
+                if(durationSeconds > 0 && scheduled >= end) {
+                    return;
+                }
+                waitUntil(scheduled);
+                start(call, scheduled);
+            }
+        } while(durationSeconds > 0 && System.nanoTime() < end);
+    }
+
+    private static void waitUntil(long nanos) {
+        long wait;
+        while((wait = nanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private void start(LoadCall call, long scheduledNanos) {
+        if(outstanding.incrementAndGet() > maxOutstanding) {
+            outstanding.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        long n = started.getAndIncrement();
+        ConnectorGrpc.ConnectorStub stub = MetadataUtils.attachHeaders(
+            ConnectorGrpc.newStub(channels[(int) (n % channels.length)]), call.getHeaders());
+        CallObserver observer = new CallObserver(call, scheduledNanos);
+        if(call.getMethod().equals(LoadCall.EVALUATE_SCRIPT)) {
+            stub.evaluateScript(observer);
+        } else {
+            stub.executeFunction(observer);
+        }
+        observer.send();
+    }
+
+    private void drain() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while(outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        if(outstanding.get() > 0) {
+            System.out.println(outstanding.get() + " calls did not complete within " + DRAIN_SECONDS + " seconds.");
+        }
+    }
+
+    private void startProgress(ScheduledExecutorService reporter) {
+        reporter.scheduleAtFixedRate(new Runnable() {
+            private long lastCompleted;
+
+            @Override
+            public void run() {
+                Histogram interval = intervalLatency();
+                long done = completed.get() + failed.get();
+                System.out.println(String.format("%6.1f s: %d calls/s, p50 %.2f ms, p99 %.2f ms, %d outstanding, %d failed, %d dropped",
+                    (System.nanoTime() - runStartNanos) / 1e9, done - lastCompleted,
+                    interval.getValueAtPercentile(50) / 1000.0, interval.getValueAtPercentile(99) / 1000.0,
+                    outstanding.get(), failed.get(), dropped.get()));
+                lastCompleted = done;
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private synchronized Histogram intervalLatency() {
+        latencyInterval = latencyRecorder.getIntervalHistogram(latencyInterval);
+        latencyTotal.add(latencyInterval);
+        return latencyInterval;
+    }
+
+    private void report(long elapsedNanos) {
+        intervalLatency();
+        double seconds = elapsedNanos / 1e9;
+        Histogram latency = latencyTotal;
+        System.out.println();
+        System.out.println(String.format("Calls: %d started, %d completed, %d failed, %d dropped in %.1f s",
+            started.get(), completed.get(), failed.get(), dropped.get(), seconds));
+        for(Map.Entry<Status.Code, AtomicLong> error : errors.entrySet()) {
+            System.out.println("  " + error.getKey() + ": " + error.getValue().get());
+        }
+        System.out.println(String.format("Throughput: %.1f calls/s, %.0f rows/s sent, %.0f rows/s received",
+            completed.get() / seconds, rowsSent.get() / seconds, rowsReceived.get() / seconds));
+        System.out.println(String.format("Latency (ms): p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+            latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(90) / 1000.0,
+            latency.getValueAtPercentile(99) / 1000.0, latency.getValueAtPercentile(99.9) / 1000.0,
+            latency.getMaxValue() / 1000.0));
+    }
+
+    public void close() {
+        for(ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends the bundles of a call while the request stream is ready, and records the latency when
+     * the call ends.
+     */
+    private final class CallObserver implements ClientResponseObserver<ServerSideExtension.BundledRows, ServerSideExtension.BundledRows> {
+        private final LoadCall call;
+        private final long scheduledNanos;
+        private ClientCallStreamObserver<ServerSideExtension.BundledRows> requests;
+        private int next;
+        private boolean inputCompleted;
+
+        CallObserver(LoadCall call, long scheduledNanos) {
+            this.call = call;
+            this.scheduledNanos = scheduledNanos;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ServerSideExtension.BundledRows> requestStream) {
+            requests = requestStream;
+            requestStream.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            });
+        }
+
+        synchronized void send() {
+            List<ServerSideExtension.BundledRows> bundles = call.getBundles();
+            while(!inputCompleted && next < bundles.size() && requests.isReady()) {
+                ServerSideExtension.BundledRows bundle = bundles.get(next++);
+                requests.onNext(bundle);
+                rowsSent.addAndGet(bundle.getRowsCount());
+            }
+            if(!inputCompleted && next == bundles.size()) {
+                inputCompleted = true;
+                requests.onCompleted();
+            }
+        }
+
+        @Override
+        public void onNext(ServerSideExtension.BundledRows bundledRows) {
+            rowsReceived.addAndGet(bundledRows.getRowsCount());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            Status.Code code = Status.fromThrowable(t).getCode();
+            AtomicLong count = errors.get(code);
+            if(count == null) {
+                AtomicLong created = new AtomicLong();
+                count = errors.putIfAbsent(code, created);
+                if(count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+            failed.incrementAndGet();
+            ended();
+        }
+
+        @Override
+        public void onCompleted() {
+            completed.incrementAndGet();
+            ended();
+        }
+
+        private void ended() {
+            synchronized(this) {
+                inputCompleted = true;
+            }
+            latencyRecorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduledNanos));
+            outstanding.decrementAndGet();
+        }
+    }
+}
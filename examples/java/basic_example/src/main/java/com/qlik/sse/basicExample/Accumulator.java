@@ -0,0 +1,29 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+/**
+ * Incremental state of an aggregation. An accumulator sees the bundles of a call one at a
+ * time and keeps a running state where it can. An aggregation that has to keep the values of its
+ * rows, like StringAggregation, keeps them in a SpillBuffer and reads them back in finish.
+ * Accumulators built from disjoint parts of a call, for example on different worker threads, are
+ * combined with merge.
+ */
+public interface Accumulator<A extends Accumulator<A>> {
+
+    void init();
+
+    void accumulate(ColumnBatch batch);
+
+    /**
+     * Adds the state of other to this accumulator. other holds rows that came after the rows of this accumulator.
+     */
+    void merge(A other);
+
+    void finish(ServerSideExtension.Dual.Builder result);
+
+    /**
+     * Frees the memory and files of the state, when the call is finished or cancelled.
+     */
+    void release();
+}
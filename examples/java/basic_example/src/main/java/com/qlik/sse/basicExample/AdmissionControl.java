@@ -0,0 +1,373 @@
+package com.qlik.sse.basicexample;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Admission control and fair scheduling of calls between tenants, from the appId, userId and
+ * cardinality of the CommonRequestHeader. A tenant is an app and a user.
+ *
+ * Calls with a cardinality over the limit are rejected with RESOURCE_EXHAUSTED before they start.
+ * Other calls start right away while the limits on concurrent calls for the plugin, the app and
+ * the user, and the row rate of the user, allow it. Otherwise they wait in the queue of their
+ * tenant and are started in weighted fair order when calls end: a call costs its cardinality
+ * divided by the weight of its app, and the waiting call with the lowest virtual start time goes
+ * first, so one tenant with a large request can not starve the tenants with small ones.
+ * All limits are 0 by default, which means no limit.
+ */
+public class AdmissionControl {
+
+    private static final Logger logger = Logger.getLogger(AdmissionControl.class.getName());
+
+    private final ScheduledExecutorService executor;
+    private final Object lock = new Object();
+    private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+    private final Map<String, Group> apps = new HashMap<String, Group>();
+    private final Map<String, Group> users = new HashMap<String, Group>();
+    private final Map<String, Double> appWeights = new HashMap<String, Double>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private long maxCardinality;
+    private int maxCalls;
+    private int maxCallsPerApp;
+    private int maxCallsPerUser;
+    private long maxRowsPerSecondPerUser;
+    private int maxQueuedCalls;
+
+    private int running;
+    private int queued;
+    private double virtualTime;
+    private boolean timerPending;
+
+    /**
+     * Waiting calls are admitted on the executor, which also runs the timer for row rate limits.
+     * The executor should have a single thread, which only decides and hands calls off.
+     */
+    public AdmissionControl(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public void setMaxCardinality(long maxCardinality) {
+        this.maxCardinality = maxCardinality;
+    }
+
+    public void setConcurrencyLimits(int maxCalls, int maxCallsPerApp, int maxCallsPerUser) {
+        this.maxCalls = maxCalls;
+        this.maxCallsPerApp = maxCallsPerApp;
+        this.maxCallsPerUser = maxCallsPerUser;
+    }
+
+    /**
+     * Limits the rows a user can start per second, counted by cardinality. A user can burst one
+     * second of rows, and a call that goes over that delays the next calls of the user.
+     */
+    public void setMaxRowsPerSecondPerUser(long maxRowsPerSecondPerUser) {
+        this.maxRowsPerSecondPerUser = maxRowsPerSecondPerUser;
+    }
+
+    /**
+     * Calls that would have to wait when the queue is full are rejected with RESOURCE_EXHAUSTED.
+     */
+    public void setMaxQueuedCalls(int maxQueuedCalls) {
+        this.maxQueuedCalls = maxQueuedCalls;
+    }
+
+    /**
+     * The share of an app when calls wait, relative to the default weight of 1.
+     */
+    public void setAppWeight(String appId, double weight) {
+        synchronized(lock) {
+            appWeights.put(appId, weight);
+        }
+    }
+
+    public int getRunningCalls() {
+        synchronized(lock) {
+            return running;
+        }
+    }
+
+    public int getQueuedCalls() {
+        synchronized(lock) {
+            return queued;
+        }
+    }
+
+    public long getRejectedCalls() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns a ticket for a call, or throws a StatusRuntimeException with RESOURCE_EXHAUSTED if
+     * the cardinality is over the limit.
+     */
+    public Ticket newTicket(String appId, String userId, long cardinality) {
+        if(maxCardinality > 0 && cardinality > maxCardinality) {
+            rejected.incrementAndGet();
+            logger.info("Rejected a call of app " + appId + " with cardinality " + cardinality + ".");
+            throw new StatusRuntimeException(Status.RESOURCE_EXHAUSTED.withDescription(
+                "The cardinality " + cardinality + " is over the limit of " + maxCardinality + " rows."));
+        }
+        return new Ticket(appId, userId, Math.max(1, cardinality));
+    }
+
+    private void dispatch() {
+        List<Ticket> started = new ArrayList<Ticket>();
+        synchronized(lock) {
+            long now = System.nanoTime();
+            while(queued > 0 && (maxCalls <= 0 || running < maxCalls)) {
+                Ticket next = null;
+                for(Tenant tenant : tenants.values()) {
+                    Ticket head = tenant.queue.peek();
+                    if(head != null && canStart(head, now) && (next == null || head.startTag < next.startTag)) {
+                        next = head;
+                    }
+                }
+                if(next == null) {
+                    break;
+                }
+                next.tenant.queue.poll();
+                queued--;
+                virtualTime = next.startTag;
+                begin(next, now);
+                started.add(next);
+            }
+            if(queued == 0) {
+                tenants.clear();
+                virtualTime = 0;
+            } else {
+                scheduleRateTimer(now);
+            }
+        }
+        for(Ticket ticket : started) {
+            executor.execute(ticket.admitted);
+        }
+    }
+
+    /**
+     * If the only calls that could start are waiting for the row rate of their users, dispatches
+     * again when the first of those users has rows left.
+     */
+    private void scheduleRateTimer(long now) {
+        if(timerPending || maxRowsPerSecondPerUser <= 0 || (maxCalls > 0 && running >= maxCalls)) {
+            return;
+        }
+        double wait = Double.MAX_VALUE;
+        for(Tenant tenant : tenants.values()) {
+            Group user = users.get(tenant.userId);
+            if(user != null && !tenant.queue.isEmpty() && user.tokens(now, maxRowsPerSecondPerUser) <= 0) {
+                wait = Math.min(wait, (1 - user.tokens) / maxRowsPerSecondPerUser);
+            }
+        }
+        if(wait == Double.MAX_VALUE) {
+            return;
+        }
+        timerPending = true;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(lock) {
+                    timerPending = false;
+                }
+                dispatch();
+            }
+        }, (long) Math.ceil(wait * 1e9), TimeUnit.NANOSECONDS);
+    }
+
+    private boolean canStart(Ticket ticket, long now) {
+        if(maxCalls > 0 && running >= maxCalls) {
+            return false;
+        }
+        Group app = apps.get(ticket.appId);
+        if(maxCallsPerApp > 0 && app != null && app.running >= maxCallsPerApp) {
+            return false;
+        }
+        Group user = users.get(ticket.userId);
+        if(maxCallsPerUser > 0 && user != null && user.running >= maxCallsPerUser) {
+            return false;
+        }
+        return maxRowsPerSecondPerUser <= 0 || user == null || user.tokens(now, maxRowsPerSecondPerUser) > 0;
+    }
+
+    private void begin(Ticket ticket, long now) {
+        running++;
+        group(apps, ticket.appId, now).running++;
+        Group user = group(users, ticket.userId, now);
+        user.running++;
+        if(maxRowsPerSecondPerUser > 0) {
+            user.tokens(now, maxRowsPerSecondPerUser);
+            user.tokens -= ticket.cardinality;
+        }
+        ticket.state = State.RUNNING;
+        ticket.startedNanos = now;
+    }
+
+    private void end(Ticket ticket) {
+        long now = System.nanoTime();
+        running--;
+        Group app = apps.get(ticket.appId);
+        if(--app.running == 0) {
+            apps.remove(ticket.appId);
+        }
+        Group user = users.get(ticket.userId);
+        if(--user.running == 0 && (maxRowsPerSecondPerUser <= 0 || user.tokens(now, maxRowsPerSecondPerUser) >= maxRowsPerSecondPerUser)) {
+            users.remove(ticket.userId);
+        }
+    }
+
+    private Group group(Map<String, Group> groups, String name, long now) {
+        Group group = groups.get(name);
+        if(group == null) {
+            group = new Group(maxRowsPerSecondPerUser, now);
+            groups.put(name, group);
+        }
+        return group;
+    }
+
+    private enum State { NEW, QUEUED, RUNNING, DONE }
+
+    /**
+     * The admission of one call. Every ticket must be released when the call ends or is cancelled.
+     */
+    public final class Ticket {
+        private final String appId;
+        private final String userId;
+        private final long cardinality;
+        private final long createdNanos = System.nanoTime();
+        private Tenant tenant;
+        private Runnable admitted;
+        private double startTag;
+        private State state = State.NEW;
+        private long startedNanos;
+
+        private Ticket(String appId, String userId, long cardinality) {
+            this.appId = appId;
+            this.userId = userId;
+            this.cardinality = cardinality;
+        }
+
+        /**
+         * Returns true if the call can start now, and the caller starts it. Otherwise queues the call
+         * and returns false, and admitted runs on the executor when the call can start. All waiting
+         * calls are admitted on that thread, so admitted must hand the call off to another thread
+         * instead of running it. Throws a StatusRuntimeException with RESOURCE_EXHAUSTED if the
+         * queue is full.
+         */
+        public boolean submit(Runnable admitted) {
+            synchronized(lock) {
+                if(state != State.NEW) {
+                    return false;
+                }
+                long now = System.nanoTime();
+                if(queued == 0 && canStart(this, now)) {
+                    begin(this, now);
+                    return true;
+                } else if(maxQueuedCalls > 0 && queued >= maxQueuedCalls) {
+                    state = State.DONE;
+                    rejected.incrementAndGet();
+                    throw new StatusRuntimeException(Status.RESOURCE_EXHAUSTED.withDescription(
+                        "Too many calls are waiting, the limit is " + maxQueuedCalls + "."));
+                } else {
+                    String key = appId + '\u0000' + userId;
+                    tenant = tenants.get(key);
+                    if(tenant == null) {
+                        tenant = new Tenant(userId);
+                        tenants.put(key, tenant);
+                    }
+                    Double weight = appWeights.get(appId);
+                    startTag = Math.max(virtualTime, tenant.lastFinishTag);
+                    tenant.lastFinishTag = startTag + cardinality / (weight == null ? 1.0 : weight);
+                    tenant.queue.add(this);
+                    this.admitted = admitted;
+                    state = State.QUEUED;
+                    queued++;
+                    logger.finer("Call of app " + appId + " queued, " + queued + " calls waiting.");
+                }
+            }
+            dispatch();
+            return false;
+        }
+
+        /**
+         * Removes a waiting call from its queue, or frees the slot of a running call and starts the
+         * next waiting calls. Can be called more than once.
+         */
+        public void release() {
+            synchronized(lock) {
+                if(state == State.QUEUED) {
+                    Iterator<Ticket> it = tenant.queue.iterator();
+                    while(it.hasNext()) {
+                        if(it.next() == this) {
+                            it.remove();
+                        }
+                    }
+                    queued--;
+                    state = State.DONE;
+                    if(queued == 0) {
+                        tenants.clear();
+                        virtualTime = 0;
+                    }
+                    return;
+                }
+                if(state != State.RUNNING) {
+                    state = State.DONE;
+                    return;
+                }
+                state = State.DONE;
+                end(this);
+            }
+            dispatch();
+        }
+
+        /**
+         * How long the call waited before it started, 0 if it has not started.
+         */
+        public long getWaitNanos() {
+            synchronized(lock) {
+                return startedNanos == 0 ? 0 : startedNanos - createdNanos;
+            }
+        }
+    }
+
+    private static final class Tenant {
+        private final String userId;
+        private final Queue<Ticket> queue = new ArrayDeque<Ticket>();
+        private double lastFinishTag;
+
+        Tenant(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    /**
+     * The running calls of an app or a user, and for users the rows left of the row rate.
+     */
+    private static final class Group {
+        private int running;
+        private double tokens;
+        private long refilled;
+
+        Group(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilled = now;
+        }
+
+        double tokens(long now, long rowsPerSecond) {
+            tokens = Math.min(rowsPerSecond, tokens + (now - refilled) * 1e-9 * rowsPerSecond);
+            refilled = now;
+            return tokens;
+        }
+    }
+}
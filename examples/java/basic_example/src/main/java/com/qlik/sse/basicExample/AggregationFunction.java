@@ -0,0 +1,97 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * A function that aggregates all rows of a call into a single value, using an Accumulator.
+ * If the function is PARALLEL_SAFE, bundles can be accumulated on several threads and
+ * the partial accumulators are merged with finish(List).
+ */
+public abstract class AggregationFunction<A extends Accumulator<A>> extends PluginFunction {
+
+    protected AggregationFunction(String name, ServerSideExtension.DataType returnType, EnumSet<Trait> traits) {
+        super(name, ServerSideExtension.FunctionType.AGGREGATION, returnType, withTrait(traits, Trait.VECTORIZABLE));
+    }
+
+    protected abstract A newAccumulator();
+
+    @Override
+    public FunctionCall newCall() {
+        return newCall(0);
+    }
+
+    @Override
+    public FunctionCall newCall(int expectedRows) {
+        A accumulator = newAccumulator();
+        accumulator.init();
+        AggregationCall call = new AggregationCall(accumulator);
+        call.batch.ensureCapacity(expectedRows, getParams().size());
+        return call;
+    }
+
+    /**
+     * Merges the accumulators of the calls, in the order given, and returns the result.
+     */
+    public ServerSideExtension.BundledRows finish(List<FunctionCall> partials) {
+        A result = null;
+        for(FunctionCall partial : partials) {
+            A accumulator = accumulatorOf(partial);
+            if(result == null) {
+                result = accumulator;
+            } else {
+                result.merge(accumulator);
+                accumulator.release();
+            }
+        }
+        if(result == null) {
+            result = newAccumulator();
+            result.init();
+        }
+        return finish(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private A accumulatorOf(FunctionCall call) {
+        return ((AggregationCall) call).accumulator;
+    }
+
+    private ServerSideExtension.BundledRows finish(A accumulator) {
+        ServerSideExtension.Dual.Builder dualBuilder = ServerSideExtension.Dual.newBuilder();
+        try {
+            accumulator.finish(dualBuilder);
+        } finally {
+            accumulator.release();
+        }
+        return ServerSideExtension.BundledRows.newBuilder()
+            .addRows(ServerSideExtension.Row.newBuilder().addDuals(dualBuilder))
+            .build();
+    }
+
+    private final class AggregationCall implements FunctionCall {
+        private final ColumnBatch batch = new ColumnBatch();
+        private final A accumulator;
+
+        AggregationCall(A accumulator) {
+            this.accumulator = accumulator;
+        }
+
+        @Override
+        public ServerSideExtension.BundledRows onBundle(ServerSideExtension.BundledRows bundledRows) {
+            accumulator.accumulate(batch.decode(bundledRows));
+            return null;
+        }
+
+        @Override
+        public ServerSideExtension.BundledRows onCompleted() {
+            return finish(accumulator);
+        }
+
+        @Override
+        public void cancel() {
+            accumulator.release();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.logging.Logger;
+
+/**
+ * The functions of the basic example. They are registered in the order of their ids.
+ */
+public final class BasicFunctions {
+
+    private static final Logger logger = Logger.getLogger(BasicFunctions.class.getName());
+
+    public static final int HELLO_WORLD = 0;
+    public static final int SUM_OF_ROWS = 1;
+    public static final int SUM_OF_COLUMN = 2;
+    public static final int STRING_AGGREGATION = 3;
+    public static final int CACHE = 4;
+    public static final int NO_CACHE = 5;
+
+    public static final int DEFAULT_MAX_AGGREGATED_STRING_LENGTH = 16 * 1024 * 1024;
+
+    private BasicFunctions() {
+    }
+
+    /**
+     * Registers the functions. The state of StringAggregation is kept within aggregationMemory.
+     */
+    public static void registerAll(FunctionRegistry registry, int maxAggregatedStringLength, MemoryBudget aggregationMemory) {
+        registry.register(new HelloWorld());
+        registry.register(new SumOfRows());
+        registry.register(new SumOfColumn());
+        registry.register(new StringAggregation(maxAggregatedStringLength, aggregationMemory));
+        registry.register(new Cache("Cache", EnumSet.of(PluginFunction.Trait.PARALLEL_SAFE, PluginFunction.Trait.DETERMINISTIC_IN_CALL)));
+        registry.register(new Cache("NoCache", EnumSet.of(PluginFunction.Trait.PARALLEL_SAFE, PluginFunction.Trait.DETERMINISTIC_IN_CALL, 
+            PluginFunction.Trait.NO_STORE)));
+    }
+
+    static final class HelloWorld extends PluginFunction {
+        HelloWorld() {
+            super("HelloWorld", ServerSideExtension.FunctionType.TENSOR, ServerSideExtension.DataType.STRING,
+                EnumSet.of(Trait.DETERMINISTIC));
+            addParam("str1", ServerSideExtension.DataType.STRING);
+        }
+
+        @Override
+        public FunctionCall newCall() {
+            return new FunctionCall() {
+                @Override
+                public ServerSideExtension.BundledRows onBundle(ServerSideExtension.BundledRows bundledRows) {
+                    logger.fine("helloWorld called (and completed).");
+                    return bundledRows;
+                }
+                
+                @Override
+                public ServerSideExtension.BundledRows onCompleted() {
+                    return null;
+                }
+                
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+    }
+
+    static final class SumOfRows extends TensorFunction {
+        SumOfRows() {
+            super("SumOfRows", ServerSideExtension.DataType.NUMERIC, EnumSet.of(Trait.DETERMINISTIC, Trait.PARALLEL_SAFE));
+            addParam("col1", ServerSideExtension.DataType.NUMERIC);
+            addParam("col2", ServerSideExtension.DataType.NUMERIC);
+        }
+
+        @Override
+        protected void apply(ColumnBatch batch, ResultColumn result) {
+            logger.fine("Function SumOfRows called.");
+            int nbrOfRows = batch.getRowCount();
+            double[] rowSums = result.numericBuffer(nbrOfRows);
+            Arrays.fill(rowSums, 0, nbrOfRows, 0);
+            for(int c = 0; c < batch.getColumnCount(); c++) {
+                double[] column = batch.getNumeric(c);
+                for(int r = 0; r < nbrOfRows; r++) {
+                    rowSums[r] += column[r];
+                }
+            }
+            result.setSize(nbrOfRows);
+            logger.fine("Function SumOfRows completed.");
+        }
+    }
+
+    static final class SumOfColumn extends AggregationFunction<KahanSumAccumulator> {
+        SumOfColumn() {
+            super("SumOfColumn", ServerSideExtension.DataType.NUMERIC, EnumSet.of(Trait.DETERMINISTIC, Trait.PARALLEL_SAFE));
+            addParam("column", ServerSideExtension.DataType.NUMERIC);
+        }
+
+        @Override
+        protected KahanSumAccumulator newAccumulator() {
+            return new KahanSumAccumulator(0);
+        }
+    }
+
+    static final class StringAggregation extends AggregationFunction<StringConcatAccumulator> {
+        private final int maxLength;
+        private final MemoryBudget memory;
+
+        StringAggregation(int maxLength, MemoryBudget memory) {
+            super("StringAggregation", ServerSideExtension.DataType.STRING, EnumSet.of(Trait.DETERMINISTIC));
+            addParam("columnOfStrings", ServerSideExtension.DataType.STRING);
+            this.maxLength = maxLength;
+            this.memory = memory;
+        }
+
+        @Override
+        protected StringConcatAccumulator newAccumulator() {
+            return new StringConcatAccumulator(0, maxLength, memory);
+        }
+    }
+
+    /**
+     * Used for both Cache and NoCache, the difference is the NO_STORE trait of NoCache, for which
+     * the plugin tells Qlik not to cache the results. The suffix is the time of the bundle, so with
+     * a row dictionary a value that repeats in a later bundle keeps the time of the bundle it
+     * was first seen in.
+     */
+    static final class Cache extends TensorFunction {
+        Cache(String name, EnumSet<Trait> traits) {
+            super(name, ServerSideExtension.DataType.STRING, traits);
+            addParam("columnOfStrings", ServerSideExtension.DataType.STRING);
+        }
+
+        @Override
+        protected void apply(ColumnBatch batch, ResultColumn result) {
+            logger.fine("Function " + getName() + " called.");
+            int nbrOfRows = batch.getColumnCount() > 0 ? batch.getRowCount() : 0;
+            String[] strings = result.stringBuffer(nbrOfRows);
+            String suffix = "___" + new Date().toString();
+            for(int r = 0; r < nbrOfRows; r++) {
+                strings[r] = batch.getString(0, r) + suffix;
+            }
+            result.setSize(nbrOfRows);
+            logger.fine("Function " + getName() + " completed.");
+        }
+    }
+}
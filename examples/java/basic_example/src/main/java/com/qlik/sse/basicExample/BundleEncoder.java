@@ -0,0 +1,39 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+/**
+ * Encodes a ResultColumn as BundledRows, reusing the same builders for every row and bundle.
+ */
+public class BundleEncoder {
+
+    private final ServerSideExtension.BundledRows.Builder bundledRowsBuilder = ServerSideExtension.BundledRows.newBuilder();
+    private final ServerSideExtension.Row.Builder rowBuilder = ServerSideExtension.Row.newBuilder();
+    private final ServerSideExtension.Dual.Builder dualBuilder = ServerSideExtension.Dual.newBuilder();
+
+    public ServerSideExtension.BundledRows encode(ResultColumn column) {
+        return encode(column, 0, column.size());
+    }
+
+    public ServerSideExtension.BundledRows encode(ResultColumn column, int from, int to) {
+        bundledRowsBuilder.clear();
+        ServerSideExtension.DataType dataType = column.getDataType();
+        for(int r = from; r < to; r++) {
+            dualBuilder.clear();
+            switch(dataType) {
+                case NUMERIC:
+                    dualBuilder.setNumData(column.getNumeric(r));
+                    break;
+                case DUAL:
+                    dualBuilder.setNumData(column.getNumeric(r)).setStrData(column.getString(r));
+                    break;
+                default:
+                    dualBuilder.setStrData(column.getString(r));
+                    break;
+            }
+            rowBuilder.clear();
+            bundledRowsBuilder.addRows(rowBuilder.addDuals(dualBuilder));
+        }
+        return bundledRowsBuilder.build();
+    }
+}
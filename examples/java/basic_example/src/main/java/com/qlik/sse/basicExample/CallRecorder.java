@@ -0,0 +1,257 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the ExecuteFunction and EvaluateScript calls that the plugin receives to a file, so that
+ * the traffic of a real Qlik engine can be replayed by the load test tool. The file is gzipped and
+ * holds a header followed by records, where numbers are varints and byte arrays are prefixed with
+ * their length plus one, 0 meaning absent:
+ * <ul>
+ * <li>CALL: call id, start in microseconds since the recording started, method name, and the
+ * function, script and common request headers as serialized.</li>
+ * <li>BUNDLE: call id and the serialized BundledRows.</li>
+ * <li>END: call id, written when the engine has sent all bundles of the call.</li>
+ * </ul>
+ * Records are written under one lock, which costs throughput, so record for diagnostics only.
+ */
+public class CallRecorder {
+
+    private static final Logger logger = Logger.getLogger(CallRecorder.class.getName());
+
+    private static final int MAGIC = 0x53534552;
+    private static final int VERSION = 1;
+    private static final int CALL = 1;
+    private static final int BUNDLE = 2;
+    private static final int END = 3;
+
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong nextCallId = new AtomicLong();
+    private boolean failed;
+
+    public CallRecorder(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 64 * 1024)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        logger.info("Recording calls to " + file + ".");
+    }
+
+    /**
+     * Records the start of a call and returns its id.
+     */
+    public long callStarted(String method, byte[] functionHeader, byte[] scriptHeader, byte[] commonHeader) {
+        long id = nextCallId.getAndIncrement();
+        synchronized(this) {
+            try {
+                out.writeByte(CALL);
+                writeVarLong(out, id);
+                writeVarLong(out, (System.nanoTime() - startNanos) / 1000);
+                writeBytes(out, method.getBytes("UTF-8"));
+                writeBytes(out, functionHeader);
+                writeBytes(out, scriptHeader);
+                writeBytes(out, commonHeader);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Records a bundle, either BundledRows or a RawBundle.
+     */
+    public void bundleReceived(long callId, Object bundle) {
+        byte[] bytes;
+        int length;
+        if(bundle instanceof RawBundle) {
+            RawBundle raw = (RawBundle) bundle;
+            bytes = raw.getBytes();
+            length = raw.getSerializedSize();
+        } else if(bundle instanceof ServerSideExtension.BundledRows) {
+            bytes = ((ServerSideExtension.BundledRows) bundle).toByteArray();
+            length = bytes.length;
+        } else {
+            return;
+        }
+        synchronized(this) {
+            try {
+                out.writeByte(BUNDLE);
+                writeVarLong(out, callId);
+                writeVarLong(out, length + 1);
+                out.write(bytes, 0, length);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    public synchronized void inputCompleted(long callId) {
+        try {
+            out.writeByte(END);
+            writeVarLong(out, callId);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close the call recording.", e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if(!failed) {
+            failed = true;
+            logger.log(Level.WARNING, "Could not write to the call recording.", e);
+        }
+    }
+
+    /**
+     * A call read back from a recording.
+     */
+    public static final class RecordedCall {
+        private final String method;
+        private final long startMicros;
+        private final byte[] functionHeader;
+        private final byte[] scriptHeader;
+        private final byte[] commonHeader;
+        private final List<byte[]> bundles = new ArrayList<byte[]>();
+
+        RecordedCall(String method, long startMicros, byte[] functionHeader, byte[] scriptHeader, byte[] commonHeader) {
+            this.method = method;
+            this.startMicros = startMicros;
+            this.functionHeader = functionHeader;
+            this.scriptHeader = scriptHeader;
+            this.commonHeader = commonHeader;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public long getStartMicros() {
+            return startMicros;
+        }
+
+        /** The serialized header, or null if the call did not have it. */
+        public byte[] getFunctionHeader() {
+            return functionHeader;
+        }
+
+        public byte[] getScriptHeader() {
+            return scriptHeader;
+        }
+
+        public byte[] getCommonHeader() {
+            return commonHeader;
+        }
+
+        /** The serialized BundledRows, in the order they were received. */
+        public List<byte[]> getBundles() {
+            return bundles;
+        }
+    }
+
+    /**
+     * Reads all calls of a recording, in the order they started. A recording that was cut off,
+     * for example because the plugin was killed, is read up to where it ends.
+     */
+    public static List<RecordedCall> read(File file) throws IOException {
+        Map<Long, RecordedCall> calls = new LinkedHashMap<Long, RecordedCall>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 64 * 1024)));
+        try {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a call recording.");
+            }
+            int type;
+            while((type = in.read()) >= 0) {
+                long id = readVarLong(in);
+                if(type == CALL) {
+                    long start = readVarLong(in);
+                    String method = new String(readBytes(in), "UTF-8");
+                    calls.put(id, new RecordedCall(method, start, readBytes(in), readBytes(in), readBytes(in)));
+                } else if(type == BUNDLE) {
+                    byte[] bundle = readBytes(in);
+                    RecordedCall call = calls.get(id);
+                    if(call != null) {
+                        call.bundles.add(bundle);
+                    }
+                } else if(type != END) {
+                    throw new IOException("Unknown record type " + type + " in " + file + ".");
+                }
+            }
+        } catch (EOFException e) {
+            logger.warning("The call recording " + file + " ends in the middle of a record.");
+        } finally {
+            in.close();
+        }
+        return new ArrayList<RecordedCall>(calls.values());
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if(bytes == null) {
+            writeVarLong(out, 0);
+        } else {
+            writeVarLong(out, bytes.length + 1);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if(length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if(b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in the call recording.");
+    }
+}
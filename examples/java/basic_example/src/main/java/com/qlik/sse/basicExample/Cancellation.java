@@ -0,0 +1,102 @@
+package com.qlik.sse.basicexample;
+
+import io.grpc.Context;
+
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tells whether a call has been cancelled, because Qlik abandoned it or because its gRPC deadline
+ * passed. gRPC cancels the Context of the call in both cases, so the Context is captured when the
+ * call starts and can then be checked from any thread, also from the workers that do not run in
+ * the Context. A check is cheap enough to be made for every row.
+ */
+public final class Cancellation {
+
+    private static final Logger logger = Logger.getLogger(Cancellation.class.getName());
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Context context;
+
+    private Cancellation(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * The cancellation of the call that the current thread runs.
+     */
+    public static Cancellation current() {
+        return new Cancellation(Context.current());
+    }
+
+    public boolean isCancelled() {
+        return context.isCancelled();
+    }
+
+    /**
+     * Why the call was cancelled, for the logs: the deadline or the cancellation by the client.
+     */
+    public String getReason() {
+        if(!context.isCancelled()) {
+            return "not cancelled";
+        }
+        Throwable cause = context.cancellationCause();
+        return cause != null && cause.getMessage() != null ? cause.getMessage() : "cancelled by the client";
+    }
+
+    /**
+     * Returns a session that is interrupted when the call is cancelled while the session is open.
+     * The interrupt runs on the thread that cancels the call, so Session.interrupt must not block.
+     */
+    public ScriptBackend.Session interruptible(final ScriptBackend.Session session) {
+        final Context.CancellationListener listener = new Context.CancellationListener() {
+            @Override
+            public void cancelled(Context context) {
+                logger.fine("The call was cancelled, interrupting its script.");
+                session.interrupt();
+            }
+        };
+        context.addListener(listener, DIRECT);
+        return new ScriptBackend.Session() {
+            @Override
+            public void put(String name, Object value) {
+                session.put(name, value);
+            }
+
+            @Override
+            public Object eval() throws Exception {
+                return session.eval();
+            }
+
+            @Override
+            public void interrupt() {
+                session.interrupt();
+            }
+
+            @Override
+            public void close() {
+                context.removeListener(listener);
+                session.close();
+            }
+        };
+    }
+
+    /**
+     * Logs a failure at FINE if it was caused by the cancellation of the call, since the call has
+     * no one to report it to, and at WARNING otherwise.
+     */
+    public void log(Logger target, String message, Throwable t) {
+        if(isCancelled()) {
+            target.fine(message + " The call was cancelled: " + getReason() + ".");
+        } else {
+            target.log(Level.WARNING, message, t);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import com.google.protobuf.CodedInputStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A bundle of rows decoded into columns. The arrays are reused between bundles in the
+ * same call, so a ColumnBatch should only be used by one thread at a time.
+ * 
+ * When decoded from serialized BundledRows, only the positions of the strings are recorded,
+ * and a string column is decoded the first time it is asked for.
+ */
+public class ColumnBatch {
+
+    // The wire format tags of BundledRows.rows, Row.duals, Dual.numData and Dual.strData.
+    private static final int ROWS_TAG = 10;
+    private static final int DUALS_TAG = 10;
+    private static final int NUM_DATA_TAG = 9;
+    private static final int STR_DATA_TAG = 18;
+
+    private int rowCount;
+    private int columnCount;
+    private double[][] numData = new double[0][];
+    private String[][] strData = new String[0][];
+    private byte[] source;
+    private int[][] strOffsets = new int[0][];
+    private int[][] strLengths = new int[0][];
+    private boolean[] stringsDecoded = new boolean[0];
+    private StringDictionary stringDictionary;
+
+    /**
+     * Decodes the strings of serialized bundles through the dictionary, for calls where the
+     * same values repeat.
+     */
+    public void setStringDictionary(StringDictionary stringDictionary) {
+        this.stringDictionary = stringDictionary;
+    }
+
+    public ColumnBatch decode(ServerSideExtension.BundledRows bundledRows) {
+        List<ServerSideExtension.Row> rows = bundledRows.getRowsList();
+        int nbrOfRows = rows.size();
+        int nbrOfColumns = nbrOfRows > 0 ? rows.get(0).getDualsCount() : 0;
+        reset(nbrOfRows, nbrOfColumns);
+        
+        for(int r = 0; r < nbrOfRows; r++) {
+            ServerSideExtension.Row row = rows.get(r);
+            int duals = Math.min(row.getDualsCount(), nbrOfColumns);
+            for(int c = 0; c < duals; c++) {
+                ServerSideExtension.Dual dual = row.getDuals(c);
+                numData[c][r] = dual.getNumData();
+                strData[c][r] = dual.getStrData();
+            }
+            for(int c = duals; c < nbrOfColumns; c++) {
+                numData[c][r] = 0;
+                strData[c][r] = "";
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Decodes the first length bytes of serialized BundledRows. The numbers are read directly
+     * into the columns, the strings are decoded from bytes when a string column is first used,
+     * so bytes must not change while this batch is in use.
+     */
+    public ColumnBatch decode(byte[] bytes, int length) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(bytes, 0, length);
+        int nbrOfRows = 0;
+        int nbrOfColumns = 0;
+        int tag;
+        while((tag = input.readTag()) != 0) {
+            if(tag != ROWS_TAG) {
+                input.skipField(tag);
+                continue;
+            }
+            int rowLength = input.readRawVarint32();
+            if(nbrOfRows == 0) {
+                int limit = input.pushLimit(rowLength);
+                while((tag = input.readTag()) != 0) {
+                    if(tag == DUALS_TAG) {
+                        nbrOfColumns++;
+                    }
+                    input.skipField(tag);
+                }
+                input.popLimit(limit);
+            } else {
+                input.skipRawBytes(rowLength);
+            }
+            nbrOfRows++;
+        }
+        reset(nbrOfRows, nbrOfColumns);
+        resetStrings(nbrOfRows, nbrOfColumns, bytes);
+        
+        input = CodedInputStream.newInstance(bytes, 0, length);
+        int r = 0;
+        while((tag = input.readTag()) != 0) {
+            if(tag != ROWS_TAG) {
+                input.skipField(tag);
+                continue;
+            }
+            int rowLimit = input.pushLimit(input.readRawVarint32());
+            int c = 0;
+            while((tag = input.readTag()) != 0) {
+                if(tag != DUALS_TAG || c >= nbrOfColumns) {
+                    input.skipField(tag);
+                    continue;
+                }
+                int dualLimit = input.pushLimit(input.readRawVarint32());
+                double num = 0;
+                int strOffset = 0;
+                int strLength = 0;
+                while((tag = input.readTag()) != 0) {
+                    if(tag == NUM_DATA_TAG) {
+                        num = input.readDouble();
+                    } else if(tag == STR_DATA_TAG) {
+                        strLength = input.readRawVarint32();
+                        strOffset = input.getTotalBytesRead();
+                        input.skipRawBytes(strLength);
+                    } else {
+                        input.skipField(tag);
+                    }
+                }
+                input.popLimit(dualLimit);
+                numData[c][r] = num;
+                strOffsets[c][r] = strOffset;
+                strLengths[c][r] = strLength;
+                c++;
+            }
+            input.popLimit(rowLimit);
+            for(; c < nbrOfColumns; c++) {
+                numData[c][r] = 0;
+                strLengths[c][r] = 0;
+            }
+            r++;
+        }
+        return this;
+    }
+
+    /**
+     * Copies count rows of another batch, in the order given by rows.
+     */
+    public ColumnBatch select(ColumnBatch source, int[] rows, int count) {
+        reset(count, source.getColumnCount());
+        for(int c = 0; c < columnCount; c++) {
+            double[] num = source.getNumeric(c);
+            String[] str = source.getStrings(c);
+            for(int i = 0; i < count; i++) {
+                numData[c][i] = num[rows[i]];
+                strData[c][i] = str[rows[i]];
+            }
+        }
+        return this;
+    }
+
+    private void resetStrings(int nbrOfRows, int nbrOfColumns, byte[] bytes) {
+        if(strOffsets.length < nbrOfColumns) {
+            strOffsets = new int[nbrOfColumns][];
+            strLengths = new int[nbrOfColumns][];
+            stringsDecoded = new boolean[nbrOfColumns];
+        }
+        for(int c = 0; c < nbrOfColumns; c++) {
+            if(strOffsets[c] == null || strOffsets[c].length < nbrOfRows) {
+                strOffsets[c] = new int[nbrOfRows];
+                strLengths[c] = new int[nbrOfRows];
+            }
+            stringsDecoded[c] = false;
+        }
+        source = bytes;
+    }
+
+    private void decodeStrings(int column) {
+        String[] strings = strData[column];
+        int[] offsets = strOffsets[column];
+        int[] lengths = strLengths[column];
+        for(int r = 0; r < rowCount; r++) {
+            if(lengths[r] == 0) {
+                strings[r] = "";
+            } else if(stringDictionary != null) {
+                strings[r] = stringDictionary.decode(source, offsets[r], lengths[r]);
+            } else {
+                strings[r] = new String(source, offsets[r], lengths[r], StandardCharsets.UTF_8);
+            }
+        }
+        stringsDecoded[column] = true;
+    }
+
+    /**
+     * Allocates the columns for bundles of up to nbrOfRows rows up front, so that they do not
+     * have to be reallocated when the bundles grow.
+     */
+    public void ensureCapacity(int nbrOfRows, int nbrOfColumns) {
+        reset(nbrOfRows, nbrOfColumns);
+        rowCount = 0;
+        columnCount = 0;
+    }
+
+    void reset(int nbrOfRows, int nbrOfColumns) {
+        if(numData.length < nbrOfColumns) {
+            double[][] num = new double[nbrOfColumns][];
+            String[][] str = new String[nbrOfColumns][];
+            System.arraycopy(numData, 0, num, 0, numData.length);
+            System.arraycopy(strData, 0, str, 0, strData.length);
+            numData = num;
+            strData = str;
+        }
+        for(int c = 0; c < nbrOfColumns; c++) {
+            if(numData[c] == null || numData[c].length < nbrOfRows) {
+                numData[c] = new double[nbrOfRows];
+                strData[c] = new String[nbrOfRows];
+            }
+        }
+        rowCount = nbrOfRows;
+        columnCount = nbrOfColumns;
+        source = null;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * The returned array can be longer than the number of rows, only the first
+     * getRowCount() values belong to this batch.
+     */
+    public double[] getNumeric(int column) {
+        return numData[column];
+    }
+
+    public String[] getStrings(int column) {
+        if(source != null && !stringsDecoded[column]) {
+            decodeStrings(column);
+        }
+        return strData[column];
+    }
+
+    public double getNumeric(int column, int row) {
+        return numData[column][row];
+    }
+
+    public String getString(int column, int row) {
+        return getStrings(column)[row];
+    }
+}
@@ -0,0 +1,239 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ConnectorGrpc;
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binds a JavaPlugin with custom marshallers for ExecuteFunction and EvaluateScript. Incoming
+ * BundledRows are kept as bytes, and tensor functions decode them straight into a ColumnBatch and
+ * write their ResultColumn straight to the wire format, so no Row and Dual objects are created
+ * and strings are only decoded when the function reads them.
+ *
+ * Tensor functions are processed one bundle at a time on the gRPC thread. Other functions and
+ * scripts parse the bundles into BundledRows and run through the JavaPlugin as usual.
+ */
+public final class ColumnarConnector {
+
+    private static final Logger logger = Logger.getLogger(ColumnarConnector.class.getName());
+
+    private ColumnarConnector() {
+    }
+
+    public static ServerServiceDefinition bind(final JavaPlugin plugin) {
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(ConnectorGrpc.SERVICE_NAME);
+        for(ServerMethodDefinition<?,?> method : plugin.bindService().getMethods()) {
+            String methodName = method.getMethodDescriptor().getFullMethodName();
+            if(methodName.equals(ConnectorGrpc.METHOD_EXECUTE_FUNCTION.getFullMethodName())) {
+                builder.addMethod(columnar(ConnectorGrpc.METHOD_EXECUTE_FUNCTION), ServerCalls.asyncBidiStreamingCall(
+                    new ServerCalls.BidiStreamingMethod<RawBundle, EncodedBundle>() {
+                        @Override
+                        public StreamObserver<RawBundle> invoke(StreamObserver<EncodedBundle> responseObserver) {
+                            return executeFunction(plugin, (ServerCallStreamObserver<EncodedBundle>) responseObserver);
+                        }
+                    }));
+            } else if(methodName.equals(ConnectorGrpc.METHOD_EVALUATE_SCRIPT.getFullMethodName())) {
+                builder.addMethod(columnar(ConnectorGrpc.METHOD_EVALUATE_SCRIPT), ServerCalls.asyncBidiStreamingCall(
+                    new ServerCalls.BidiStreamingMethod<RawBundle, EncodedBundle>() {
+                        @Override
+                        public StreamObserver<RawBundle> invoke(StreamObserver<EncodedBundle> responseObserver) {
+                            return new ParsingObserver(plugin.evaluateScript(
+                                new EncodingObserver((ServerCallStreamObserver<EncodedBundle>) responseObserver)));
+                        }
+                    }));
+            } else {
+                builder.addMethod(method);
+            }
+        }
+        return builder.build();
+    }
+
+    private static MethodDescriptor<RawBundle, EncodedBundle> columnar(
+        MethodDescriptor<ServerSideExtension.BundledRows, ServerSideExtension.BundledRows> method) {
+        return method.toBuilder(RawBundle.MARSHALLER, EncodedBundle.MARSHALLER).build();
+    }
+
+    private static StreamObserver<RawBundle> executeFunction(JavaPlugin plugin,
+        ServerCallStreamObserver<EncodedBundle> responseObserver) {
+        ServerSideExtension.FunctionRequestHeader functionHeader = PluginServerInterceptor.FUNCTION_REQUEST_HEADER.get();
+        PluginFunction function = functionHeader == null ? null : plugin.getFunctionRegistry().get(functionHeader.getFunctionId());
+        ResultCache resultCache = plugin.getResultCache();
+        if(function instanceof TensorFunction && (resultCache == null || !ResultCache.canCache(function))) {
+            logger.fine("Function " + function.getName() + " is processed on columns.");
+            if(function.hasTrait(PluginFunction.Trait.NO_STORE)) {
+                PluginServerInterceptor.setCacheHeader(PluginServerInterceptor.RESPONSE_HEADERS.get(), "no-store");
+            }
+            TensorFunction tensorFunction = (TensorFunction) function;
+            int dictionarySize = plugin.getDictionarySize();
+            if(dictionarySize > 0 && RowDictionary.canMemoize(function)) {
+                tensorFunction = RowDictionary.memoized(tensorFunction, dictionarySize);
+            }
+            return new TensorCall(tensorFunction, responseObserver, dictionarySize);
+        }
+        return new ParsingObserver(plugin.executeFunction(new EncodingObserver(responseObserver)));
+    }
+
+    /**
+     * Runs a tensor function on the raw bundles of one call.
+     */
+    private static final class TensorCall implements StreamObserver<RawBundle> {
+        private final TensorFunction function;
+        private final ServerCallStreamObserver<EncodedBundle> responseObserver;
+        private final InboundFlowControl flowControl;
+        private final ColumnBatch batch = new ColumnBatch();
+        private final ResultColumn result;
+        private boolean failed;
+
+        TensorCall(TensorFunction function, ServerCallStreamObserver<EncodedBundle> responseObserver, int dictionarySize) {
+            this.function = function;
+            this.responseObserver = responseObserver;
+            this.flowControl = new InboundFlowControl(responseObserver);
+            this.result = new ResultColumn(function.getReturnType());
+            if(dictionarySize > 0) {
+                batch.setStringDictionary(new StringDictionary(dictionarySize));
+            }
+        }
+
+        @Override
+        public void onNext(RawBundle bundle) {
+            if(failed || responseObserver.isCancelled()) {
+                return;
+            }
+            try {
+                bundle.decodeInto(batch);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not decode a bundle for " + function.getName() + ".", e);
+                failed = true;
+                responseObserver.onError(new Throwable("Could not decode the bundle in executeFunction."));
+                return;
+            }
+            result.clear();
+            function.apply(batch, result);
+            responseObserver.onNext(EncodedBundle.encode(result));
+            flowControl.bundleProcessed();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.fine("Columnar executeFunction of " + function.getName() + " was cancelled.");
+            failed = true;
+        }
+
+        @Override
+        public void onCompleted() {
+            if(!failed) {
+                responseObserver.onCompleted();
+            }
+        }
+    }
+
+    /**
+     * Parses raw bundles for the JavaPlugin.
+     */
+    private static final class ParsingObserver implements StreamObserver<RawBundle> {
+        private final StreamObserver<ServerSideExtension.BundledRows> requestObserver;
+
+        ParsingObserver(StreamObserver<ServerSideExtension.BundledRows> requestObserver) {
+            this.requestObserver = requestObserver;
+        }
+
+        @Override
+        public void onNext(RawBundle bundle) {
+            ServerSideExtension.BundledRows bundledRows;
+            try {
+                bundledRows = bundle.toBundledRows();
+            } catch (IOException e) {
+                requestObserver.onError(e);
+                return;
+            }
+            requestObserver.onNext(bundledRows);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            requestObserver.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            requestObserver.onCompleted();
+        }
+    }
+
+    /**
+     * Passes the results of the JavaPlugin on as EncodedBundles, and flow control on to the call,
+     * so that parallel processing and backpressure work as with the generated service.
+     */
+    private static final class EncodingObserver extends ServerCallStreamObserver<ServerSideExtension.BundledRows> {
+        private final ServerCallStreamObserver<EncodedBundle> responseObserver;
+
+        EncodingObserver(ServerCallStreamObserver<EncodedBundle> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void onNext(ServerSideExtension.BundledRows bundledRows) {
+            responseObserver.onNext(new EncodedBundle(bundledRows));
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            responseObserver.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public boolean isReady() {
+            return responseObserver.isReady();
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            responseObserver.setOnReadyHandler(onReadyHandler);
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+            responseObserver.disableAutoInboundFlowControl();
+        }
+
+        @Override
+        public void request(int count) {
+            responseObserver.request(count);
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+            responseObserver.setMessageCompression(enable);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return responseObserver.isCancelled();
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+            responseObserver.setOnCancelHandler(onCancelHandler);
+        }
+
+        @Override
+        public void setCompression(String compression) {
+            responseObserver.setCompression(compression);
+        }
+    }
+}
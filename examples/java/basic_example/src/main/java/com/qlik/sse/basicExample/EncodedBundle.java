@@ -0,0 +1,131 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A response of the columnar Connector service: either BundledRows, or a ResultColumn that was
+ * written straight to the wire format without building Row and Dual messages.
+ */
+public class EncodedBundle {
+
+    private static final int ROWS_TAG = 10;
+    private static final int DUALS_TAG = 10;
+    private static final int NUM_DATA_TAG = 9;
+    private static final int STR_DATA_TAG = 18;
+
+    private static final MethodDescriptor.Marshaller<ServerSideExtension.BundledRows> PROTO_MARSHALLER =
+        ProtoUtils.marshaller(ServerSideExtension.BundledRows.getDefaultInstance());
+
+    public static final MethodDescriptor.Marshaller<EncodedBundle> MARSHALLER = new MethodDescriptor.Marshaller<EncodedBundle>() {
+        @Override
+        public InputStream stream(EncodedBundle bundle) {
+            if(bundle.bundledRows != null) {
+                return PROTO_MARSHALLER.stream(bundle.bundledRows);
+            }
+            return new ByteArrayInputStream(bundle.bytes);
+        }
+
+        @Override
+        public EncodedBundle parse(InputStream stream) {
+            return new EncodedBundle(PROTO_MARSHALLER.parse(stream));
+        }
+    };
+
+    private final ServerSideExtension.BundledRows bundledRows;
+    private final byte[] bytes;
+    private final int rowCount;
+
+    public EncodedBundle(ServerSideExtension.BundledRows bundledRows) {
+        this.bundledRows = bundledRows;
+        this.bytes = null;
+        this.rowCount = bundledRows.getRowsCount();
+    }
+
+    private EncodedBundle(byte[] bytes, int rowCount) {
+        this.bundledRows = null;
+        this.bytes = bytes;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Serializes the column as BundledRows with one Dual per Row. Like the generated code, fields
+     * that have their default value are left out.
+     */
+    public static EncodedBundle encode(ResultColumn column) {
+        ServerSideExtension.DataType dataType = column.getDataType();
+        boolean numeric = dataType != ServerSideExtension.DataType.STRING;
+        boolean strings = dataType != ServerSideExtension.DataType.NUMERIC;
+        int size = column.size();
+        int totalBytes = 0;
+        for(int r = 0; r < size; r++) {
+            int dualBytes = dualSize(column, r, numeric, strings);
+            int rowBytes = 1 + CodedOutputStream.computeUInt32SizeNoTag(dualBytes) + dualBytes;
+            totalBytes += 1 + CodedOutputStream.computeUInt32SizeNoTag(rowBytes) + rowBytes;
+        }
+        byte[] bytes = new byte[totalBytes];
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        try {
+            for(int r = 0; r < size; r++) {
+                int dualBytes = dualSize(column, r, numeric, strings);
+                output.writeUInt32NoTag(ROWS_TAG);
+                output.writeUInt32NoTag(1 + CodedOutputStream.computeUInt32SizeNoTag(dualBytes) + dualBytes);
+                output.writeUInt32NoTag(DUALS_TAG);
+                output.writeUInt32NoTag(dualBytes);
+                if(numeric && column.getNumeric(r) != 0) {
+                    output.writeUInt32NoTag(NUM_DATA_TAG);
+                    output.writeDoubleNoTag(column.getNumeric(r));
+                }
+                if(strings && !column.getString(r).isEmpty()) {
+                    output.writeUInt32NoTag(STR_DATA_TAG);
+                    output.writeStringNoTag(column.getString(r));
+                }
+            }
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw Status.INTERNAL.withDescription("Could not encode the result.").withCause(e).asRuntimeException();
+        }
+        return new EncodedBundle(bytes, size);
+    }
+
+    private static int dualSize(ResultColumn column, int row, boolean numeric, boolean strings) {
+        int dualBytes = 0;
+        if(numeric && column.getNumeric(row) != 0) {
+            dualBytes += 9;
+        }
+        if(strings) {
+            String str = column.getString(row);
+            if(!str.isEmpty()) {
+                dualBytes += 1 + CodedOutputStream.computeStringSizeNoTag(str);
+            }
+        }
+        return dualBytes;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getSerializedSize() {
+        return bundledRows != null ? bundledRows.getSerializedSize() : bytes.length;
+    }
+
+    /**
+     * Returns the rows, parsing them if the bundle was encoded from a ResultColumn.
+     */
+    public ServerSideExtension.BundledRows toBundledRows() throws IOException {
+        if(bundledRows != null) {
+            return bundledRows;
+        }
+        return ServerSideExtension.BundledRows.parseFrom(bytes);
+    }
+}
@@ -0,0 +1,80 @@
+package com.qlik.sse.basicexample;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Picks how an ExecuteFunction call is executed from the cardinality of its CommonRequestHeader,
+ * which tells the number of rows before any data arrives, and the traits of the function:
+ * <ul>
+ * <li>INLINE: tiny calls are processed on the gRPC thread, with automatic flow control and
+ * without re-bundling the responses, since the extra machinery costs more than it saves.</li>
+ * <li>PARALLEL: large calls to PARALLEL_SAFE functions are processed on the worker pool.</li>
+ * <li>SERIAL: everything else is processed on the gRPC thread, one bundle at a time.</li>
+ * </ul>
+ * Calls without a cardinality keep the behavior from before the planner: PARALLEL when the
+ * function and the plugin allow it, SERIAL otherwise. The number of calls per strategy is counted.
+ */
+public class ExecutionPlanner {
+
+    private static final Logger logger = Logger.getLogger(ExecutionPlanner.class.getName());
+
+    public static final long DEFAULT_INLINE_MAX_ROWS = 1000;
+    public static final long DEFAULT_PARALLEL_MIN_ROWS = 100000;
+
+    /** Buffers are presized to the cardinality, but not beyond this many rows. */
+    static final int MAX_PRESIZED_ROWS = 8192;
+
+    public enum Strategy { INLINE, SERIAL, PARALLEL }
+
+    private final long inlineMaxRows;
+    private final long parallelMinRows;
+    private final LongAdder[] counts = new LongAdder[Strategy.values().length];
+
+    public ExecutionPlanner() {
+        this(DEFAULT_INLINE_MAX_ROWS, DEFAULT_PARALLEL_MIN_ROWS);
+    }
+
+    /**
+     * Calls with at most inlineMaxRows rows run INLINE, and calls with at least parallelMinRows
+     * rows run PARALLEL if they can. 0 turns the inline strategy off.
+     */
+    public ExecutionPlanner(long inlineMaxRows, long parallelMinRows) {
+        this.inlineMaxRows = inlineMaxRows;
+        this.parallelMinRows = parallelMinRows;
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the strategy for a call, where cardinality is 0 if it is not known and parallel
+     * tells whether the plugin has a worker pool that can process the function.
+     */
+    public Strategy plan(PluginFunction function, long cardinality, boolean parallel) {
+        Strategy strategy;
+        if(cardinality <= 0) {
+            strategy = parallel ? Strategy.PARALLEL : Strategy.SERIAL;
+        } else if(cardinality <= inlineMaxRows) {
+            strategy = Strategy.INLINE;
+        } else if(parallel && cardinality >= parallelMinRows) {
+            strategy = Strategy.PARALLEL;
+        } else {
+            strategy = Strategy.SERIAL;
+        }
+        counts[strategy.ordinal()].increment();
+        logger.fine("Function " + function.getName() + " with cardinality " + cardinality + " runs " + strategy + ".");
+        return strategy;
+    }
+
+    /**
+     * The number of rows to presize the buffers of a call for, 0 if the cardinality is not known.
+     */
+    public static int presizedRows(long cardinality) {
+        return (int) Math.max(0, Math.min(cardinality, MAX_PRESIZED_ROWS));
+    }
+
+    public long getCount(Strategy strategy) {
+        return counts[strategy.ordinal()].sum();
+    }
+}
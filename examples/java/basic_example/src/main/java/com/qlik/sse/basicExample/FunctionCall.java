@@ -0,0 +1,24 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+/**
+ * The state of one ExecuteFunction call. The methods are called in order, never concurrently.
+ */
+public interface FunctionCall {
+
+    /**
+     * Returns the rows to send back for the bundle, or null if there is nothing to send yet.
+     */
+    ServerSideExtension.BundledRows onBundle(ServerSideExtension.BundledRows bundledRows);
+
+    /**
+     * Returns the rows to send back when all bundles are received, or null if there is nothing more to send.
+     */
+    ServerSideExtension.BundledRows onCompleted();
+
+    /**
+     * Frees what the call holds when it ends without onCompleted, because it was cancelled or failed.
+     */
+    void cancel();
+}
@@ -0,0 +1,46 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * The functions of the plugin, indexed by function id. The id of a function is the order
+ * in which it was registered.
+ */
+public class FunctionRegistry {
+
+    private static final Logger logger = Logger.getLogger(FunctionRegistry.class.getName());
+
+    private volatile PluginFunction[] functions = new PluginFunction[0];
+
+    public synchronized int register(PluginFunction function) {
+        int functionId = functions.length;
+        PluginFunction[] newFunctions = Arrays.copyOf(functions, functionId + 1);
+        newFunctions[functionId] = function;
+        functions = newFunctions;
+        logger.fine("Registered function " + function.getName() + " with id " + functionId + ".");
+        return functionId;
+    }
+
+    public PluginFunction get(int functionId) {
+        PluginFunction[] current = functions;
+        if(functionId < 0 || functionId >= current.length) {
+            return null;
+        }
+        return current[functionId];
+    }
+
+    public int size() {
+        return functions.length;
+    }
+
+    public ServerSideExtension.Capabilities.Builder addFunctionDefinitions(ServerSideExtension.Capabilities.Builder capabilities) {
+        PluginFunction[] current = functions;
+        for(int functionId = 0; functionId < current.length; functionId++) {
+            capabilities.addFunctions(current[functionId].toFunctionDefinition(functionId));
+        }
+        return capabilities;
+    }
+}
@@ -0,0 +1,254 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates scripts with GraalVM JavaScript. All contexts share one Engine, so a script that is
+ * parsed and compiled in one context is reused by the others, and the Source objects of the most
+ * recently used scripts are cached. Every session gets a new context, which is closed with the
+ * session, so the globals that a script defines are not seen by the scripts of later calls. At
+ * most poolSize contexts are open at a time. Scripts are JIT-compiled on GraalVM, or on a JDK
+ * with the Graal compiler enabled.
+ *
+ * A session can be interrupted while it evaluates. Context.interrupt waits for the script to stop,
+ * so it runs on a thread of the backend and never on the thread that cancels the call.
+ */
+public class GraalScriptBackend implements ScriptBackend {
+
+    private static final Logger logger = Logger.getLogger(GraalScriptBackend.class.getName());
+    private static final String LANGUAGE = "js";
+    private static final Duration INTERRUPT_TIMEOUT = Duration.ofSeconds(10);
+
+    private final Engine engine;
+    private final int poolSize;
+    private final int cacheSize;
+    private final Semaphore permits;
+    private final Set<Context> open = ConcurrentHashMap.newKeySet();
+    private final Map<String, Source> sources;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong contexts = new AtomicLong();
+    private final ExecutorService interrupter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "sse-script-interrupt");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public GraalScriptBackend(int poolSize, final int cacheSize) {
+        this.engine = Engine.newBuilder()
+            .option("engine.WarnInterpreterOnly", "false")
+            .build();
+        if(!engine.getLanguages().containsKey(LANGUAGE)) {
+            engine.close();
+            throw new IllegalStateException("GraalVM JavaScript is not installed.");
+        }
+        this.poolSize = Math.max(1, poolSize);
+        this.cacheSize = cacheSize;
+        this.permits = new Semaphore(this.poolSize);
+        this.sources = new LinkedHashMap<String, Source>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Source> eldest) {
+                if(size() > cacheSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public ScriptBackend.Session open(ServerSideExtension.ScriptRequestHeader header) throws Exception {
+        Source source = source(header.getScript());
+        permits.acquire();
+        try {
+            return new Session(newContext(), source);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private synchronized Source source(String script) {
+        Source source = sources.get(script);
+        if(source != null) {
+            hits.incrementAndGet();
+            return source;
+        }
+        misses.incrementAndGet();
+        source = Source.create(LANGUAGE, script);
+        if(cacheSize > 0) {
+            sources.put(script, source);
+        }
+        return source;
+    }
+
+    private Context newContext() {
+        Context context = Context.newBuilder(LANGUAGE)
+            .engine(engine)
+            .allowHostAccess(HostAccess.ALL)
+            .build();
+        open.add(context);
+        contexts.incrementAndGet();
+        return context;
+    }
+
+    /**
+     * Opens and closes a context, which initializes JavaScript in the shared engine.
+     */
+    @Override
+    public void prestart() {
+        Context context = newContext();
+        open.remove(context);
+        context.close();
+        logger.fine("Initialized JavaScript in the script engine.");
+    }
+
+    @Override
+    public String getName() {
+        return "graal";
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String getStats() {
+        return "contexts: " + open.size() + "/" + poolSize + ", created: " + contexts.get() + ", hits: " + getHits()
+            + ", misses: " + getMisses() + ", evictions: " + getEvictions();
+    }
+
+    @Override
+    public void close() {
+        interrupter.shutdownNow();
+        for(Context context : open) {
+            context.close(true);
+        }
+        engine.close();
+    }
+
+    /**
+     * Converts a script value to the Java objects that javax.script engines return.
+     */
+    static Object toJava(Value value) {
+        if(value == null || value.isNull()) {
+            return null;
+        }
+        if(value.isNumber()) {
+            if(value.fitsInInt()) {
+                return value.asInt();
+            }
+            if(value.fitsInLong()) {
+                return value.asLong();
+            }
+            return value.asDouble();
+        }
+        if(value.isString()) {
+            return value.asString();
+        }
+        if(value.isBoolean()) {
+            return value.asBoolean();
+        }
+        if(value.isHostObject()) {
+            return value.asHostObject();
+        }
+        return value;
+    }
+
+    private final class Session implements ScriptBackend.Session {
+        private final Context context;
+        private final Source source;
+        private final Value bindings;
+        private boolean closed;
+
+        Session(Context context, Source source) {
+            this.context = context;
+            this.source = source;
+            this.bindings = context.getBindings(LANGUAGE);
+        }
+
+        @Override
+        public void put(String name, Object value) {
+            bindings.putMember(name, value);
+        }
+
+        @Override
+        public Object eval() {
+            return toJava(context.eval(source));
+        }
+
+        @Override
+        public void interrupt() {
+            interrupter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    interruptNow();
+                }
+            });
+        }
+
+        /**
+         * Holds the lock of the session, so that the context can not be closed while it is interrupted.
+         */
+        private synchronized void interruptNow() {
+            if(closed) {
+                return;
+            }
+            try {
+                context.interrupt(INTERRUPT_TIMEOUT);
+            } catch (TimeoutException e) {
+                logger.log(Level.WARNING, "The script did not stop within " + INTERRUPT_TIMEOUT.getSeconds() + " seconds.", e);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            open.remove(context);
+            try {
+                context.close();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+}
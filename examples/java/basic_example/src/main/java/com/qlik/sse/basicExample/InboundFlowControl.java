@@ -0,0 +1,40 @@
+package com.qlik.sse.basicexample;
+
+import io.grpc.stub.ServerCallStreamObserver;
+
+/**
+ * Reads the bundles of a call one at a time, and only while the response stream is ready, so that
+ * a slow reader on the Qlik side stops the plugin from reading instead of making results pile up
+ * in memory. Must be created from the service method, before the call is started.
+ */
+public class InboundFlowControl implements Runnable {
+
+    private final ServerCallStreamObserver<?> responseObserver;
+    private boolean waiting;
+
+    public InboundFlowControl(ServerCallStreamObserver<?> responseObserver) {
+        this.responseObserver = responseObserver;
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.setOnReadyHandler(this);
+        responseObserver.request(1);
+    }
+
+    /**
+     * Called when a bundle is processed, requests the next bundle as soon as the response stream is ready.
+     */
+    public synchronized void bundleProcessed() {
+        if(responseObserver.isReady()) {
+            responseObserver.request(1);
+        } else {
+            waiting = true;
+        }
+    }
+
+    @Override
+    public synchronized void run() {
+        if(waiting && responseObserver.isReady()) {
+            waiting = false;
+            responseObserver.request(1);
+        }
+    }
+}
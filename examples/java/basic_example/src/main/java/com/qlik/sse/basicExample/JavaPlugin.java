@@ -2,35 +2,139 @@ package com.qlik.sse.basicexample;
 
 import qlik.sse.ServerSideExtension;
 
-import io.grpc.Metadata;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import static io.grpc.Metadata.BINARY_BYTE_MARSHALLER;
-import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Date;
-
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 
     
 public class JavaPlugin extends qlik.sse.ConnectorGrpc.ConnectorImplBase {
      
     private static final Logger logger = Logger.getLogger(JavaPlugin.class.getName());
-    private ThreadLocal<Metadata> metadata = new ThreadLocal<Metadata>();
     
-    private static final int HELLO_WORLD = 0;
-    private static final int SUM_OF_ROWS = 1;
-    private static final int SUM_OF_COLUMN = 2;
-    private static final int STRING_AGGREGATION = 3;
-    private static final int CACHE = 4;
-    private static final int NO_CACHE = 5;
+    private static final int DEFAULT_SCRIPT_CACHE_SIZE = 64;
+    
+    private final ScriptBackend scriptBackend;
+    private final MemoryBudget aggregationMemory;
+    private final FunctionRegistry functionRegistry = new FunctionRegistry();
+    private Executor workerExecutor;
+    private int maxBundlesInFlight;
+    private ResultCache resultCache;
+    private ExecutionPlanner executionPlanner = new ExecutionPlanner();
+    private int responseBundleBytes;
+    private long responseFlushMillis;
+    private ScheduledExecutorService flushTimer;
+    private int dictionarySize;
+    private volatile ServerSideExtension.Capabilities capabilities;
+    
+    public JavaPlugin() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_SCRIPT_CACHE_SIZE, BasicFunctions.DEFAULT_MAX_AGGREGATED_STRING_LENGTH);
+    }
+    
+    public JavaPlugin(int scriptEnginePoolSize, int scriptCacheSize, int maxAggregatedStringLength) {
+        this(ScriptBackends.create("auto", scriptEnginePoolSize, scriptCacheSize), maxAggregatedStringLength);
+    }
+    
+    public JavaPlugin(ScriptBackend scriptBackend, int maxAggregatedStringLength) {
+        this(scriptBackend, maxAggregatedStringLength, MemoryBudget.unlimited());
+    }
+    
+    /**
+     * Aggregations keep their state within aggregationMemory, and spill to disk beyond it.
+     */
+    public JavaPlugin(ScriptBackend scriptBackend, int maxAggregatedStringLength, MemoryBudget aggregationMemory) {
+        this.scriptBackend = scriptBackend;
+        this.aggregationMemory = aggregationMemory;
+        BasicFunctions.registerAll(functionRegistry, maxAggregatedStringLength, aggregationMemory);
+    }
+    
+    public FunctionRegistry getFunctionRegistry() {
+        return functionRegistry;
+    }
+    
+    public MemoryBudget getAggregationMemory() {
+        return aggregationMemory;
+    }
+    
+    /**
+     * Lets PARALLEL_SAFE functions process up to maxBundlesInFlight bundles of a call
+     * concurrently on the executor. With a null executor, bundles are processed on the gRPC thread.
+     */
+    public void setWorkerExecutor(Executor workerExecutor, int maxBundlesInFlight) {
+        this.workerExecutor = workerExecutor;
+        this.maxBundlesInFlight = maxBundlesInFlight;
+    }
+    
+    /**
+     * Caches the results of DETERMINISTIC tensor functions in the plugin. Off by default.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+    
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+    
+    /**
+     * Replaces the planner that picks the execution strategy of ExecuteFunction calls from their cardinality.
+     */
+    public void setExecutionPlanner(ExecutionPlanner executionPlanner) {
+        this.executionPlanner = executionPlanner;
+    }
+    
+    public ExecutionPlanner getExecutionPlanner() {
+        return executionPlanner;
+    }
     
-    public void setMetadata(Metadata metadata) {
-        this.metadata.set(metadata);
+    /**
+     * Evaluates DETERMINISTIC and DETERMINISTIC_IN_CALL tensor functions, and tensor scripts with the
+     * 'use deterministic' directive, once per distinct row of a call, with up to dictionarySize distinct
+     * rows per call. 0, the default, turns it off.
+     */
+    public void setDictionarySize(int dictionarySize) {
+        this.dictionarySize = dictionarySize;
+    }
+    
+    public int getDictionarySize() {
+        return dictionarySize;
+    }
+    
+    /**
+     * Sends results in BundledRows of about targetBytes serialized bytes, and flushes rows that have
+     * waited for maxLatencyMillis on the timer. A targetBytes of 0 sends the results as the functions return them.
+     */
+    public void setResponseBundling(int targetBytes, long maxLatencyMillis, ScheduledExecutorService flushTimer) {
+        this.responseBundleBytes = targetBytes;
+        this.responseFlushMillis = maxLatencyMillis;
+        this.flushTimer = flushTimer;
+    }
+    
+    public ScriptBackend getScriptBackend() {
+        return scriptBackend;
+    }
+    
+    /**
+     * The capabilities are built once, and again only when functions have been registered since.
+     */
+    public ServerSideExtension.Capabilities capabilities() {
+        ServerSideExtension.Capabilities current = capabilities;
+        if(current == null || current.getFunctionsCount() != functionRegistry.size()) {
+            current = functionRegistry.addFunctionDefinitions(
+                ServerSideExtension.Capabilities.newBuilder()
+                .setAllowScript(true)
+                .setPluginIdentifier("Qlik java plugin")
+                .setPluginVersion("v1.0.0"))
+                .build();
+            capabilities = current;
+        }
+        return current;
     }
     
      @Override
@@ -39,64 +143,7 @@ public class JavaPlugin extends qlik.sse.ConnectorGrpc.ConnectorImplBase {
          
          logger.info("getCapabilities called.");
          
-         ServerSideExtension.Capabilities pluginCapabilities = ServerSideExtension.Capabilities.newBuilder()
-             .setAllowScript(true)
-             .setPluginIdentifier("Qlik java plugin")
-             .setPluginVersion("v1.0.0")
-             .addFunctions(ServerSideExtension.FunctionDefinition.newBuilder()
-                 .setName("HelloWorld")
-                 .setFunctionId(HELLO_WORLD)
-                 .setFunctionType(ServerSideExtension.FunctionType.TENSOR)
-                 .setReturnType(ServerSideExtension.DataType.STRING)
-                 .addParams(ServerSideExtension.Parameter.newBuilder()
-                     .setName("str1")
-                     .setDataType(ServerSideExtension.DataType.STRING)))
-             .addFunctions(ServerSideExtension.FunctionDefinition.newBuilder()
-                 .setName("SumOfRows")
-                 .setFunctionId(SUM_OF_ROWS)
-                 .setFunctionType(ServerSideExtension.FunctionType.TENSOR)
-                 .setReturnType(ServerSideExtension.DataType.NUMERIC)
-                 .addParams(ServerSideExtension.Parameter.newBuilder()
-                     .setName("col1")
-                     .setDataType(ServerSideExtension.DataType.NUMERIC))
-                 .addParams(ServerSideExtension.Parameter.newBuilder()
-                     .setName("col2")
-                     .setDataType(ServerSideExtension.DataType.NUMERIC)))
-             .addFunctions(ServerSideExtension.FunctionDefinition.newBuilder()
-                 .setName("SumOfColumn")
-                 .setFunctionId(SUM_OF_COLUMN)
-                 .setFunctionType(ServerSideExtension.FunctionType.AGGREGATION)
-                 .setReturnType(ServerSideExtension.DataType.NUMERIC)
-                 .addParams(ServerSideExtension.Parameter.newBuilder()
-                     .setName("column")
-                     .setDataType(ServerSideExtension.DataType.NUMERIC)))
-             .addFunctions(ServerSideExtension.FunctionDefinition.newBuilder()
-                 .setName("StringAggregation")
-                 .setFunctionId(STRING_AGGREGATION)
-                 .setFunctionType(ServerSideExtension.FunctionType.AGGREGATION)
-                 .setReturnType(ServerSideExtension.DataType.STRING)
-                 .addParams(ServerSideExtension.Parameter.newBuilder()
-                     .setName("columnOfStrings")
-                     .setDataType(ServerSideExtension.DataType.STRING)))
-             .addFunctions(ServerSideExtension.FunctionDefinition.newBuilder()
-                 .setName("Cache")
-                 .setFunctionId(CACHE)
-                 .setFunctionType(ServerSideExtension.FunctionType.TENSOR)
-                 .setReturnType(ServerSideExtension.DataType.STRING)
-                 .addParams(ServerSideExtension.Parameter.newBuilder()
-                     .setName("columnOfStrings")
-                     .setDataType(ServerSideExtension.DataType.STRING)))
-             .addFunctions(ServerSideExtension.FunctionDefinition.newBuilder()
-                 .setName("NoCache")
-                 .setFunctionId(NO_CACHE)
-                 .setFunctionType(ServerSideExtension.FunctionType.TENSOR)
-                 .setReturnType(ServerSideExtension.DataType.STRING)
-                 .addParams(ServerSideExtension.Parameter.newBuilder()
-                     .setName("columnOfStrings")
-                     .setDataType(ServerSideExtension.DataType.STRING)))
-             .build();
-         
-         responseObserver.onNext(pluginCapabilities);
+         responseObserver.onNext(capabilities());
          responseObserver.onCompleted();
          logger.fine("getCapabilities completed.");
      }
@@ -108,277 +155,443 @@ public class JavaPlugin extends qlik.sse.ConnectorGrpc.ConnectorImplBase {
          logger.fine("executeFunction called.");
          final int functionId;
          
-         try {
-             functionId = ServerSideExtension.FunctionRequestHeader
-             .parseFrom(metadata.get().get(Metadata.Key.of("qlik-functionrequestheader-bin", BINARY_BYTE_MARSHALLER))).getFunctionId();
-             logger.fine("Function nbr " + functionId + " was called.");
-         } catch (Exception e) {
-             logger.log(Level.WARNING, "Exception when trying to get the function request header.", e);
+         ServerSideExtension.FunctionRequestHeader functionHeader = PluginServerInterceptor.FUNCTION_REQUEST_HEADER.get();
+         if(functionHeader == null) {
+             logger.log(Level.WARNING, "The function request header is missing.");
              responseObserver.onError(new Throwable("Exception when trying to get the function request header in executeFunction."));
              responseObserver.onCompleted();
              return responseObserver;
          }
+         functionId = functionHeader.getFunctionId();
+         logger.fine("Function nbr " + functionId + " was called.");
          logger.info("executeFunction called. Function Id: " + functionId + ".");
          
-         final ServerSideExtension.BundledRows.Builder bundledRowsBuilder = ServerSideExtension.BundledRows.newBuilder();
-         final List<Double> columnSum = new ArrayList();
-         final StringBuilder stringBuilder = new StringBuilder();
+         PluginFunction function = functionRegistry.get(functionId);
+         if(function == null) {
+             logger.log(Level.WARNING, "Incorrect function id.");
+             responseObserver.onError(new Throwable("Incorrect function id in executeFunction."));
+             responseObserver.onCompleted();
+             return responseObserver;
+         }
+         if(function.hasTrait(PluginFunction.Trait.NO_STORE)) {
+             PluginServerInterceptor.setCacheHeader(PluginServerInterceptor.RESPONSE_HEADERS.get(), "no-store");
+         }
+         if(dictionarySize > 0 && RowDictionary.canMemoize(function)) {
+             function = RowDictionary.memoized((TensorFunction) function, dictionarySize);
+         }
+         if(resultCache != null && ResultCache.canCache(function)) {
+             function = resultCache.cached(functionId, function);
+         }
+         ServerSideExtension.CommonRequestHeader commonHeader = PluginServerInterceptor.COMMON_REQUEST_HEADER.get();
+         long cardinality = commonHeader != null ? commonHeader.getCardinality() : 0;
+         boolean parallel = workerExecutor != null && ParallelBundleProcessor.canProcess(function)
+             && responseObserver instanceof ServerCallStreamObserver;
+         ExecutionPlanner.Strategy strategy = executionPlanner.plan(function, cardinality, parallel);
+         if(strategy == ExecutionPlanner.Strategy.PARALLEL) {
+             logger.fine("Function " + function.getName() + " is processed in parallel.");
+             return new ParallelBundleProcessor((ServerCallStreamObserver<ServerSideExtension.BundledRows>) responseObserver, 
+                 responseStream(responseObserver), workerExecutor, function, maxBundlesInFlight);
+         }
+         final FunctionCall call = function.newCall(ExecutionPlanner.presizedRows(cardinality));
+         final Cancellation cancellation = Cancellation.current();
+         final boolean inline = strategy == ExecutionPlanner.Strategy.INLINE;
+         final StreamObserver<ServerSideExtension.BundledRows> output = inline ? responseObserver : responseStream(responseObserver);
+         final InboundFlowControl flowControl = inline ? null : inboundFlowControl(responseObserver);
          
          return new io.grpc.stub.StreamObserver<qlik.sse.ServerSideExtension.BundledRows>() {
              
              @Override
              public void onNext(qlik.sse.ServerSideExtension.BundledRows bundledRows) {
                  logger.fine("onNext in executeFunction called.");
-                 switch(functionId) {
-                     case HELLO_WORLD:  responseObserver.onNext(helloWorld(bundledRows));
-                              break;
-                     case SUM_OF_ROWS:  responseObserver.onNext(sumOfRows(bundledRows));
-                              break;
-                     case SUM_OF_COLUMN:  columnSum.add(sumOfColumn(bundledRows));
-                              break;
-                     case STRING_AGGREGATION:  stringBuilder.append(stringAggregation(bundledRows));
-                              break;
-                     case CACHE:  responseObserver.onNext(cache(bundledRows));
-                              break;
-                     case NO_CACHE:  responseObserver.onNext(noCache(bundledRows));
-                              break;
-                     default: logger.log(Level.WARNING, "Incorrect function id.");
-                              responseObserver.onError(new Throwable("Incorrect function id in onNext in executeFunction."));
-                              responseObserver.onCompleted();
-                              break;
+                 if(cancellation.isCancelled()) {
+                     logger.fine("The call was cancelled, the bundle is skipped.");
+                     return;
+                 }
+                 ServerSideExtension.BundledRows result;
+                 try {
+                     result = call.onBundle(bundledRows);
+                 } catch (RuntimeException e) {
+                     call.cancel();
+                     throw e;
+                 }
+                 if(result != null) {
+                     output.onNext(result);
+                 }
+                 if(flowControl != null) {
+                     flowControl.bundleProcessed();
                  }
                  logger.fine("onNext in executeFunction completed.");
              }
              
+             /**
+              * gRPC only calls onError when the call is cancelled, and nothing can be sent after that.
+              */
              @Override
              public void onError(Throwable t) {
-                 logger.log(Level.WARNING, "Encountered error in executeFunction.", t);
-                 responseObserver.onCompleted();
+                 logger.fine("executeFunction was cancelled: " + cancellation.getReason() + ".");
+                 call.cancel();
+                 ResponseBundler.discard(output);
              }
              
              @Override
              public void onCompleted() {
                  logger.fine("onCompleted in executeFunction called.");
-                 switch(functionId) {
-                     case SUM_OF_COLUMN: responseObserver.onNext(bundledRowsBuilder.addRows(ServerSideExtension.Row.newBuilder()
-                         .addDuals(ServerSideExtension.Dual.newBuilder().setNumData(sum(columnSum)))).build());
-                         break;
-                     case STRING_AGGREGATION: responseObserver.onNext(bundledRowsBuilder.addRows(ServerSideExtension.Row.newBuilder()
-                         .addDuals(ServerSideExtension.Dual.newBuilder().setStrData(stringBuilder.toString()))).build());
-                         break;
-                     default:
-                         break;
+                 if(cancellation.isCancelled()) {
+                     call.cancel();
+                     return;
+                 }
+                 ServerSideExtension.BundledRows result = call.onCompleted();
+                 if(result != null) {
+                     output.onNext(result);
                  }
-                 responseObserver.onCompleted();
+                 output.onCompleted();
                  logger.fine("onCompleted in executeFunction completed.");
              }
          };
      }
      
-     private double sum(List<Double> list) {
-         logger.finer("sum(List<Double>) called.");
-         double sum = 0;
-         for(double d : list) {
-             sum += d;
-         }
-         logger.finer("sum(List<Double>) completed with sum: " + sum + ".");
-         return sum;
-     }
- 
-     private ServerSideExtension.BundledRows helloWorld(ServerSideExtension.BundledRows bundledRows){
-         logger.fine("helloWorld called (and completed).");
-         return bundledRows;
-     }
-     
-     private ServerSideExtension.BundledRows sumOfRows(ServerSideExtension.BundledRows bundledRows) {
-         logger.fine("Function SumOfRows called.");
-         ServerSideExtension.BundledRows.Builder result = ServerSideExtension.BundledRows.newBuilder();
-         ServerSideExtension.Row.Builder rowBuilder;
-         ServerSideExtension.Dual.Builder dualBuilder;
-         double rowSum;
-         for(ServerSideExtension.Row row : bundledRows.getRowsList()) {
-             rowBuilder = ServerSideExtension.Row.newBuilder();
-             dualBuilder = ServerSideExtension.Dual.newBuilder();
-             rowSum = 0;
-             for(ServerSideExtension.Dual dual : row.getDualsList()) {
-                 rowSum += dual.getNumData(); 
-             }
-             result.addRows(rowBuilder.addDuals(dualBuilder.setNumData(rowSum)));
-         }
-         logger.fine("Function SumOfRows completed.");
-         return result.build();
-     }
-     
-     private double sumOfColumn(ServerSideExtension.BundledRows bundledRows) {
-         logger.fine("Function SumOfColumn called.");
-         double columnSum = 0;
-         for(ServerSideExtension.Row row : bundledRows.getRowsList()) {
-             columnSum += row.getDuals(0).getNumData();
-         }
-         logger.fine("Function SumOfColumn completed.");
-         return columnSum;
-     }
-     
-     private String stringAggregation(ServerSideExtension.BundledRows bundledRows) {
-         logger.fine("Function StringAggregation called.");
-         StringBuilder strBuilder = new StringBuilder();
-         for(ServerSideExtension.Row row : bundledRows.getRowsList()) {
-             strBuilder.append(row.getDuals(0).getStrData());
-         }
-         logger.fine("Function StringAggregation completed.");
-         return strBuilder.toString();
-     }
-     
-     private ServerSideExtension.BundledRows cache(ServerSideExtension.BundledRows bundledRows) {
-         logger.fine("Function Cache called.");
-         ServerSideExtension.BundledRows.Builder bundledRowsBuilder = ServerSideExtension.BundledRows.newBuilder();
-         ServerSideExtension.Row.Builder rowBuilder;
-         ServerSideExtension.Dual.Builder dualBuilder;
-         
-         for(ServerSideExtension.Row row : bundledRows.getRowsList()) {
-             StringBuilder strBuilder = new StringBuilder();
-             strBuilder.append(row.getDuals(0).getStrData()).append("___").append(new Date().toString());
-             rowBuilder = ServerSideExtension.Row.newBuilder();
-             dualBuilder = ServerSideExtension.Dual.newBuilder();
-             bundledRowsBuilder.addRows(rowBuilder.addDuals(dualBuilder.setStrData(strBuilder.toString())));
-         }
-         logger.fine("Function Cache completed.");
-         return bundledRowsBuilder.build();
-     }
-     
-     private ServerSideExtension.BundledRows noCache(ServerSideExtension.BundledRows bundledRows) {
-         logger.fine("Function NoCache called.");
-         
-         ServerSideExtension.BundledRows.Builder bundledRowsBuilder = ServerSideExtension.BundledRows.newBuilder();
-         ServerSideExtension.Row.Builder rowBuilder;
-         ServerSideExtension.Dual.Builder dualBuilder;
-         
-         for(ServerSideExtension.Row row : bundledRows.getRowsList()) {
-             StringBuilder strBuilder = new StringBuilder();
-             strBuilder.append(row.getDuals(0).getStrData()).append("___").append(new Date().toString());
-             rowBuilder = ServerSideExtension.Row.newBuilder();
-             dualBuilder = ServerSideExtension.Dual.newBuilder();
-             bundledRowsBuilder.addRows(rowBuilder.addDuals(dualBuilder.setStrData(strBuilder.toString())));
-         }
-         logger.fine("Function NoCache completed.");
-         return bundledRowsBuilder.build();
-     }
- 
      @Override
      public io.grpc.stub.StreamObserver<qlik.sse.ServerSideExtension.BundledRows> evaluateScript(
          final io.grpc.stub.StreamObserver<qlik.sse.ServerSideExtension.BundledRows> responseObserver) {
          
          logger.info("evaluateScript called");
-         final ServerSideExtension.ScriptRequestHeader header;
-         
-         try {
-             header = qlik.sse.ServerSideExtension.ScriptRequestHeader
-             .parseFrom(metadata.get().get(Metadata.Key.of("qlik-scriptrequestheader-bin", BINARY_BYTE_MARSHALLER)));
-             logger.fine("Got the script request header.");
-         } catch (Exception e) {
-             logger.log(Level.WARNING, "Exception when trying to get the script request header.", e);
-             responseObserver.onError(new Throwable("Exception when trying to get the script request header in evaluateScript."));
-             responseObserver.onCompleted();
-             return responseObserver;
-         }
+         final ServerSideExtension.ScriptRequestHeader header = PluginServerInterceptor.SCRIPT_REQUEST_HEADER.get();
+         logger.fine("Got the script request header.");
+         final Cancellation cancellation = Cancellation.current();
+         final StreamObserver<ServerSideExtension.BundledRows> output = responseStream(responseObserver);
+         final InboundFlowControl flowControl = header != null && header.getParamsCount() > 0 
+             ? inboundFlowControl(responseObserver) : null;
 
          if(header != null ) {
              if(header.getParamsCount() == 0) {
-                 ServerSideExtension.BundledRows result = evalScript(header, null);
-                 if(result.getRowsCount() > 0) {
-                     responseObserver.onNext(result);
+                 ServerSideExtension.BundledRows result = evalScript(header, null, cancellation);
+                 if(cancellation.isCancelled()) {
+                     ResponseBundler.discard(output);
+                 } else if(result.getRowsCount() > 0) {
+                     output.onNext(result);
+                     output.onCompleted();
                  } else {
-                     responseObserver.onError(new Throwable("An error occured in evalScript in evaluateScript."));
+                     output.onError(new Throwable("An error occured in evalScript in evaluateScript."));
+                     output.onCompleted();
                  }
-                 responseObserver.onCompleted();
                  logger.fine("evaluateScript completed");
              }
          } else {
              logger.log(Level.WARNING, "The script request header is null.");
-             responseObserver.onError(new Throwable("The script request header is null in evaluateScript."));
-             responseObserver.onCompleted();
+             output.onError(new Throwable("The script request header is null in evaluateScript."));
+             output.onCompleted();
          }
          
+         final boolean aggregation = header != null && header.getFunctionType() == ServerSideExtension.FunctionType.AGGREGATION;
+         final boolean batchMode = header != null && ScriptBatch.isBatchScript(header.getScript());
+         final RowDictionary dictionary = header != null && !aggregation && dictionarySize > 0 
+             && ScriptBatch.hasDirective(header.getScript(), ScriptBatch.DETERMINISTIC_DIRECTIVE) 
+             && RowDictionary.canEncode(header.getParamsList())
+             ? new RowDictionary(header.getParamsList(), header.getReturnType(), dictionarySize) : null;
+         
          return new io.grpc.stub.StreamObserver<qlik.sse.ServerSideExtension.BundledRows>() {
              
+             private final ColumnBatch batch = new ColumnBatch();
+             private final ResultColumn resultColumn = header != null ? new ResultColumn(header.getReturnType()) : null;
+             private final BundleEncoder encoder = new BundleEncoder();
+             private final Map<String, Object> aggregationState = new HashMap<String, Object>();
+             private boolean failed;
+             
              @Override
              public void onNext(ServerSideExtension.BundledRows bundledRows) {
                  logger.fine("onNext in evaluateScript called");
+                 if(failed || cancellation.isCancelled()) {
+                     return;
+                 }
                  if(header != null) {
-                     if(header.getFunctionType() == ServerSideExtension.FunctionType.AGGREGATION) {
-                         logger.log(Level.WARNING, "Aggregation is not implemented in evaluate script.");
-                         responseObserver.onCompleted();
-                     }
-                     ServerSideExtension.BundledRows result = evalScript(header, bundledRows);
-                     if(result.getRowsCount() > 0) {
-                         responseObserver.onNext(result);
-                         logger.fine("onNext in evaluateScript completed");
+                     if(aggregation) {
+                         if(!evalBatch(header, bundledRows, batch, aggregationState, null, null, cancellation)) {
+                             fail();
+                         }
+                     } else if(batchMode || dictionary != null) {
+                         boolean evaluated = batchMode ? evalBatch(header, bundledRows, batch, null, resultColumn, dictionary, cancellation)
+                             : evalRows(header, bundledRows, batch, resultColumn, dictionary, cancellation);
+                         if(evaluated) {
+                             output.onNext(encoder.encode(resultColumn));
+                             logger.fine("onNext in evaluateScript completed");
+                         } else {
+                             fail();
+                         }
                      } else {
-                         responseObserver.onError(new Throwable("An error occured in evalScript in evaluateScript."));
+                         ServerSideExtension.BundledRows result = evalScript(header, bundledRows, cancellation);
+                         if(result.getRowsCount() > 0) {
+                             output.onNext(result);
+                             logger.fine("onNext in evaluateScript completed");
+                         } else {
+                             fail();
+                         }
+                     }
+                     if(flowControl != null) {
+                         flowControl.bundleProcessed();
                      }
                  } else {
                      logger.log(Level.WARNING, "The script request header is null.");
-                     responseObserver.onError(new Throwable("The script request header is null in onNext in evaluateScript."));
-                     responseObserver.onCompleted();
+                     output.onError(new Throwable("The script request header is null in onNext in evaluateScript."));
+                     output.onCompleted();
                  }
              }
              
+             /**
+              * An evaluation that was stopped because the call was cancelled is not reported, nothing
+              * can be sent to a cancelled call.
+              */
+             private void fail() {
+                 failed = true;
+                 if(cancellation.isCancelled()) {
+                     ResponseBundler.discard(output);
+                 } else {
+                     output.onError(new Throwable("An error occured in evalScript in evaluateScript."));
+                 }
+             }
+             
+             /**
+              * gRPC only calls onError when the call is cancelled, and nothing can be sent after that.
+              */
              @Override
              public void onError(Throwable t) {
-                 logger.log(Level.WARNING, "Encountered error in evaluateScript", t);
-                 responseObserver.onCompleted();
+                 logger.fine("evaluateScript was cancelled: " + cancellation.getReason() + ".");
+                 failed = true;
+                 ResponseBundler.discard(output);
              }
              
              @Override
              public void onCompleted() {
                  logger.fine("onCompleted in evaluateScript called");
-                 responseObserver.onCompleted();
+                 if(dictionary != null) {
+                     logger.finer("Row dictionary: " + dictionary.getStats() + ".");
+                 }
+                 if(failed || cancellation.isCancelled()) {
+                     return;
+                 }
+                 if(aggregation) {
+                     ServerSideExtension.BundledRows result = finishAggregation(header, aggregationState, cancellation);
+                     if(result.getRowsCount() > 0) {
+                         output.onNext(result);
+                     } else {
+                         fail();
+                         return;
+                     }
+                 }
+                 output.onCompleted();
                  logger.fine("onCompleted in evaluateScript completed");
              }
          };
      }
      
+     private StreamObserver<ServerSideExtension.BundledRows> responseStream(
+         StreamObserver<ServerSideExtension.BundledRows> responseObserver) {
+         if(responseBundleBytes <= 0) {
+             return responseObserver;
+         }
+         return new ResponseBundler(responseObserver, responseBundleBytes, responseFlushMillis, flushTimer);
+     }
+     
+     private static InboundFlowControl inboundFlowControl(StreamObserver<ServerSideExtension.BundledRows> responseObserver) {
+         if(responseObserver instanceof ServerCallStreamObserver) {
+             return new InboundFlowControl((ServerCallStreamObserver<ServerSideExtension.BundledRows>) responseObserver);
+         }
+         return null;
+     }
+     
+     /**
+      * Opens a session on the script backend that is interrupted if the call is cancelled while the
+      * script runs.
+      */
+     private ScriptBackend.Session openSession(ServerSideExtension.ScriptRequestHeader header, 
+         Cancellation cancellation) throws Exception {
+         return cancellation.interruptible(scriptBackend.open(header));
+     }
+     
+     /**
+      * Evaluates the script once per row, and stops between rows when the call is cancelled, in which
+      * case no rows are returned.
+      */
      private ServerSideExtension.BundledRows evalScript(ServerSideExtension.ScriptRequestHeader header, 
-         ServerSideExtension.BundledRows bundledRows) {
+         ServerSideExtension.BundledRows bundledRows, Cancellation cancellation) {
          
          logger.fine("evalScript called");
-         ScriptEngineManager manager = new ScriptEngineManager();
-         ScriptEngine engine = manager.getEngineByName("JavaScript");
          ServerSideExtension.BundledRows.Builder bundledRowsBuilder = ServerSideExtension.BundledRows.newBuilder();
          
          String script = header.getScript();
          ServerSideExtension.DataType returnType = header.getReturnType();
          int nbrOfParams = header.getParamsCount();
          
-         if(nbrOfParams == 0) {
-             evalScript(script,bundledRowsBuilder, engine, returnType);
-             logger.fine("evalScript completed");
+         ScriptBackend.Session session = null;
+         try {
+             session = openSession(header, cancellation);
+             
+             if(nbrOfParams == 0) {
+                 evalScript(session, bundledRowsBuilder, returnType, cancellation);
+                 logger.fine("evalScript completed");
+                 return bundledRowsBuilder.build();
+             }
+             
+             Object[] args;
+             for (ServerSideExtension.Row row : bundledRows.getRowsList()) {
+                 if(cancellation.isCancelled()) {
+                     logger.fine("evalScript stopped after " + bundledRowsBuilder.getRowsCount() + " rows, the call was cancelled.");
+                     return ServerSideExtension.BundledRows.getDefaultInstance();
+                 }
+                 args = row.getDualsList().toArray();
+                 session.put("args", args);
+                 if(!evalScript(session, bundledRowsBuilder, returnType, cancellation)) {
+                     return cancellation.isCancelled() ? ServerSideExtension.BundledRows.getDefaultInstance() : bundledRowsBuilder.build();
+                 }
+             }
+         } catch (Exception e) {
+             cancellation.log(logger, "Could not prepare the script for evaluation.", e);
              return bundledRowsBuilder.build();
+         } finally {
+             if(session != null) {
+                 session.close();
+             }
+             if(logger.isLoggable(Level.FINER)) {
+                 logger.finer("Script cache: " + scriptBackend.getStats() + ".");
+             }
          }
+         logger.fine("evalScript completed");
+         return bundledRowsBuilder.build();
+     }
+     
+     /**
+      * Evaluates the script once for the whole bundle with the columns bound as arrays. Tensor scripts
+      * fill in the result array, which is copied to result, and with a dictionary only see the rows that
+      * are not in it. Aggregation scripts get the state of the call instead.
+      */
+     private boolean evalBatch(final ServerSideExtension.ScriptRequestHeader header, ServerSideExtension.BundledRows bundledRows, 
+         ColumnBatch batch, Map<String, Object> state, ResultColumn result, RowDictionary dictionary, Cancellation cancellation) {
          
-         Object[] args;
-         for (ServerSideExtension.Row row : bundledRows.getRowsList()) {
-             args = row.getDualsList().toArray();
-             engine.put("args", args);             
-             if(!evalScript(script,bundledRowsBuilder, engine, returnType)) {
-                 return bundledRowsBuilder.build();
+         logger.fine("evalBatch called");
+         ScriptBackend.Session session = null;
+         try {
+             session = openSession(header, cancellation);
+             
+             batch.decode(bundledRows);
+             if(state != null) {
+                 ScriptBatch.bindColumns(session, batch, header.getParamsList());
+                 ScriptBatch.bindState(session, state, false);
+                 session.eval();
+             } else if(dictionary != null) {
+                 final ScriptBackend.Session batchSession = session;
+                 dictionary.evaluate(batch, result, new RowDictionary.Evaluator() {
+                     @Override
+                     public void evaluate(ColumnBatch rows, ResultColumn rowResults) throws Exception {
+                         evalTensorBatch(batchSession, header, rows, rowResults);
+                     }
+                 });
+             } else {
+                 evalTensorBatch(session, header, batch, result);
+             }
+         } catch (Exception e) {
+             cancellation.log(logger, "eval script did not work on the bundle.", e);
+             return false;
+         } finally {
+             if(session != null) {
+                 session.close();
+             }
+         }
+         logger.fine("evalBatch completed");
+         return true;
+     }
+     
+     private static void evalTensorBatch(ScriptBackend.Session session, ServerSideExtension.ScriptRequestHeader header, 
+         ColumnBatch batch, ResultColumn result) throws Exception {
+         
+         ScriptBatch.bindColumns(session, batch, header.getParamsList());
+         int nbrOfRows = batch.getColumnCount() > 0 ? batch.getRowCount() : 0;
+         Object resultArray = ScriptBatch.bindResult(session, header.getReturnType(), nbrOfRows);
+         session.eval();
+         ScriptBatch.readResult(resultArray, result, nbrOfRows);
+     }
+     
+     /**
+      * Evaluates a row script once for every row of the bundle that is not in the dictionary, with the
+      * args rebuilt from the columns, and writes the results of all rows to result. Stops between rows
+      * when the call is cancelled.
+      */
+     private boolean evalRows(ServerSideExtension.ScriptRequestHeader header, ServerSideExtension.BundledRows bundledRows, 
+         ColumnBatch batch, ResultColumn result, RowDictionary dictionary, final Cancellation cancellation) {
+         
+         logger.fine("evalRows called");
+         final ServerSideExtension.DataType returnType = header.getReturnType();
+         ScriptBackend.Session session = null;
+         try {
+             session = openSession(header, cancellation);
+             final ScriptBackend.Session rowSession = session;
+             dictionary.evaluate(batch.decode(bundledRows), result, new RowDictionary.Evaluator() {
+                 @Override
+                 public void evaluate(ColumnBatch rows, ResultColumn rowResults) throws Exception {
+                     ServerSideExtension.BundledRows.Builder bundledRowsBuilder = ServerSideExtension.BundledRows.newBuilder();
+                     ServerSideExtension.Dual.Builder dualBuilder = ServerSideExtension.Dual.newBuilder();
+                     Object[] args = new Object[rows.getColumnCount()];
+                     int nbrOfRows = rows.getColumnCount() > 0 ? rows.getRowCount() : 0;
+                     for(int r = 0; r < nbrOfRows; r++) {
+                         if(cancellation.isCancelled()) {
+                             throw new CancellationException("Stopped after " + r + " rows.");
+                         }
+                         for(int c = 0; c < args.length; c++) {
+                             args[c] = dualBuilder.setNumData(rows.getNumeric(c, r)).setStrData(rows.getString(c, r)).build();
+                         }
+                         rowSession.put("args", args);
+                         if(!evalScript(rowSession, bundledRowsBuilder, returnType, cancellation)) {
+                             throw new IllegalStateException("eval script did not work on row " + r + ".");
+                         }
+                         ServerSideExtension.Dual dual = bundledRowsBuilder.getRows(r).getDuals(0);
+                         rowResults.add(dual.getNumData(), dual.getStrData());
+                     }
+                 }
+             });
+         } catch (Exception e) {
+             cancellation.log(logger, "eval script did not work on the bundle.", e);
+             return false;
+         } finally {
+             if(session != null) {
+                 session.close();
+             }
+         }
+         logger.fine("evalRows completed");
+         return true;
+     }
+     
+     /**
+      * Evaluates an aggregation script a last time, with done set to true and no rows, and returns its result.
+      */
+     private ServerSideExtension.BundledRows finishAggregation(ServerSideExtension.ScriptRequestHeader header, 
+         Map<String, Object> state, Cancellation cancellation) {
+         
+         ServerSideExtension.BundledRows.Builder bundledRowsBuilder = ServerSideExtension.BundledRows.newBuilder();
+         ScriptBackend.Session session = null;
+         try {
+             session = openSession(header, cancellation);
+             ScriptBatch.bindColumns(session, new ColumnBatch(), header.getParamsList());
+             ScriptBatch.bindState(session, state, true);
+             evalScript(session, bundledRowsBuilder, header.getReturnType(), cancellation);
+         } catch (Exception e) {
+             cancellation.log(logger, "Could not prepare the script for the aggregation result.", e);
+         } finally {
+             if(session != null) {
+                 session.close();
              }
          }
-         logger.fine("evalScript completed");
          return bundledRowsBuilder.build();
      }
      
-     private boolean evalScript(String script, ServerSideExtension.BundledRows.Builder bundledRowsBuilder, 
-         ScriptEngine engine, ServerSideExtension.DataType returnType) {
+     private boolean evalScript(ScriptBackend.Session session, ServerSideExtension.BundledRows.Builder bundledRowsBuilder, 
+         ServerSideExtension.DataType returnType, Cancellation cancellation) {
          
          logger.finer("evalScript called from eval script");
          String result;
          try {
-             Object res = engine.eval(script);
+             Object res = session.eval();
              result = res.toString();
              logger.finer("The string representation of the result: " + result);
          } catch (Exception e) {
-             logger.log(Level.WARNING, "eval script did not work.", e);
+             cancellation.log(logger, "eval script did not work.", e);
              return false;
          }
          
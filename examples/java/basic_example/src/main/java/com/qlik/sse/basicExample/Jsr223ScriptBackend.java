@@ -0,0 +1,101 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+
+/**
+ * Evaluates scripts with a javax.script engine, by default Nashorn, from a ScriptEnginePool.
+ * Nashorn is not included in Java 15 and later, where this backend needs a separate engine.
+ * Every session evaluates against new engine bindings, so the globals that a script defines
+ * are not seen by the scripts of later calls on the same engine.
+ */
+public class Jsr223ScriptBackend implements ScriptBackend {
+
+    private final ScriptEnginePool pool;
+
+    public Jsr223ScriptBackend(String engineName, int poolSize, int cacheSize) {
+        this.pool = new ScriptEnginePool(engineName, poolSize, cacheSize);
+    }
+
+    @Override
+    public ScriptBackend.Session open(ServerSideExtension.ScriptRequestHeader header) throws Exception {
+        ScriptEnginePool.Entry entry = pool.borrow();
+        try {
+            return new Session(entry, entry.getCache().get(header.getScript(), header.getParamsList()));
+        } catch (Exception e) {
+            pool.release(entry);
+            throw e;
+        }
+    }
+
+    @Override
+    public void prestart() {
+        pool.prestart();
+    }
+
+    @Override
+    public String getName() {
+        return "jsr223";
+    }
+
+    @Override
+    public long getHits() {
+        return pool.getHits();
+    }
+
+    @Override
+    public long getMisses() {
+        return pool.getMisses();
+    }
+
+    @Override
+    public long getEvictions() {
+        return pool.getEvictions();
+    }
+
+    @Override
+    public String getStats() {
+        return pool.getStats();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private final class Session implements ScriptBackend.Session {
+        private final ScriptEnginePool.Entry entry;
+        private final CompiledScript compiledScript;
+        private final Bindings bindings;
+
+        Session(ScriptEnginePool.Entry entry, CompiledScript compiledScript) {
+            this.entry = entry;
+            this.compiledScript = compiledScript;
+            this.bindings = entry.getEngine().createBindings();
+        }
+
+        @Override
+        public void put(String name, Object value) {
+            bindings.put(name, value);
+        }
+
+        @Override
+        public Object eval() throws Exception {
+            return compiledScript.eval(bindings);
+        }
+
+        /**
+         * javax.script has no way to stop a script, so a cancelled call stops at the next row or bundle.
+         */
+        @Override
+        public void interrupt() {
+        }
+
+        @Override
+        public void close() {
+            bindings.clear();
+            pool.release(entry);
+        }
+    }
+}
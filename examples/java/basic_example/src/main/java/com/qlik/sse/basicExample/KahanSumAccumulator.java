@@ -0,0 +1,75 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+/**
+ * Sums one numeric column with compensated summation. It uses Neumaier's variant of Kahan
+ * summation, which also stays accurate when partial sums of very different size are merged.
+ */
+public class KahanSumAccumulator implements Accumulator<KahanSumAccumulator> {
+
+    private final int column;
+    private double sum;
+    private double compensation;
+
+    public KahanSumAccumulator(int column) {
+        this.column = column;
+    }
+
+    @Override
+    public void init() {
+        sum = 0;
+        compensation = 0;
+    }
+
+    @Override
+    public void accumulate(ColumnBatch batch) {
+        if(batch.getColumnCount() <= column) {
+            return;
+        }
+        double[] values = batch.getNumeric(column);
+        double s = sum;
+        double c = compensation;
+        for(int r = 0; r < batch.getRowCount(); r++) {
+            double value = values[r];
+            double t = s + value;
+            if(Math.abs(s) >= Math.abs(value)) {
+                c += (s - t) + value;
+            } else {
+                c += (value - t) + s;
+            }
+            s = t;
+        }
+        sum = s;
+        compensation = c;
+    }
+
+    public void add(double value) {
+        double t = sum + value;
+        if(Math.abs(sum) >= Math.abs(value)) {
+            compensation += (sum - t) + value;
+        } else {
+            compensation += (value - t) + sum;
+        }
+        sum = t;
+    }
+
+    @Override
+    public void merge(KahanSumAccumulator other) {
+        add(other.sum);
+        compensation += other.compensation;
+    }
+
+    public double getSum() {
+        return sum + compensation;
+    }
+
+    @Override
+    public void finish(ServerSideExtension.Dual.Builder result) {
+        result.setNumData(getSum());
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,138 @@
+package com.qlik.sse.basicexample;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The heap that the aggregations of all calls may use for their state, and the share of it that
+ * one call may use. Memory is reserved through a Lease per call, and a reservation that would
+ * go over either limit is refused, upon which the caller spills to a file in the spill directory
+ * instead. The budget also counts what was spilled, for the metrics.
+ */
+public class MemoryBudget {
+
+    private final long limitBytes;
+    private final long callLimitBytes;
+    private final File directory;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final LongAdder spilledBytes = new LongAdder();
+    private final LongAdder spilledCalls = new LongAdder();
+    private final AtomicInteger spillFiles = new AtomicInteger();
+
+    /**
+     * A limit of 0 means no limit. Spill files are created in directory, or in the default
+     * temporary directory if it is null.
+     */
+    public MemoryBudget(long limitBytes, long callLimitBytes, File directory) {
+        this.limitBytes = limitBytes;
+        this.callLimitBytes = callLimitBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * A budget without limits, which never spills.
+     */
+    public static MemoryBudget unlimited() {
+        return new MemoryBudget(0, 0, null);
+    }
+
+    public Lease newLease() {
+        return new Lease();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getLimitBytes() {
+        return limitBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes.sum();
+    }
+
+    /** Calls that spilled at least once. */
+    public long getSpilledCalls() {
+        return spilledCalls.sum();
+    }
+
+    /** Spill files that are open now. */
+    public int getSpillFiles() {
+        return spillFiles.get();
+    }
+
+    void spilled(long bytes) {
+        spilledBytes.add(bytes);
+    }
+
+    void spillFileOpened() {
+        spilledCalls.increment();
+        spillFiles.incrementAndGet();
+    }
+
+    void spillFileClosed() {
+        spillFiles.decrementAndGet();
+    }
+
+    private boolean reserve(long bytes) {
+        while(true) {
+            long used = usedBytes.get();
+            if(limitBytes > 0 && used + bytes > limitBytes) {
+                return false;
+            }
+            if(usedBytes.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The memory reserved by one call. A lease is used by one thread at a time, and must be
+     * closed when the call ends or is cancelled.
+     */
+    public final class Lease {
+        private long reservedBytes;
+        private boolean closed;
+
+        private Lease() {
+        }
+
+        /**
+         * Reserves bytes for the call, or returns false if the call or the plugin would go over
+         * its limit.
+         */
+        public boolean tryReserve(long bytes) {
+            if(closed || callLimitBytes > 0 && reservedBytes + bytes > callLimitBytes || !reserve(bytes)) {
+                return false;
+            }
+            reservedBytes += bytes;
+            return true;
+        }
+
+        public long getReservedBytes() {
+            return reservedBytes;
+        }
+
+        public MemoryBudget getBudget() {
+            return MemoryBudget.this;
+        }
+
+        /**
+         * Gives the reserved memory back to the budget. Can be called more than once.
+         */
+        public void close() {
+            if(!closed) {
+                closed = true;
+                usedBytes.addAndGet(-reservedBytes);
+                reservedBytes = 0;
+            }
+        }
+    }
+}
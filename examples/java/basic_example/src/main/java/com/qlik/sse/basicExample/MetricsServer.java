@@ -0,0 +1,49 @@
+package com.qlik.sse.basicexample;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * Serves the plugin metrics at http://localhost:port/metrics for Prometheus to scrape.
+ * The server only listens on the loopback interface.
+ */
+public class MetricsServer {
+
+    private static final Logger logger = Logger.getLogger(MetricsServer.class.getName());
+
+    private final HttpServer server;
+
+    public MetricsServer(int port, final PluginMetrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Metrics available at http://localhost:" + server.getAddress().getPort() + "/metrics.");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,236 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes the bundles of one ExecuteFunction call on a worker pool and sends the results
+ * back in the order the bundles arrived. For aggregations every worker accumulates its own
+ * partial result, and the partials are merged when all bundles are processed, so only
+ * aggregations whose result does not depend on the order of the rows should be PARALLEL_SAFE.
+ * 
+ * Inbound flow control is manual: at most maxInFlight bundles are requested ahead of the
+ * results that have been sent, and results are only sent while the response stream is
+ * ready. A slow reader on the Qlik side therefore stops the plugin from reading more bundles
+ * instead of making results pile up in memory. The results are written to output, which can
+ * re-bundle them, while flow control uses the response stream itself.
+ * 
+ * When the call is cancelled, or its deadline passes, the bundles that are still queued on the
+ * executor return without being processed and the results and partials are dropped.
+ */
+public class ParallelBundleProcessor implements StreamObserver<ServerSideExtension.BundledRows> {
+
+    private static final Logger logger = Logger.getLogger(ParallelBundleProcessor.class.getName());
+    private static final ServerSideExtension.BundledRows NO_RESULT = ServerSideExtension.BundledRows.getDefaultInstance();
+
+    private final ServerCallStreamObserver<ServerSideExtension.BundledRows> responseObserver;
+    private final StreamObserver<ServerSideExtension.BundledRows> output;
+    private final Executor executor;
+    private final PluginFunction function;
+    private final Queue<FunctionCall> idleCalls = new ConcurrentLinkedQueue<FunctionCall>();
+    private final Queue<FunctionCall> allCalls = new ConcurrentLinkedQueue<FunctionCall>();
+    
+    private final Object lock = new Object();
+    private final Map<Long, ServerSideExtension.BundledRows> results = new HashMap<Long, ServerSideExtension.BundledRows>();
+    private long nextSequence;
+    private long nextToSend;
+    private boolean inputCompleted;
+    private boolean finished;
+
+    /**
+     * Must be called from executeFunction, before the call is started, since flow control
+     * and the onReady handler can not be changed later.
+     */
+    public ParallelBundleProcessor(ServerCallStreamObserver<ServerSideExtension.BundledRows> responseObserver,
+        Executor executor, PluginFunction function, int maxInFlight) {
+        this(responseObserver, responseObserver, executor, function, maxInFlight);
+    }
+
+    public ParallelBundleProcessor(ServerCallStreamObserver<ServerSideExtension.BundledRows> responseObserver,
+        StreamObserver<ServerSideExtension.BundledRows> output, Executor executor, PluginFunction function, int maxInFlight) {
+        this.responseObserver = responseObserver;
+        this.output = output;
+        this.executor = executor;
+        this.function = function;
+        
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                sendCompleted();
+            }
+        });
+        responseObserver.request(Math.max(1, maxInFlight));
+    }
+
+    public static boolean canProcess(PluginFunction function) {
+        if(!function.hasTrait(PluginFunction.Trait.PARALLEL_SAFE)) {
+            return false;
+        }
+        return function.getFunctionType() == ServerSideExtension.FunctionType.TENSOR
+            || function instanceof AggregationFunction;
+    }
+
+    @Override
+    public void onNext(final ServerSideExtension.BundledRows bundledRows) {
+        final long sequence;
+        synchronized(lock) {
+            if(finished) {
+                return;
+            }
+            sequence = nextSequence++;
+        }
+        logger.finer("Bundle " + sequence + " submitted to the worker pool.");
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    process(sequence, bundledRows);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The sequence number is taken, so the call can not go on without this bundle.
+            logger.log(Level.WARNING, "The worker pool rejected bundle " + sequence + " of " + function.getName() + ".", e);
+            fail(Status.RESOURCE_EXHAUSTED.withDescription("The worker pool of the plugin is not available.").withCause(e).asRuntimeException());
+        }
+    }
+
+    private void process(long sequence, ServerSideExtension.BundledRows bundledRows) {
+        synchronized(lock) {
+            if(finished || responseObserver.isCancelled()) {
+                return;
+            }
+        }
+        ServerSideExtension.BundledRows result;
+        FunctionCall call = idleCalls.poll();
+        if(call == null) {
+            call = function.newCall();
+            allCalls.add(call);
+        }
+        try {
+            result = call.onBundle(bundledRows);
+        } catch (RuntimeException e) {
+            call.cancel();
+            if(responseObserver.isCancelled()) {
+                return;
+            }
+            logger.log(Level.WARNING, "Exception when processing bundle " + sequence + " in " + function.getName() + ".", e);
+            fail(new Throwable("An error occured in " + function.getName() + " in executeFunction."));
+            return;
+        }
+        synchronized(lock) {
+            if(finished) {
+                call.cancel();
+                return;
+            }
+            idleCalls.offer(call);
+            results.put(sequence, result == null ? NO_RESULT : result);
+        }
+        sendCompleted();
+    }
+
+    /**
+     * Sends the results that are next in order, for as long as the response stream is ready.
+     */
+    private void sendCompleted() {
+        synchronized(lock) {
+            while(!finished && responseObserver.isReady() && !responseObserver.isCancelled()) {
+                ServerSideExtension.BundledRows result = results.remove(nextToSend);
+                if(result == null) {
+                    break;
+                }
+                if(result != NO_RESULT) {
+                    output.onNext(result);
+                }
+                nextToSend++;
+                if(!inputCompleted) {
+                    responseObserver.request(1);
+                }
+            }
+            if(!finished && inputCompleted && nextToSend == nextSequence && !responseObserver.isCancelled()) {
+                finished = true;
+                if(function instanceof AggregationFunction) {
+                    ServerSideExtension.BundledRows result;
+                    try {
+                        result = ((AggregationFunction<?>) function).finish(new ArrayList<FunctionCall>(allCalls));
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Exception when finishing " + function.getName() + ".", e);
+                        for(FunctionCall call : allCalls) {
+                            call.cancel();
+                        }
+                        idleCalls.clear();
+                        allCalls.clear();
+                        output.onError(Status.INTERNAL.withDescription("An error occured in " + function.getName() + " in executeFunction.")
+                            .withCause(e).asRuntimeException());
+                        return;
+                    }
+                    output.onNext(result);
+                }
+                output.onCompleted();
+                logger.fine("Parallel executeFunction completed after " + nextSequence + " bundles.");
+            }
+        }
+    }
+
+    /**
+     * Frees the state of the calls that no worker uses, the others are freed by their worker.
+     */
+    private void cancelIdleCalls() {
+        FunctionCall call;
+        while((call = idleCalls.poll()) != null) {
+            call.cancel();
+        }
+        allCalls.clear();
+    }
+
+    private void fail(Throwable t) {
+        synchronized(lock) {
+            if(finished) {
+                return;
+            }
+            finished = true;
+            results.clear();
+            cancelIdleCalls();
+            output.onError(t);
+        }
+    }
+
+    /**
+     * gRPC only calls onError when the call is cancelled, and nothing can be sent after that.
+     */
+    @Override
+    public void onError(Throwable t) {
+        synchronized(lock) {
+            if(finished) {
+                return;
+            }
+            logger.fine("Parallel executeFunction cancelled after " + nextSequence + " bundles, " + nextToSend + " were sent.");
+            finished = true;
+            results.clear();
+            cancelIdleCalls();
+            ResponseBundler.discard(output);
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        logger.fine("onCompleted in executeFunction called.");
+        synchronized(lock) {
+            inputCompleted = true;
+        }
+        sendCompleted();
+    }
+}
@@ -0,0 +1,383 @@
+package com.qlik.sse.basicexample;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The settings of the plugin. Settings are read from a properties file given with
+ * --config, and every setting can also be given on the command line as --name value,
+ * which overrides the file.
+ */
+public class PluginConfig {
+
+    private static final Logger logger = Logger.getLogger(PluginConfig.class.getName());
+
+    private final Properties properties;
+
+    public PluginConfig() {
+        this(new Properties());
+    }
+
+    public PluginConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    public static PluginConfig fromArgs(String[] args) {
+        Properties properties = new Properties();
+        for(int i = 0; i < args.length - 1; i += 2) {
+            if(args[i].equals("--config")) {
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(args[i + 1]);
+                    properties.load(in);
+                    logger.info("Read the configuration file " + args[i + 1] + ".");
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not read the configuration file " + args[i + 1] + ".", e);
+                } finally {
+                    if(in != null) {
+                        try {
+                            in.close();
+                        } catch (IOException e) {}
+                    }
+                }
+            }
+        }
+        for(int i = 0; i < args.length - 1; i += 2) {
+            if(args[i].startsWith("--") && !args[i].equals("--config")) {
+                properties.setProperty(args[i].substring(2), args[i + 1]);
+            }
+        }
+        return new PluginConfig(properties);
+    }
+
+    public PluginConfig set(String name, String value) {
+        properties.setProperty(name, value);
+        return this;
+    }
+
+    public String getString(String name, String defaultValue) {
+        return properties.getProperty(name, defaultValue).trim();
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "Invalid " + name + ", using default value: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "Invalid " + name + ", using default value: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String name, double defaultValue) {
+        String value = properties.getProperty(name);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "Invalid " + name + ", using default value: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    public int getPort() {
+        return getInt("port", 50071);
+    }
+
+    public String getPemDir() {
+        return getString("pemDir", "");
+    }
+
+    /** "graal", "jsr223", or "auto", which uses GraalVM JavaScript when it is available. */
+    public String getScriptBackend() {
+        return getString("scriptBackend", "auto");
+    }
+
+    public int getScriptEngines() {
+        return getInt("scriptEngines", Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getScriptCacheSize() {
+        return getInt("scriptCacheSize", 64);
+    }
+
+    public int getMaxAggregatedStringLength() {
+        return getInt("maxAggregatedStringLength", BasicFunctions.DEFAULT_MAX_AGGREGATED_STRING_LENGTH);
+    }
+
+    /**
+     * In megabytes, the heap that the state of all aggregations may use before they spill to disk,
+     * 0 is no limit. A quarter of the maximum heap by default.
+     */
+    public long getAggregationMemory() {
+        return getLong("aggregationMemory", Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024);
+    }
+
+    /** In megabytes, the heap that the state of one aggregation call may use before it spills to disk, 0 is no limit. */
+    public long getAggregationCallMemory() {
+        return getLong("aggregationCallMemory", 64);
+    }
+
+    /** The directory of the spill files, empty uses the temporary directory of the JVM. */
+    public String getSpillDirectory() {
+        return getString("spillDirectory", "");
+    }
+
+    /** Threads for processing PARALLEL_SAFE functions, 0 processes bundles on the gRPC thread. */
+    public int getWorkerThreads() {
+        return getInt("workerThreads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /** ExecuteFunction calls with at most this cardinality run inline on the gRPC thread, 0 turns it off. */
+    public long getInlineMaxRows() {
+        return getLong("inlineMaxRows", ExecutionPlanner.DEFAULT_INLINE_MAX_ROWS);
+    }
+
+    /** PARALLEL_SAFE functions only use the worker threads for calls with at least this cardinality. */
+    public long getParallelMinRows() {
+        return getLong("parallelMinRows", ExecutionPlanner.DEFAULT_PARALLEL_MIN_ROWS);
+    }
+
+    public int getMaxBundlesInFlight() {
+        int maxBundlesInFlight = getInt("maxBundlesInFlight", 0);
+        return maxBundlesInFlight > 0 ? maxBundlesInFlight : 2 * Math.max(1, getWorkerThreads());
+    }
+
+    /** The number of synthetic calls to every function and script before the server listens, 0 turns the warm-up off. */
+    public int getWarmUpCalls() {
+        return getInt("warmUpCalls", 0);
+    }
+
+    public int getWarmUpRows() {
+        return getInt("warmUpRows", 10000);
+    }
+
+    /** Runs the warm-up and exits without listening, for example to record a class data sharing archive. */
+    public boolean getExitAfterWarmUp() {
+        return getBoolean("exitAfterWarmUp", false);
+    }
+
+    /** The maximum number of distinct rows per call to memoize results for, 0 turns memoization off. */
+    public int getDictionarySize() {
+        return getInt("dictionarySize", 0);
+    }
+
+    /** In megabytes, 0 turns the result cache off. */
+    public long getResultCacheSize() {
+        return getLong("resultCacheSize", 0);
+    }
+
+    /** In seconds. */
+    public long getResultCacheTtl() {
+        return getLong("resultCacheTtl", 600);
+    }
+
+    public boolean getResultCacheOffHeap() {
+        return getBoolean("resultCacheOffHeap", false);
+    }
+
+    /** The target size of response messages in bytes, 0 sends results as the functions return them. */
+    public int getResponseBundleSize() {
+        return getInt("responseBundleSize", 0);
+    }
+
+    /** How long result rows can wait for a response message to fill up, in milliseconds. */
+    public long getResponseFlushLatency() {
+        return getLong("responseFlushLatency", 50);
+    }
+
+    /** The gRPC call executor: "default" (a cached thread pool), "direct" or "bounded". */
+    public String getExecutor() {
+        return getString("executor", "default");
+    }
+
+    public int getExecutorThreads() {
+        return getInt("executorThreads", 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /** 0 leaves the number of event loop threads to gRPC. */
+    public int getBossThreads() {
+        return getInt("bossThreads", 0);
+    }
+
+    public int getEventLoopThreads() {
+        return getInt("eventLoopThreads", 0);
+    }
+
+    /** Use the native epoll transport when it is available (Linux only). */
+    public boolean getNativeTransport() {
+        return getBoolean("nativeTransport", false);
+    }
+
+    /** In bytes, 0 keeps the gRPC default (4 MB). */
+    public int getMaxMessageSize() {
+        return getInt("maxMessageSize", 0);
+    }
+
+    /** In bytes, 0 keeps the gRPC default (1 MB). */
+    public int getFlowControlWindow() {
+        return getInt("flowControlWindow", 0);
+    }
+
+    /** In seconds, 0 turns off keepalive pings from the plugin. */
+    public long getKeepAliveTime() {
+        return getLong("keepAliveTime", 0);
+    }
+
+    /** In seconds. */
+    public long getKeepAliveTimeout() {
+        return getLong("keepAliveTimeout", 20);
+    }
+
+    /** In seconds, 0 keeps the gRPC default. */
+    public long getPermitKeepAliveTime() {
+        return getLong("permitKeepAliveTime", 0);
+    }
+
+    /** 0 means no limit. */
+    public int getMaxConcurrentCallsPerConnection() {
+        return getInt("maxConcurrentCallsPerConnection", 0);
+    }
+
+    /** Decodes ExecuteFunction and EvaluateScript bundles with the ColumnarConnector marshallers. */
+    public boolean getColumnarMarshaller() {
+        return getBoolean("columnarMarshaller", false);
+    }
+
+    /** Calls with a higher cardinality in the common request header are rejected, 0 means no limit. */
+    public long getMaxCardinality() {
+        return getLong("maxCardinality", 0);
+    }
+
+    /** Concurrent ExecuteFunction and EvaluateScript calls before calls wait for admission, 0 means no limit. */
+    public int getMaxConcurrentCalls() {
+        return getInt("maxConcurrentCalls", 0);
+    }
+
+    public int getMaxCallsPerApp() {
+        return getInt("maxCallsPerApp", 0);
+    }
+
+    public int getMaxCallsPerUser() {
+        return getInt("maxCallsPerUser", 0);
+    }
+
+    /** Rows, by cardinality, that the calls of a user can start per second, 0 means no limit. */
+    public long getMaxRowsPerSecondPerUser() {
+        return getLong("maxRowsPerSecondPerUser", 0);
+    }
+
+    /** Calls that can wait for admission before calls are rejected, 0 means no limit. */
+    public int getMaxQueuedCalls() {
+        return getInt("maxQueuedCalls", 1000);
+    }
+
+    /**
+     * The weights of apps when calls wait for admission, as appId:weight pairs separated by commas.
+     * Apps that are not listed have weight 1.
+     */
+    public Map<String, Double> getAppWeights() {
+        Map<String, Double> weights = new HashMap<String, Double>();
+        String value = getString("appWeights", "");
+        for(String pair : value.split(",")) {
+            if(pair.trim().isEmpty()) {
+                continue;
+            }
+            int colon = pair.lastIndexOf(':');
+            try {
+                double weight = Double.parseDouble(pair.substring(colon + 1).trim());
+                if(colon <= 0 || weight <= 0) {
+                    throw new NumberFormatException(pair);
+                }
+                weights.put(pair.substring(0, colon).trim(), weight);
+            } catch (NumberFormatException e) {
+                logger.log(Level.WARNING, "Invalid appWeights entry " + pair.trim() + ", using default value: 1");
+            }
+        }
+        return weights;
+    }
+
+    public boolean getAdmissionControl() {
+        return getMaxCardinality() > 0 || getMaxConcurrentCalls() > 0 || getMaxCallsPerApp() > 0 
+            || getMaxCallsPerUser() > 0 || getMaxRowsPerSecondPerUser() > 0;
+    }
+
+    /** Records the ExecuteFunction and EvaluateScript calls to this file for the load test tool, empty turns it off. */
+    public String getRecordFile() {
+        return getString("recordFile", "");
+    }
+
+    /**
+     * The host:port of the backend plugins, separated by commas. When it is set the server runs as a
+     * gateway to the backends instead of running the functions itself.
+     */
+    public List<String> getGatewayBackends() {
+        return getList("gatewayBackends");
+    }
+
+    /** In seconds, 0 only checks the backends when the gateway starts. */
+    public long getGatewayHealthCheckInterval() {
+        return getLong("gatewayHealthCheckInterval", 5);
+    }
+
+    /** In milliseconds. */
+    public long getGatewayHealthCheckTimeout() {
+        return getLong("gatewayHealthCheckTimeout", 2000);
+    }
+
+    /** Calls with at least this cardinality to row-independent functions are split over the backends, 0 turns it off. */
+    public long getGatewayShardMinRows() {
+        return getLong("gatewayShardMinRows", PluginGateway.DEFAULT_SHARD_MIN_ROWS);
+    }
+
+    /** TENSOR functions, by name and separated by commas, whose rows are independent, so that their calls can be split. */
+    public List<String> getGatewayShardFunctions() {
+        return getList("gatewayShardFunctions");
+    }
+
+    private List<String> getList(String name) {
+        List<String> values = new ArrayList<String>();
+        for(String value : getString(name, "").split(",")) {
+            if(!value.trim().isEmpty()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    /** The local port of the Prometheus metrics endpoint, 0 turns it off. */
+    public int getMetricsPort() {
+        return getInt("metricsPort", 0);
+    }
+}
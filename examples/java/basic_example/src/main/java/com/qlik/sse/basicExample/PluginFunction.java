@@ -0,0 +1,110 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * A function that the plugin exposes to Qlik. The function declares its signature, which
+ * is used to build the Capabilities, and creates a FunctionCall for every ExecuteFunction call.
+ */
+public abstract class PluginFunction {
+
+    /**
+     * Properties of a function that the plugin can use to execute it faster, or that it passes on to Qlik.
+     */
+    public enum Trait {
+        /** The function works on whole ColumnBatch columns rather than on single rows. */
+        VECTORIZABLE,
+        /** The same input always gives the same output, so results can be cached. */
+        DETERMINISTIC,
+        /** Bundles are independent of each other and can be processed concurrently. */
+        PARALLEL_SAFE,
+        /** The same input gives the same output within one call, so repeated rows of a call can be memoized. */
+        DETERMINISTIC_IN_CALL,
+        /** Qlik must not cache the results, the calls of the function are answered with the header qlik-cache: no-store. */
+        NO_STORE
+    }
+
+    private final String name;
+    private final ServerSideExtension.FunctionType functionType;
+    private final ServerSideExtension.DataType returnType;
+    private final EnumSet<Trait> traits;
+    private final List<ServerSideExtension.Parameter> params = new ArrayList<ServerSideExtension.Parameter>();
+
+    protected PluginFunction(String name, ServerSideExtension.FunctionType functionType,
+        ServerSideExtension.DataType returnType, EnumSet<Trait> traits) {
+        this.name = name;
+        this.functionType = functionType;
+        this.returnType = returnType;
+        this.traits = EnumSet.copyOf(traits);
+    }
+
+    /**
+     * Copies the signature and traits of another function, for functions that wrap it.
+     */
+    protected PluginFunction(PluginFunction function) {
+        this(function, function.traits);
+    }
+
+    protected PluginFunction(PluginFunction function, EnumSet<Trait> traits) {
+        this(function.name, function.functionType, function.returnType, traits);
+        params.addAll(function.params);
+    }
+
+    protected static EnumSet<Trait> withTrait(EnumSet<Trait> traits, Trait trait) {
+        EnumSet<Trait> result = EnumSet.copyOf(traits);
+        result.add(trait);
+        return result;
+    }
+
+    protected final void addParam(String name, ServerSideExtension.DataType dataType) {
+        params.add(ServerSideExtension.Parameter.newBuilder()
+            .setName(name)
+            .setDataType(dataType)
+            .build());
+    }
+
+    public abstract FunctionCall newCall();
+
+    /**
+     * Creates a call whose buffers are presized for bundles of about expectedRows rows, for
+     * when the cardinality of the call is known. By default the same as newCall().
+     */
+    public FunctionCall newCall(int expectedRows) {
+        return newCall();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ServerSideExtension.FunctionType getFunctionType() {
+        return functionType;
+    }
+
+    public ServerSideExtension.DataType getReturnType() {
+        return returnType;
+    }
+
+    public List<ServerSideExtension.Parameter> getParams() {
+        return Collections.unmodifiableList(params);
+    }
+
+    public boolean hasTrait(Trait trait) {
+        return traits.contains(trait);
+    }
+
+    public ServerSideExtension.FunctionDefinition toFunctionDefinition(int functionId) {
+        return ServerSideExtension.FunctionDefinition.newBuilder()
+            .setName(name)
+            .setFunctionId(functionId)
+            .setFunctionType(functionType)
+            .setReturnType(returnType)
+            .addAllParams(params)
+            .build();
+    }
+}
@@ -0,0 +1,880 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ConnectorGrpc;
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the functions of a pool of backend plugins as one plugin, so that the calls of one Qlik
+ * connection can use more than one host. The capabilities of the backends are merged: a function
+ * that several backends have, with the same name and signature, is served once, and its calls go
+ * to the healthy backend with the fewest running calls. The function ids of the backends are kept
+ * where they do not collide, so a pool of the same plugin keeps the ids of the plugin. A function
+ * keeps the id it was given for as long as the gateway runs, since Qlik only reads the
+ * capabilities when it connects.
+ *
+ * Large calls to row-independent functions, SCALAR functions and the TENSOR functions named in
+ * setSharding, are split over all healthy backends that have the function. Every bundle goes to
+ * the backend with the fewest rows outstanding, and the result rows are put back in the order of
+ * the bundles, however the backends bundle them. Other calls and EvaluateScript calls are
+ * forwarded to one backend, with flow control in both directions.
+ *
+ * The backends are checked with GetCapabilities on a timer. A backend that does not answer, or
+ * whose call fails with UNAVAILABLE, gets no new calls until it answers again. Backend calls are
+ * started in the Context of the call from Qlik, so its cancellation and deadline reach them.
+ */
+public class PluginGateway extends ConnectorGrpc.ConnectorImplBase {
+
+    private static final Logger logger = Logger.getLogger(PluginGateway.class.getName());
+
+    public static final long DEFAULT_SHARD_MIN_ROWS = 100000;
+    private static final ServerSideExtension.BundledRows NO_RESULT = ServerSideExtension.BundledRows.getDefaultInstance();
+
+    private final List<Backend> backends = new ArrayList<Backend>();
+    private final AtomicInteger nextBackend = new AtomicInteger();
+    private final AtomicLong forwardedCalls = new AtomicLong();
+    private final AtomicLong shardedCalls = new AtomicLong();
+    private long shardMinRows = DEFAULT_SHARD_MIN_ROWS;
+    private Set<String> shardFunctions = Collections.emptySet();
+    private int maxBundlesInFlight = 16;
+    private long healthCheckMillis;
+    private long healthCheckTimeoutMillis = 2000;
+    private ScheduledExecutorService healthCheckTimer;
+    private ScheduledFuture<?> healthCheck;
+    private final Map<ServerSideExtension.FunctionDefinition, Integer> functionIds = new HashMap<ServerSideExtension.FunctionDefinition, Integer>();
+    private volatile Routing routing = new Routing(Collections.<Backend>emptyList(), functionIds);
+
+    /**
+     * The backends by name, the names are only used in the logs and the metrics. The gateway shuts
+     * the channels down when it is closed.
+     */
+    public PluginGateway(Map<String, ManagedChannel> channels) {
+        for(Map.Entry<String, ManagedChannel> channel : channels.entrySet()) {
+            backends.add(new Backend(channel.getKey(), channel.getValue()));
+        }
+    }
+
+    /**
+     * Splits ExecuteFunction calls with at least minRows cardinality over the backends, with up to
+     * maxBundlesInFlight bundles of a call on the backends at a time. A minRows of 0 turns it off.
+     */
+    public void setSharding(long minRows, Collection<String> tensorFunctions, int maxBundlesInFlight) {
+        this.shardMinRows = minRows;
+        this.shardFunctions = new HashSet<String>(tensorFunctions);
+        this.maxBundlesInFlight = Math.max(1, maxBundlesInFlight);
+    }
+
+    /**
+     * Checks the backends every intervalMillis on the timer once the gateway is started, 0 only
+     * checks them when it starts.
+     */
+    public void setHealthChecks(long intervalMillis, long timeoutMillis, ScheduledExecutorService timer) {
+        this.healthCheckMillis = intervalMillis;
+        this.healthCheckTimeoutMillis = timeoutMillis;
+        this.healthCheckTimer = timer;
+    }
+
+    /**
+     * Checks all backends, so that the capabilities are known before the first call, and starts the
+     * health checks.
+     */
+    public void start() {
+        checkBackends();
+        if(healthCheckTimer != null && healthCheckMillis > 0) {
+            healthCheck = healthCheckTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkBackends();
+                }
+            }, healthCheckMillis, healthCheckMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void close() {
+        if(healthCheck != null) {
+            healthCheck.cancel(false);
+        }
+        for(Backend backend : backends) {
+            backend.channel.shutdownNow();
+        }
+    }
+
+    /**
+     * Asks every backend for its capabilities, and merges them again if they changed.
+     */
+    public synchronized void checkBackends() {
+        boolean changed = false;
+        for(Backend backend : backends) {
+            try {
+                ServerSideExtension.Capabilities capabilities = ConnectorGrpc.newBlockingStub(backend.channel)
+                    .withDeadlineAfter(healthCheckTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .getCapabilities(ServerSideExtension.Empty.getDefaultInstance());
+                changed |= backend.up(capabilities);
+            } catch (RuntimeException e) {
+                backend.down(e);
+            }
+        }
+        if(changed) {
+            routing = new Routing(backends, functionIds);
+            logger.info("Serving " + routing.capabilities.getFunctionsCount() + " functions from " + backends.size() + " backends.");
+        }
+    }
+
+    public List<Backend> getBackends() {
+        return Collections.unmodifiableList(backends);
+    }
+
+    public long getForwardedCalls() {
+        return forwardedCalls.get();
+    }
+
+    public long getShardedCalls() {
+        return shardedCalls.get();
+    }
+
+    @Override
+    public void getCapabilities(ServerSideExtension.Empty request, StreamObserver<ServerSideExtension.Capabilities> responseObserver) {
+        logger.info("getCapabilities called.");
+        responseObserver.onNext(routing.capabilities);
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<ServerSideExtension.BundledRows> executeFunction(StreamObserver<ServerSideExtension.BundledRows> responseObserver) {
+        ServerSideExtension.FunctionRequestHeader functionHeader = PluginServerInterceptor.FUNCTION_REQUEST_HEADER.get();
+        Route route = functionHeader == null ? null : routing.routes.get(functionHeader.getFunctionId());
+        if(route == null) {
+            logger.log(Level.WARNING, "Incorrect function id.");
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Incorrect function id in executeFunction.").asRuntimeException());
+            return new Discard();
+        }
+        List<Backend> candidates = healthy(route.backendIds.keySet());
+        if(candidates.isEmpty()) {
+            logger.log(Level.WARNING, "No backend is available for " + route.definition.getName() + ".");
+            responseObserver.onError(Status.UNAVAILABLE.withDescription("No backend is available for "
+                + route.definition.getName() + ".").asRuntimeException());
+            return new Discard();
+        }
+        ServerSideExtension.CommonRequestHeader commonHeader = PluginServerInterceptor.COMMON_REQUEST_HEADER.get();
+        long cardinality = commonHeader != null ? commonHeader.getCardinality() : 0;
+        ServerCallStreamObserver<ServerSideExtension.BundledRows> qlik = (ServerCallStreamObserver<ServerSideExtension.BundledRows>) responseObserver;
+        if(candidates.size() > 1 && shardMinRows > 0 && cardinality >= shardMinRows && canShard(route.definition)) {
+            shardedCalls.incrementAndGet();
+            logger.fine("Function " + route.definition.getName() + " is split over " + candidates.size() + " backends.");
+            return new ShardedCall(qlik, route, candidates, functionHeader, commonHeader);
+        }
+        Backend backend = leastLoaded(candidates);
+        forwardedCalls.incrementAndGet();
+        logger.fine("Function " + route.definition.getName() + " is forwarded to " + backend.name + ".");
+        Metadata headers = headers(functionHeader.toBuilder().setFunctionId(route.backendIds.get(backend)).build(), null, commonHeader);
+        ForwardedCall call = new ForwardedCall(backend, qlik);
+        withCacheHeader(MetadataUtils.attachHeaders(ConnectorGrpc.newStub(backend.channel), headers), 
+            PluginServerInterceptor.RESPONSE_HEADERS.get()).executeFunction(call.responses());
+        call.start();
+        return call;
+    }
+
+    @Override
+    public StreamObserver<ServerSideExtension.BundledRows> evaluateScript(StreamObserver<ServerSideExtension.BundledRows> responseObserver) {
+        ServerSideExtension.ScriptRequestHeader scriptHeader = PluginServerInterceptor.SCRIPT_REQUEST_HEADER.get();
+        if(scriptHeader == null) {
+            logger.log(Level.WARNING, "The script request header is null.");
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("The script request header is null in evaluateScript.").asRuntimeException());
+            return new Discard();
+        }
+        List<Backend> candidates = healthy(routing.scriptBackends);
+        if(candidates.isEmpty()) {
+            logger.log(Level.WARNING, "No backend is available for scripts.");
+            responseObserver.onError(Status.UNAVAILABLE.withDescription("No backend is available for scripts.").asRuntimeException());
+            return new Discard();
+        }
+        Backend backend = leastLoaded(candidates);
+        forwardedCalls.incrementAndGet();
+        logger.fine("Script is forwarded to " + backend.name + ".");
+        Metadata headers = headers(null, scriptHeader, PluginServerInterceptor.COMMON_REQUEST_HEADER.get());
+        ForwardedCall call = new ForwardedCall(backend, (ServerCallStreamObserver<ServerSideExtension.BundledRows>) responseObserver);
+        MetadataUtils.attachHeaders(ConnectorGrpc.newStub(backend.channel), headers).evaluateScript(call.responses());
+        call.start();
+        return call;
+    }
+
+    private boolean canShard(ServerSideExtension.FunctionDefinition definition) {
+        return definition.getFunctionType() == ServerSideExtension.FunctionType.SCALAR
+            || definition.getFunctionType() == ServerSideExtension.FunctionType.TENSOR && shardFunctions.contains(definition.getName());
+    }
+
+    private static List<Backend> healthy(Collection<Backend> backends) {
+        List<Backend> healthy = new ArrayList<Backend>();
+        for(Backend backend : backends) {
+            if(backend.healthy) {
+                healthy.add(backend);
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * The backend with the fewest running calls. Ties are broken round robin, so that an idle pool
+     * is used evenly.
+     */
+    private Backend leastLoaded(List<Backend> candidates) {
+        int offset = (nextBackend.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        Backend best = null;
+        for(int i = 0; i < candidates.size(); i++) {
+            Backend backend = candidates.get((offset + i) % candidates.size());
+            if(best == null || backend.activeCalls.get() < best.activeCalls.get()) {
+                best = backend;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Passes the qlik-cache header of the backend calls made with stub on to Qlik, through responseHeaders,
+     * the RESPONSE_HEADERS of the call from Qlik. The gateway does not know the traits of the functions of
+     * its backends, so the backend decides. Its headers come before its first result, which is before the
+     * gateway sends its own headers.
+     */
+    private static ConnectorGrpc.ConnectorStub withCacheHeader(ConnectorGrpc.ConnectorStub stub, final Metadata responseHeaders) {
+        if(responseHeaders == null) {
+            return stub;
+        }
+        return stub.withInterceptors(new ClientInterceptor() {
+            @Override
+            public <ReqT,RespT> ClientCall<ReqT,RespT> interceptCall(MethodDescriptor<ReqT,RespT> method, 
+                CallOptions callOptions, Channel next) {
+                return new SimpleForwardingClientCall<ReqT,RespT>(next.newCall(method, callOptions)) {
+                    @Override
+                    public void start(Listener<RespT> responseListener, Metadata headers) {
+                        super.start(new SimpleForwardingClientCallListener<RespT>(responseListener) {
+                            @Override
+                            public void onHeaders(Metadata backendHeaders) {
+                                String cache = backendHeaders.get(PluginServerInterceptor.CACHE_KEY);
+                                if(cache != null) {
+                                    PluginServerInterceptor.setCacheHeader(responseHeaders, cache);
+                                }
+                                super.onHeaders(backendHeaders);
+                            }
+                        }, headers);
+                    }
+                };
+            }
+        });
+    }
+
+    private static Metadata headers(ServerSideExtension.FunctionRequestHeader functionHeader,
+        ServerSideExtension.ScriptRequestHeader scriptHeader, ServerSideExtension.CommonRequestHeader commonHeader) {
+        Metadata headers = new Metadata();
+        if(functionHeader != null) {
+            headers.put(PluginServerInterceptor.FUNCTION_REQUEST_HEADER_KEY, functionHeader.toByteArray());
+        }
+        if(scriptHeader != null) {
+            headers.put(PluginServerInterceptor.SCRIPT_REQUEST_HEADER_KEY, scriptHeader.toByteArray());
+        }
+        if(commonHeader != null) {
+            headers.put(PluginServerInterceptor.COMMON_REQUEST_HEADER_KEY, commonHeader.toByteArray());
+        }
+        return headers;
+    }
+
+    /**
+     * A backend plugin, with the capabilities it last answered with.
+     */
+    public static final class Backend {
+        private final String name;
+        private final ManagedChannel channel;
+        private final AtomicInteger activeCalls = new AtomicInteger();
+        private volatile boolean healthy;
+        private volatile ServerSideExtension.Capabilities capabilities;
+
+        Backend(String name, ManagedChannel channel) {
+            this.name = name;
+            this.channel = channel;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /** Forwarded calls and shards of split calls that have not ended. */
+        public int getActiveCalls() {
+            return activeCalls.get();
+        }
+
+        /**
+         * Returns true if the capabilities changed.
+         */
+        private boolean up(ServerSideExtension.Capabilities capabilities) {
+            if(!healthy) {
+                logger.info("Backend " + name + " is up.");
+            }
+            healthy = true;
+            boolean changed = !capabilities.equals(this.capabilities);
+            this.capabilities = capabilities;
+            return changed;
+        }
+
+        private void down(Throwable t) {
+            if(healthy || capabilities == null) {
+                logger.log(Level.WARNING, "Backend " + name + " is not available.", t);
+            }
+            healthy = false;
+        }
+
+        private void callStarted() {
+            activeCalls.incrementAndGet();
+        }
+
+        private void callEnded(Throwable t) {
+            activeCalls.decrementAndGet();
+            if(t != null && Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE) {
+                down(t);
+            }
+        }
+    }
+
+    /**
+     * A merged function: its definition with the id of the gateway, and its id on every backend
+     * that has it.
+     */
+    private static final class Route {
+        private ServerSideExtension.FunctionDefinition definition;
+        private final Map<Backend, Integer> backendIds = new LinkedHashMap<Backend, Integer>();
+    }
+
+    /**
+     * The merged capabilities of the backends. Functions with the same name and signature are the
+     * same function, a function with the name of another one but a different signature is left
+     * out, unless only it has an id already. Backends that have never answered are left out,
+     * backends that are down keep their functions, since Qlik only reads the capabilities when it
+     * connects. For the same reason the ids are taken from functionIds, which keeps the id of
+     * every signature that was ever served: a new signature gets the id it has on its first
+     * backend, or the next free id if another function has that one.
+     */
+    private static final class Routing {
+        private final ServerSideExtension.Capabilities capabilities;
+        private final Map<Integer, Route> routes = new HashMap<Integer, Route>();
+        private final List<Backend> scriptBackends = new ArrayList<Backend>();
+
+        Routing(List<Backend> backends, Map<ServerSideExtension.FunctionDefinition, Integer> functionIds) {
+            Map<ServerSideExtension.FunctionDefinition, Route> bySignature = new LinkedHashMap<ServerSideExtension.FunctionDefinition, Route>();
+            for(Backend backend : backends) {
+                ServerSideExtension.Capabilities backendCapabilities = backend.capabilities;
+                if(backendCapabilities == null) {
+                    continue;
+                }
+                if(backendCapabilities.getAllowScript()) {
+                    scriptBackends.add(backend);
+                }
+                for(ServerSideExtension.FunctionDefinition function : backendCapabilities.getFunctionsList()) {
+                    ServerSideExtension.FunctionDefinition signature = function.toBuilder().setFunctionId(0).build();
+                    Route route = bySignature.get(signature);
+                    if(route == null) {
+                        route = new Route();
+                        route.definition = function;
+                        bySignature.put(signature, route);
+                    }
+                    route.backendIds.put(backend, function.getFunctionId());
+                }
+            }
+
+            Map<String, ServerSideExtension.FunctionDefinition> byName = new HashMap<String, ServerSideExtension.FunctionDefinition>();
+            for(ServerSideExtension.FunctionDefinition signature : bySignature.keySet()) {
+                ServerSideExtension.FunctionDefinition other = byName.get(signature.getName());
+                if(other == null || !functionIds.containsKey(other) && functionIds.containsKey(signature)) {
+                    byName.put(signature.getName(), signature);
+                }
+            }
+            Set<Integer> usedIds = new HashSet<Integer>(functionIds.values());
+            ServerSideExtension.Capabilities.Builder builder = ServerSideExtension.Capabilities.newBuilder()
+                .setAllowScript(!scriptBackends.isEmpty())
+                .setPluginIdentifier("Qlik java plugin gateway")
+                .setPluginVersion("v1.0.0");
+            for(Map.Entry<ServerSideExtension.FunctionDefinition, Route> entry : bySignature.entrySet()) {
+                ServerSideExtension.FunctionDefinition signature = entry.getKey();
+                Route route = entry.getValue();
+                if(byName.get(signature.getName()) != signature) {
+                    logger.warning("Function " + signature.getName() + " of backend " + route.backendIds.keySet().iterator().next().name
+                        + " has another signature than on the other backends, it is left out.");
+                    continue;
+                }
+                Integer id = functionIds.get(signature);
+                if(id == null) {
+                    id = route.definition.getFunctionId();
+                    if(!usedIds.add(id)) {
+                        id = Collections.max(usedIds) + 1;
+                        usedIds.add(id);
+                    }
+                    functionIds.put(signature, id);
+                }
+                route.definition = signature.toBuilder().setFunctionId(id).build();
+                routes.put(id, route);
+                builder.addFunctions(route.definition);
+            }
+            this.capabilities = builder.build();
+        }
+    }
+
+    /**
+     * Forwards a call to one backend. Bundles are only read from Qlik while the backend can take
+     * them, and results are only read from the backend while Qlik can take them.
+     */
+    private static final class ForwardedCall implements StreamObserver<ServerSideExtension.BundledRows> {
+        private final Backend backend;
+        private final ServerCallStreamObserver<ServerSideExtension.BundledRows> qlik;
+        private ClientCallStreamObserver<ServerSideExtension.BundledRows> requests;
+        private boolean requestWaiting;
+        private boolean responseWaiting;
+
+        /**
+         * Must be created from the service method, before the call is started.
+         */
+        ForwardedCall(Backend backend, ServerCallStreamObserver<ServerSideExtension.BundledRows> qlik) {
+            this.backend = backend;
+            this.qlik = qlik;
+            qlik.disableAutoInboundFlowControl();
+            qlik.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    qlikReady();
+                }
+            });
+            backend.callStarted();
+        }
+
+        /**
+         * Reads the first bundle from Qlik, once the backend call is started.
+         */
+        void start() {
+            qlik.request(1);
+        }
+
+        ClientResponseObserver<ServerSideExtension.BundledRows, ServerSideExtension.BundledRows> responses() {
+            return new ClientResponseObserver<ServerSideExtension.BundledRows, ServerSideExtension.BundledRows>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<ServerSideExtension.BundledRows> requestStream) {
+                    synchronized(ForwardedCall.this) {
+                        requests = requestStream;
+                    }
+                    requestStream.disableAutoInboundFlowControl();
+                    requestStream.setOnReadyHandler(new Runnable() {
+                        @Override
+                        public void run() {
+                            backendReady();
+                        }
+                    });
+                }
+
+                @Override
+                public void onNext(ServerSideExtension.BundledRows bundledRows) {
+                    synchronized(ForwardedCall.this) {
+                        if(qlik.isCancelled()) {
+                            return;
+                        }
+                        qlik.onNext(bundledRows);
+                        if(qlik.isReady()) {
+                            requests.request(1);
+                        } else {
+                            responseWaiting = true;
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    backend.callEnded(t);
+                    synchronized(ForwardedCall.this) {
+                        if(!qlik.isCancelled()) {
+                            logger.log(Level.FINE, "The call to " + backend.name + " failed.", t);
+                            qlik.onError(t);
+                        }
+                    }
+                }
+
+                @Override
+                public void onCompleted() {
+                    backend.callEnded(null);
+                    synchronized(ForwardedCall.this) {
+                        if(!qlik.isCancelled()) {
+                            qlik.onCompleted();
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public synchronized void onNext(ServerSideExtension.BundledRows bundledRows) {
+            requests.onNext(bundledRows);
+            if(requests.isReady()) {
+                qlik.request(1);
+            } else {
+                requestWaiting = true;
+            }
+        }
+
+        /**
+         * gRPC only calls onError when the call from Qlik is cancelled, the backend call is cancelled
+         * with it.
+         */
+        @Override
+        public synchronized void onError(Throwable t) {
+            requests.cancel("The call from Qlik was cancelled.", t);
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            requests.onCompleted();
+        }
+
+        private synchronized void qlikReady() {
+            if(responseWaiting && qlik.isReady()) {
+                responseWaiting = false;
+                requests.request(1);
+            }
+        }
+
+        private synchronized void backendReady() {
+            if(requestWaiting && requests.isReady()) {
+                requestWaiting = false;
+                qlik.request(1);
+            }
+        }
+    }
+
+    /**
+     * Splits one ExecuteFunction call over several backends, one backend call per backend. The
+     * bundles sent to a backend are queued with their row counts, so that the result rows of the
+     * backend, in whatever bundles they come, can be assigned to the bundles they belong to.
+     *
+     * A bundle is read from Qlik when a backend can take it, as its call is ready, and fewer than
+     * maxBundlesInFlight bundles wait to be sent back. Over that, bundles are only read for the
+     * backend that owes the next result, since a backend may keep rows back until it gets more
+     * input or the end of the input. Reading is never made to wait for the results that are sent,
+     * and when Qlik ends the input it is ended on every backend call, so the backends send the rows
+     * they kept.
+     */
+    private final class ShardedCall implements StreamObserver<ServerSideExtension.BundledRows> {
+        private final ServerCallStreamObserver<ServerSideExtension.BundledRows> qlik;
+        private final String name;
+        private final List<Shard> shards = new ArrayList<Shard>();
+        private final Map<Long, ServerSideExtension.BundledRows> results = new HashMap<Long, ServerSideExtension.BundledRows>();
+        private long nextSequence;
+        private long nextToSend;
+        private boolean inputRequested;
+        private boolean inputCompleted;
+        private boolean finished;
+
+        ShardedCall(ServerCallStreamObserver<ServerSideExtension.BundledRows> qlik, Route route, List<Backend> candidates,
+            ServerSideExtension.FunctionRequestHeader functionHeader, ServerSideExtension.CommonRequestHeader commonHeader) {
+            this.qlik = qlik;
+            this.name = route.definition.getName();
+            qlik.disableAutoInboundFlowControl();
+            qlik.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized(ShardedCall.this) {
+                        sendCompleted();
+                    }
+                }
+            });
+            Metadata responseHeaders = PluginServerInterceptor.RESPONSE_HEADERS.get();
+            ServerSideExtension.CommonRequestHeader shardHeader = commonHeader.toBuilder()
+                .setCardinality(commonHeader.getCardinality() / candidates.size())
+                .build();
+            synchronized(this) {
+                for(Backend backend : candidates) {
+                    Shard shard = new Shard(backend);
+                    Metadata headers = headers(functionHeader.toBuilder().setFunctionId(route.backendIds.get(backend)).build(), null, shardHeader);
+                    backend.callStarted();
+                    withCacheHeader(MetadataUtils.attachHeaders(ConnectorGrpc.newStub(backend.channel), headers), responseHeaders)
+                        .executeFunction(shard);
+                    shards.add(shard);
+                }
+                requestInput();
+            }
+        }
+
+        @Override
+        public synchronized void onNext(ServerSideExtension.BundledRows bundledRows) {
+            inputRequested = false;
+            if(finished) {
+                return;
+            }
+            long sequence = nextSequence++;
+            if(bundledRows.getRowsCount() == 0) {
+                results.put(sequence, NO_RESULT);
+                sendCompleted();
+                return;
+            }
+            Shard target = sequence - nextToSend >= maxBundlesInFlight ? owingShard() : null;
+            if(target == null) {
+                target = leastLoaded();
+            }
+            target.pending.add(new Pending(sequence, bundledRows.getRowsCount()));
+            target.pendingRows += bundledRows.getRowsCount();
+            target.requests.onNext(bundledRows);
+            requestInput();
+        }
+
+        /**
+         * Reads the next bundle from Qlik if a backend can take it, see the class comment.
+         */
+        private void requestInput() {
+            if(finished || inputCompleted || inputRequested) {
+                return;
+            }
+            boolean canTake = false;
+            if(nextSequence - nextToSend < maxBundlesInFlight) {
+                for(Shard shard : shards) {
+                    canTake |= shard.requests.isReady();
+                }
+            } else {
+                Shard owing = owingShard();
+                canTake = owing != null && owing.requests.isReady();
+            }
+            if(canTake) {
+                inputRequested = true;
+                qlik.request(1);
+            }
+        }
+
+        /**
+         * The shard with the fewest rows outstanding, of the shards whose calls are ready if there are any.
+         */
+        private Shard leastLoaded() {
+            Shard target = null;
+            for(Shard shard : shards) {
+                boolean better = target == null
+                    || shard.requests.isReady() && !target.requests.isReady()
+                    || shard.requests.isReady() == target.requests.isReady() && shard.pendingRows < target.pendingRows;
+                if(better) {
+                    target = shard;
+                }
+            }
+            return target;
+        }
+
+        /**
+         * The shard that has the next result to send, or null if that result is complete.
+         */
+        private Shard owingShard() {
+            for(Shard shard : shards) {
+                Pending head = shard.pending.peek();
+                if(head != null && head.sequence == nextToSend) {
+                    return shard;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * gRPC only calls onError when the call from Qlik is cancelled, the backend calls are cancelled
+         * with it.
+         */
+        @Override
+        public synchronized void onError(Throwable t) {
+            logger.fine("Split call to " + name + " cancelled after " + nextSequence + " bundles.");
+            finish();
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            inputCompleted = true;
+            inputRequested = false;
+            if(finished) {
+                return;
+            }
+            for(Shard shard : shards) {
+                shard.requests.onCompleted();
+            }
+            sendCompleted();
+        }
+
+        /**
+         * Sends the results that are next in order, for as long as the response stream is ready.
+         */
+        private void sendCompleted() {
+            while(!finished && qlik.isReady()) {
+                ServerSideExtension.BundledRows result = results.remove(nextToSend);
+                if(result == null) {
+                    break;
+                }
+                if(result != NO_RESULT) {
+                    qlik.onNext(result);
+                }
+                nextToSend++;
+            }
+            requestInput();
+            if(finished || !inputCompleted || nextToSend != nextSequence) {
+                return;
+            }
+            for(Shard shard : shards) {
+                if(!shard.completed) {
+                    return;
+                }
+            }
+            finished = true;
+            qlik.onCompleted();
+            logger.fine("Split call to " + name + " completed after " + nextSequence + " bundles.");
+        }
+
+        private void fail(Status status) {
+            if(finished) {
+                return;
+            }
+            logger.log(Level.WARNING, "Split call to " + name + " failed: " + status.getDescription(), status.getCause());
+            finish();
+            if(!qlik.isCancelled()) {
+                qlik.onError(status.asRuntimeException());
+            }
+        }
+
+        private void finish() {
+            finished = true;
+            results.clear();
+            for(Shard shard : shards) {
+                shard.pending.clear();
+                if(!shard.completed) {
+                    shard.requests.cancel("The split call ended.", null);
+                }
+            }
+        }
+
+        private final class Shard implements ClientResponseObserver<ServerSideExtension.BundledRows, ServerSideExtension.BundledRows> {
+            private final Backend backend;
+            private final Queue<Pending> pending = new ArrayDeque<Pending>();
+            private ClientCallStreamObserver<ServerSideExtension.BundledRows> requests;
+            private long pendingRows;
+            private boolean completed;
+
+            Shard(Backend backend) {
+                this.backend = backend;
+            }
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<ServerSideExtension.BundledRows> requestStream) {
+                requests = requestStream;
+                requestStream.setOnReadyHandler(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized(ShardedCall.this) {
+                            requestInput();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(ServerSideExtension.BundledRows bundledRows) {
+                synchronized(ShardedCall.this) {
+                    if(finished) {
+                        return;
+                    }
+                    for(ServerSideExtension.Row row : bundledRows.getRowsList()) {
+                        Pending head = pending.peek();
+                        if(head == null) {
+                            fail(Status.INTERNAL.withDescription("Backend " + backend.name + " returned more rows than it was sent for " + name + "."));
+                            return;
+                        }
+                        head.rows.addRows(row);
+                        pendingRows--;
+                        if(head.rows.getRowsCount() == head.expectedRows) {
+                            pending.poll();
+                            results.put(head.sequence, head.rows.build());
+                        }
+                    }
+                    sendCompleted();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                backend.callEnded(t);
+                synchronized(ShardedCall.this) {
+                    completed = true;
+                    fail(Status.fromThrowable(t).augmentDescription("Backend " + backend.name + "."));
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                backend.callEnded(null);
+                synchronized(ShardedCall.this) {
+                    completed = true;
+                    if(!pending.isEmpty()) {
+                        fail(Status.INTERNAL.withDescription("Backend " + backend.name + " returned fewer rows than it was sent for " + name + "."));
+                    } else {
+                        sendCompleted();
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Pending {
+        private final long sequence;
+        private final int expectedRows;
+        private final ServerSideExtension.BundledRows.Builder rows = ServerSideExtension.BundledRows.newBuilder();
+
+        Pending(long sequence, int expectedRows) {
+            this.sequence = sequence;
+            this.expectedRows = expectedRows;
+        }
+    }
+
+    /**
+     * Ignores the bundles of a call that has already been answered with an error.
+     */
+    private static final class Discard implements StreamObserver<ServerSideExtension.BundledRows> {
+        @Override
+        public void onNext(ServerSideExtension.BundledRows bundledRows) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
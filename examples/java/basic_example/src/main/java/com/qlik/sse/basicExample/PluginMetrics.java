@@ -0,0 +1,269 @@
+package com.qlik.sse.basicexample;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms per RPC method and function id. Recording only touches
+ * LongAdders and HdrHistogram Recorders, which are lock free, so the cost on the call path
+ * stays small. The accumulated histograms are only built when the metrics are scraped.
+ */
+public class PluginMetrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentMap<String, CallMetrics> calls = new ConcurrentHashMap<String, CallMetrics>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<Gauge>();
+    private volatile long readyMillis = -1;
+    private final AtomicLong firstResponseMillis = new AtomicLong(-1);
+
+    /**
+     * A value that is read when the metrics are scraped.
+     */
+    public interface GaugeSource {
+        double value();
+    }
+
+    public CallMetrics forCall(String method, String function) {
+        String key = method + '\u0000' + function;
+        CallMetrics metrics = calls.get(key);
+        if(metrics == null) {
+            CallMetrics created = new CallMetrics(method, function);
+            metrics = calls.putIfAbsent(key, created);
+            if(metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Records the time since the JVM started when the server starts listening.
+     */
+    public void serverReady() {
+        readyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    /**
+     * Records the time since the JVM started for the first response of any call, later calls only
+     * read a field.
+     */
+    public void responseSent() {
+        if(firstResponseMillis.get() < 0) {
+            firstResponseMillis.compareAndSet(-1, ManagementFactory.getRuntimeMXBean().getUptime());
+        }
+    }
+
+    public void addGauge(String name, String help, GaugeSource source) {
+        gauges.add(new Gauge(name, help, source));
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    public String scrape() {
+        List<CallMetrics> all = new ArrayList<CallMetrics>(calls.values());
+        StringBuilder out = new StringBuilder();
+        counter(out, all, "sse_calls_total", "Number of calls.", Counter.CALLS);
+        counter(out, all, "sse_call_errors_total", "Number of calls that did not end with status OK.", Counter.ERRORS);
+        counter(out, all, "sse_calls_cancelled_total", "Number of calls cancelled by the client or by their deadline.", Counter.CANCELLED);
+        counter(out, all, "sse_rows_in_total", "Rows received.", Counter.ROWS_IN);
+        counter(out, all, "sse_rows_out_total", "Rows sent.", Counter.ROWS_OUT);
+        counter(out, all, "sse_bundles_in_total", "BundledRows messages received.", Counter.BUNDLES_IN);
+        counter(out, all, "sse_bundles_out_total", "BundledRows messages sent.", Counter.BUNDLES_OUT);
+        counter(out, all, "sse_bytes_in_total", "Serialized bytes received.", Counter.BYTES_IN);
+        counter(out, all, "sse_bytes_out_total", "Serialized bytes sent.", Counter.BYTES_OUT);
+        
+        out.append("# HELP sse_call_latency_seconds Call latency, from the start of the call until it is closed.\n");
+        out.append("# TYPE sse_call_latency_seconds summary\n");
+        for(CallMetrics metrics : all) {
+            summary(out, "sse_call_latency_seconds", metrics, metrics.latency(), 1e-6, metrics.latencySum.sum() * 1e-6);
+        }
+        out.append("# HELP sse_admission_wait_seconds Time calls waited for admission before they started.\n");
+        out.append("# TYPE sse_admission_wait_seconds summary\n");
+        for(CallMetrics metrics : all) {
+            summary(out, "sse_admission_wait_seconds", metrics, metrics.admissionWait(), 1e-6, metrics.admissionWaitSum.sum() * 1e-6);
+        }
+        out.append("# HELP sse_bundle_rows Number of rows in the received BundledRows messages.\n");
+        out.append("# TYPE sse_bundle_rows summary\n");
+        for(CallMetrics metrics : all) {
+            summary(out, "sse_bundle_rows", metrics, metrics.bundleRows(), 1, metrics.rowsIn.sum());
+        }
+        startupGauge(out, "sse_startup_seconds", "Time from the start of the JVM until the server listened on its port.", readyMillis);
+        startupGauge(out, "sse_time_to_first_response_seconds", "Time from the start of the JVM until the first response was sent.", 
+            firstResponseMillis.get());
+        for(Gauge gauge : gauges) {
+            out.append("# HELP ").append(gauge.name).append(' ').append(gauge.help).append('\n');
+            out.append("# TYPE ").append(gauge.name).append(" gauge\n");
+            out.append(gauge.name).append(' ').append(gauge.source.value()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void startupGauge(StringBuilder out, String name, String help, long millis) {
+        if(millis < 0) {
+            return;
+        }
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(millis / 1000.0).append('\n');
+    }
+
+    private enum Counter { CALLS, ERRORS, CANCELLED, ROWS_IN, ROWS_OUT, BUNDLES_IN, BUNDLES_OUT, BYTES_IN, BYTES_OUT }
+
+    private static void counter(StringBuilder out, List<CallMetrics> all, String name, String help, Counter counter) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for(CallMetrics metrics : all) {
+            out.append(name);
+            metrics.labels(out, null);
+            out.append(' ').append(metrics.get(counter)).append('\n');
+        }
+    }
+
+    private static void summary(StringBuilder out, String name, CallMetrics metrics, Histogram histogram, double scale, double sum) {
+        for(double quantile : QUANTILES) {
+            out.append(name);
+            metrics.labels(out, String.valueOf(quantile));
+            out.append(' ').append(histogram.getValueAtPercentile(quantile * 100) * scale).append('\n');
+        }
+        out.append(name).append("_sum");
+        metrics.labels(out, null);
+        out.append(' ').append(sum).append('\n');
+        out.append(name).append("_count");
+        metrics.labels(out, null);
+        out.append(' ').append(histogram.getTotalCount()).append('\n');
+    }
+
+    public static final class CallMetrics {
+        private final String method;
+        private final String function;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder cancelled = new LongAdder();
+        private final LongAdder rowsIn = new LongAdder();
+        private final LongAdder rowsOut = new LongAdder();
+        private final LongAdder bundlesIn = new LongAdder();
+        private final LongAdder bundlesOut = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder latencySum = new LongAdder();
+        private final LongAdder admissionWaitSum = new LongAdder();
+        private final Recorder latencyRecorder = new Recorder(3);
+        private final Recorder admissionWaitRecorder = new Recorder(3);
+        private final Recorder bundleRowsRecorder = new Recorder(3);
+        private final Histogram latencyTotal = new Histogram(3);
+        private final Histogram admissionWaitTotal = new Histogram(3);
+        private final Histogram bundleRowsTotal = new Histogram(3);
+        private Histogram latencyInterval;
+        private Histogram admissionWaitInterval;
+        private Histogram bundleRowsInterval;
+
+        private CallMetrics(String method, String function) {
+            this.method = method;
+            this.function = function;
+        }
+
+        public void callStarted() {
+            calls.increment();
+        }
+
+        public void callEnded(long nanos, boolean ok) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            latencyRecorder.recordValue(micros);
+            latencySum.add(micros);
+            if(!ok) {
+                errors.increment();
+            }
+        }
+
+        /**
+         * A cancelled call is never closed by the plugin, so it is not in the latency or the errors.
+         */
+        public void callCancelled() {
+            cancelled.increment();
+        }
+
+        public void callAdmitted(long waitNanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(waitNanos);
+            admissionWaitRecorder.recordValue(micros);
+            admissionWaitSum.add(micros);
+        }
+
+        public void bundleReceived(int rows, int bytes) {
+            bundlesIn.increment();
+            rowsIn.add(rows);
+            bytesIn.add(bytes);
+            bundleRowsRecorder.recordValue(rows);
+        }
+
+        public void bundleSent(int rows, int bytes) {
+            bundlesOut.increment();
+            rowsOut.add(rows);
+            bytesOut.add(bytes);
+        }
+
+        private synchronized Histogram latency() {
+            latencyInterval = latencyRecorder.getIntervalHistogram(latencyInterval);
+            latencyTotal.add(latencyInterval);
+            return latencyTotal;
+        }
+
+        private synchronized Histogram admissionWait() {
+            admissionWaitInterval = admissionWaitRecorder.getIntervalHistogram(admissionWaitInterval);
+            admissionWaitTotal.add(admissionWaitInterval);
+            return admissionWaitTotal;
+        }
+
+        private synchronized Histogram bundleRows() {
+            bundleRowsInterval = bundleRowsRecorder.getIntervalHistogram(bundleRowsInterval);
+            bundleRowsTotal.add(bundleRowsInterval);
+            return bundleRowsTotal;
+        }
+
+        private long get(Counter counter) {
+            switch(counter) {
+                case CALLS: return calls.sum();
+                case ERRORS: return errors.sum();
+                case CANCELLED: return cancelled.sum();
+                case ROWS_IN: return rowsIn.sum();
+                case ROWS_OUT: return rowsOut.sum();
+                case BUNDLES_IN: return bundlesIn.sum();
+                case BUNDLES_OUT: return bundlesOut.sum();
+                case BYTES_IN: return bytesIn.sum();
+                default: return bytesOut.sum();
+            }
+        }
+
+        private void labels(StringBuilder out, String quantile) {
+            out.append("{method=\"").append(method).append("\",function=\"").append(function).append('"');
+            if(quantile != null) {
+                out.append(",quantile=\"").append(quantile).append('"');
+            }
+            out.append('}');
+        }
+    }
+
+    private static final class Gauge {
+        private final String name;
+        private final String help;
+        private final GaugeSource source;
+
+        Gauge(String name, String help, GaugeSource source) {
+            this.name = name;
+            this.help = help;
+            this.source = source;
+        }
+    }
+}
@@ -2,8 +2,25 @@ package com.qlik.sse.basicexample;
 
 import qlik.sse.ServerSideExtension;
 
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.netty.GrpcSslContexts;
+import io.grpc.netty.NettyServerBuilder;
+
+import io.netty.buffer.ByteBufAllocator;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.ReferenceCountUtil;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,6 +29,17 @@ import java.util.logging.LogManager;
 import java.io.IOException;
 import java.io.FileInputStream;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PluginServer {
 
@@ -26,34 +54,353 @@ public class PluginServer {
     }
     private final int port;
     private final Server server;
-    private JavaPlugin plugin = new JavaPlugin();
+    private final JavaPlugin plugin;
+    private final PluginGateway gateway;
+    private final ServerServiceDefinition service;
+    private SslContext sslContext;
+    private final int warmUpCalls;
+    private final int warmUpRows;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private ExecutorService callExecutor;
+    private ScheduledExecutorService admissionExecutor;
+    private AdmissionControl admissionControl;
+    private CallRecorder recorder;
+    private final PluginMetrics metrics = new PluginMetrics();
+    private MetricsServer metricsServer;
     
     public PluginServer(int port, String pemDir) throws IOException {
-        this.port = port;
-        ServerBuilder serverBuilder;
+        this(port, pemDir, new JavaPlugin());
+    }
+    
+    public PluginServer(int port, String pemDir, JavaPlugin plugin) throws IOException {
+        this(new PluginConfig().set("port", String.valueOf(port)).set("pemDir", pemDir), plugin);
+    }
+    
+    public PluginServer(PluginConfig config, JavaPlugin plugin) throws IOException {
+        this(config, plugin, null);
+    }
+    
+    /**
+     * Serves the functions of the backends of the gateway instead of running them.
+     */
+    public PluginServer(PluginConfig config, PluginGateway gateway) throws IOException {
+        this(config, null, gateway);
+    }
+    
+    private PluginServer(PluginConfig config, JavaPlugin plugin, PluginGateway gateway) throws IOException {
+        this.port = config.getPort();
+        this.plugin = plugin;
+        this.gateway = gateway;
+        String pemDir = config.getPemDir();
+        NettyServerBuilder serverBuilder = NettyServerBuilder.forPort(port);
         
         if(!pemDir.isEmpty()) {
             try {
-                serverBuilder = ServerBuilder.forPort(port)
-                .useTransportSecurity(new File(pemDir, "sse_server_cert.pem"), new File(pemDir, "sse_server_key.pk8"));
+                sslContext = GrpcSslContexts.forServer(new File(pemDir, "sse_server_cert.pem"), new File(pemDir, "sse_server_key.pk8")).build();
+                serverBuilder.sslContext(sslContext);
+                logger.info("Using " + (OpenSsl.isAvailable() ? "OpenSSL" : "the JDK") + " for TLS.");
             } catch (Exception e) {
                 logger.log(Level.WARNING, "Could not create a secure connection.", e);
-                serverBuilder = ServerBuilder.forPort(port);
+                sslContext = null;
+                serverBuilder = NettyServerBuilder.forPort(port);
             }
-            
-        } else {
-            serverBuilder = ServerBuilder.forPort(port);
         }
+        configureTransport(serverBuilder, config);
         
-        server = serverBuilder.addService(plugin)
-        .intercept(new PluginServerInterceptor(plugin))
+        if(gateway != null) {
+            service = gateway.bindService();
+        } else {
+            service = config.getColumnarMarshaller() ? ColumnarConnector.bind(plugin) : plugin.bindService();
+        }
+        serverBuilder.addService(service);
+        warmUpCalls = config.getWarmUpCalls();
+        warmUpRows = config.getWarmUpRows();
+        if(config.getAdmissionControl()) {
+            admissionControl = createAdmissionControl(config);
+        }
+        if(!config.getRecordFile().isEmpty()) {
+            recorder = new CallRecorder(new File(config.getRecordFile()));
+        }
+        server = serverBuilder
+        .intercept(new PluginServerInterceptor(metrics, admissionControl, recorder, callExecutor))
         .build();
+        
+        if(config.getMetricsPort() > 0) {
+            if(gateway != null) {
+                addGatewayGauges(gateway);
+            } else {
+                addGauges(plugin);
+            }
+            metricsServer = new MetricsServer(config.getMetricsPort(), metrics);
+        }
+    }
+    
+    private AdmissionControl createAdmissionControl(PluginConfig config) {
+        admissionExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("sse-admission"));
+        AdmissionControl admission = new AdmissionControl(admissionExecutor);
+        admission.setMaxCardinality(config.getMaxCardinality());
+        admission.setConcurrencyLimits(config.getMaxConcurrentCalls(), config.getMaxCallsPerApp(), config.getMaxCallsPerUser());
+        admission.setMaxRowsPerSecondPerUser(config.getMaxRowsPerSecondPerUser());
+        admission.setMaxQueuedCalls(config.getMaxQueuedCalls());
+        for(Map.Entry<String, Double> weight : config.getAppWeights().entrySet()) {
+            admission.setAppWeight(weight.getKey(), weight.getValue());
+        }
+        logger.info("Admission control is on.");
+        return admission;
+    }
+    
+    private void configureTransport(NettyServerBuilder serverBuilder, PluginConfig config) {
+        String executor = config.getExecutor();
+        if(executor.equals("direct")) {
+            serverBuilder.directExecutor();
+            logger.info("Using the direct executor for calls.");
+        } else if(executor.equals("bounded")) {
+            // The queue is not bounded: gRPC runs every callback of a call on this executor, so a
+            // rejected task would break a running call. Calls are limited as a whole by admission
+            // control and maxConcurrentCallsPerConnection instead.
+            int threads = config.getExecutorThreads();
+            callExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("sse-call"));
+            serverBuilder.executor(callExecutor);
+            logger.info("Using a bounded executor with " + threads + " threads for calls.");
+        }
+        
+        boolean nativeTransport = config.getNativeTransport();
+        if(nativeTransport && !Epoll.isAvailable()) {
+            logger.log(Level.WARNING, "The native epoll transport is not available, using NIO.", Epoll.unavailabilityCause());
+            nativeTransport = false;
+        }
+        if(nativeTransport || config.getBossThreads() > 0 || config.getEventLoopThreads() > 0) {
+            Class<? extends ServerChannel> channelType;
+            if(nativeTransport) {
+                bossGroup = new EpollEventLoopGroup(Math.max(1, config.getBossThreads()));
+                workerGroup = new EpollEventLoopGroup(config.getEventLoopThreads());
+                channelType = EpollServerSocketChannel.class;
+            } else {
+                bossGroup = new NioEventLoopGroup(Math.max(1, config.getBossThreads()));
+                workerGroup = new NioEventLoopGroup(config.getEventLoopThreads());
+                channelType = NioServerSocketChannel.class;
+            }
+            serverBuilder.bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup)
+                .channelType(channelType);
+            logger.info("Using the " + (nativeTransport ? "epoll" : "NIO") + " transport.");
+        }
+        
+        if(config.getMaxMessageSize() > 0) {
+            serverBuilder.maxMessageSize(config.getMaxMessageSize());
+        }
+        if(config.getFlowControlWindow() > 0) {
+            serverBuilder.flowControlWindow(config.getFlowControlWindow());
+        }
+        if(config.getKeepAliveTime() > 0) {
+            serverBuilder.keepAliveTime(config.getKeepAliveTime(), TimeUnit.SECONDS)
+                .keepAliveTimeout(config.getKeepAliveTimeout(), TimeUnit.SECONDS);
+        }
+        if(config.getPermitKeepAliveTime() > 0) {
+            serverBuilder.permitKeepAliveTime(config.getPermitKeepAliveTime(), TimeUnit.SECONDS);
+        }
+        if(config.getMaxConcurrentCallsPerConnection() > 0) {
+            serverBuilder.maxConcurrentCallsPerConnection(config.getMaxConcurrentCallsPerConnection());
+        }
+    }
+    
+    private void addGauges(final JavaPlugin plugin) {
+        final ScriptBackend scriptBackend = plugin.getScriptBackend();
+        metrics.addGauge("sse_script_cache_hits", "Compiled script cache hits.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return scriptBackend.getHits();
+            }
+        });
+        metrics.addGauge("sse_script_cache_misses", "Compiled script cache misses.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return scriptBackend.getMisses();
+            }
+        });
+        metrics.addGauge("sse_script_cache_evictions", "Compiled script cache evictions.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return scriptBackend.getEvictions();
+            }
+        });
+        final AdmissionControl admission = admissionControl;
+        if(admission != null) {
+            metrics.addGauge("sse_admission_running_calls", "Calls admitted and not yet ended.", new PluginMetrics.GaugeSource() {
+                @Override
+                public double value() {
+                    return admission.getRunningCalls();
+                }
+            });
+            metrics.addGauge("sse_admission_queued_calls", "Calls waiting for admission.", new PluginMetrics.GaugeSource() {
+                @Override
+                public double value() {
+                    return admission.getQueuedCalls();
+                }
+            });
+            metrics.addGauge("sse_admission_rejected_calls", "Calls rejected with RESOURCE_EXHAUSTED.", new PluginMetrics.GaugeSource() {
+                @Override
+                public double value() {
+                    return admission.getRejectedCalls();
+                }
+            });
+        }
+        final ExecutionPlanner planner = plugin.getExecutionPlanner();
+        for(final ExecutionPlanner.Strategy strategy : ExecutionPlanner.Strategy.values()) {
+            String name = strategy.name().toLowerCase();
+            metrics.addGauge("sse_strategy_" + name + "_calls", "ExecuteFunction calls run with the " + name + " strategy.", 
+                new PluginMetrics.GaugeSource() {
+                @Override
+                public double value() {
+                    return planner.getCount(strategy);
+                }
+            });
+        }
+        final ResultCache resultCache = plugin.getResultCache();
+        if(resultCache != null) {
+            metrics.addGauge("sse_result_cache_hits", "Result cache hits.", new PluginMetrics.GaugeSource() {
+                @Override
+                public double value() {
+                    return resultCache.getHits();
+                }
+            });
+            metrics.addGauge("sse_result_cache_misses", "Result cache misses.", new PluginMetrics.GaugeSource() {
+                @Override
+                public double value() {
+                    return resultCache.getMisses();
+                }
+            });
+            metrics.addGauge("sse_result_cache_bytes", "Bytes used by the result cache.", new PluginMetrics.GaugeSource() {
+                @Override
+                public double value() {
+                    return resultCache.getUsedBytes();
+                }
+            });
+        }
+        final MemoryBudget aggregationMemory = plugin.getAggregationMemory();
+        metrics.addGauge("sse_aggregation_memory_bytes", "Heap reserved for the state of aggregations.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return aggregationMemory.getUsedBytes();
+            }
+        });
+        metrics.addGauge("sse_aggregation_memory_limit_bytes", "Heap that aggregations may reserve, 0 is no limit.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return aggregationMemory.getLimitBytes();
+            }
+        });
+        metrics.addGauge("sse_spilled_bytes", "Bytes of aggregation state written to spill files.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return aggregationMemory.getSpilledBytes();
+            }
+        });
+        metrics.addGauge("sse_spilled_calls", "Aggregation calls that spilled to disk.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return aggregationMemory.getSpilledCalls();
+            }
+        });
+        metrics.addGauge("sse_spill_files", "Spill files open now.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return aggregationMemory.getSpillFiles();
+            }
+        });
+    }
+    
+    private void addGatewayGauges(final PluginGateway gateway) {
+        metrics.addGauge("sse_gateway_healthy_backends", "Backends that answered the last health check.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                int healthy = 0;
+                for(PluginGateway.Backend backend : gateway.getBackends()) {
+                    healthy += backend.isHealthy() ? 1 : 0;
+                }
+                return healthy;
+            }
+        });
+        metrics.addGauge("sse_gateway_backend_calls", "Calls and shards of split calls running on the backends.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                int calls = 0;
+                for(PluginGateway.Backend backend : gateway.getBackends()) {
+                    calls += backend.getActiveCalls();
+                }
+                return calls;
+            }
+        });
+        metrics.addGauge("sse_gateway_forwarded_calls", "Calls forwarded to one backend.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return gateway.getForwardedCalls();
+            }
+        });
+        metrics.addGauge("sse_gateway_split_calls", "ExecuteFunction calls split over several backends.", new PluginMetrics.GaugeSource() {
+            @Override
+            public double value() {
+                return gateway.getShardedCalls();
+            }
+        });
     }
     
+    public PluginMetrics getMetrics() {
+        return metrics;
+    }
+    
+    public static JavaPlugin createPlugin(PluginConfig config) {
+        ScriptBackend scriptBackend = ScriptBackends.create(config.getScriptBackend(), config.getScriptEngines(), config.getScriptCacheSize());
+        String spillDirectory = config.getSpillDirectory();
+        MemoryBudget aggregationMemory = new MemoryBudget(config.getAggregationMemory() * 1024 * 1024, 
+            config.getAggregationCallMemory() * 1024 * 1024, spillDirectory.isEmpty() ? null : new File(spillDirectory));
+        JavaPlugin plugin = new JavaPlugin(scriptBackend, config.getMaxAggregatedStringLength(), aggregationMemory);
+        plugin.setExecutionPlanner(new ExecutionPlanner(config.getInlineMaxRows(), config.getParallelMinRows()));
+        int workerThreads = config.getWorkerThreads();
+        if(workerThreads > 0) {
+            plugin.setWorkerExecutor(new ForkJoinPool(workerThreads), config.getMaxBundlesInFlight());
+        }
+        plugin.setDictionarySize(config.getDictionarySize());
+        if(config.getResultCacheSize() > 0) {
+            plugin.setResultCache(new ResultCache(config.getResultCacheSize() * 1024 * 1024, config.getResultCacheTtl() * 1000, 
+                config.getResultCacheOffHeap()));
+        }
+        if(config.getResponseBundleSize() > 0) {
+            plugin.setResponseBundling(config.getResponseBundleSize(), config.getResponseFlushLatency(), 
+                Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("sse-flush")));
+        }
+        return plugin;
+    }
+    
+    /**
+     * A gateway to the backends of gatewayBackends, with plaintext channels to the backends.
+     */
+    public static PluginGateway createGateway(PluginConfig config) {
+        Map<String, ManagedChannel> channels = new LinkedHashMap<String, ManagedChannel>();
+        for(String target : config.getGatewayBackends()) {
+            ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forTarget(target).usePlaintext(true);
+            if(config.getMaxMessageSize() > 0) {
+                builder.maxInboundMessageSize(config.getMaxMessageSize());
+            }
+            channels.put(target, builder.build());
+        }
+        PluginGateway gateway = new PluginGateway(channels);
+        gateway.setSharding(config.getGatewayShardMinRows(), config.getGatewayShardFunctions(), config.getMaxBundlesInFlight());
+        gateway.setHealthChecks(config.getGatewayHealthCheckInterval() * 1000, config.getGatewayHealthCheckTimeout(), 
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("sse-health")));
+        return gateway;
+    }
     
     public void start() throws IOException {
+        prepare();
         server.start();
-        logger.info("Server started, listening on " + port + ".");
+        metrics.serverReady();
+        logger.info("Server started, listening on " + port + ", " + ManagementFactory.getRuntimeMXBean().getUptime() 
+            + " ms after the JVM started.");
+        if (metricsServer != null) {
+            metricsServer.start();
+        }
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -66,6 +413,63 @@ public class PluginServer {
         if (server != null) {
             server.shutdown();
         }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+        }
+        if (callExecutor != null) {
+            callExecutor.shutdown();
+        }
+        if (admissionExecutor != null) {
+            admissionExecutor.shutdown();
+        }
+        if (recorder != null) {
+            recorder.close();
+        }
+        if (gateway != null) {
+            gateway.close();
+        }
+    }
+    
+    /**
+     * Everything start does before the port is opened: starts the gateway, or builds the
+     * Capabilities of the plugin, and runs the warm-up.
+     */
+    private void prepare() {
+        if(gateway != null) {
+            gateway.start();
+        } else {
+            plugin.capabilities();
+        }
+        if(warmUpCalls > 0) {
+            warmUp();
+        }
+    }
+    
+    /**
+     * Creates the script engines, sets up a TLS engine and runs the warm-up calls, before the port
+     * is opened, so that the first calls from Qlik do not pay for it.
+     */
+    private void warmUp() {
+        if(plugin != null) {
+            try {
+                plugin.getScriptBackend().prestart();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Could not create the script engines.", e);
+            }
+        }
+        if(sslContext != null) {
+            ReferenceCountUtil.release(sslContext.newEngine(ByteBufAllocator.DEFAULT));
+        }
+        try {
+            long millis = new WarmUp(warmUpCalls, warmUpRows).run(service);
+            logger.info("Warmed up with " + warmUpCalls + " calls per function in " + millis + " ms.");
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "The warm-up did not complete.", e);
+        }
     }
     
     private void blockUntilShutdown() throws InterruptedException {
@@ -75,25 +479,33 @@ public class PluginServer {
     }
 
     public static void main(String[] args) throws Exception {
-        int port = 50071;
-        String pemDir = "";
-        for(int i = 0; i < args.length-1; i += 2) {
-            if(args[i].equals("--port")) {
-                try {
-                    port = Integer.parseInt(args[i + 1]);
-                } catch (Exception e) {
-                    logger.log(Level.WARNING, "Invalid port, using default value: " + port);
-                }
-            } else if (args[i].equals("--pemDir")) {
-                pemDir = args[i + 1];
-            }
-            
+        PluginConfig config = PluginConfig.fromArgs(args);
+        PluginServer server = config.getGatewayBackends().isEmpty() ? new PluginServer(config, createPlugin(config))
+            : new PluginServer(config, createGateway(config));
+        if(config.getExitAfterWarmUp()) {
+            server.prepare();
+            server.stop();
+            return;
         }
-        PluginServer server = new PluginServer(port, pemDir);
         server.start();
         server.blockUntilShutdown(); 
         return;
         
     }
-}
+    
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
 
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -6,10 +6,23 @@ import io.grpc.ServerInterceptor;
 import io.grpc.ServerCall;
 import io.grpc.ServerCallHandler;
 import io.grpc.Metadata;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
 import static io.grpc.Metadata.BINARY_BYTE_MARSHALLER;
 import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
 
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Set;
@@ -19,42 +32,284 @@ public class PluginServerInterceptor implements ServerInterceptor {
 
     private static final Logger logger = Logger.getLogger(PluginServerInterceptor.class.getName());
 
-    private JavaPlugin plugin;
-    
-    public PluginServerInterceptor(JavaPlugin plugin) {
-        this.plugin = plugin;
+    public static final Metadata.Key<byte[]> FUNCTION_REQUEST_HEADER_KEY = Metadata.Key.of("qlik-functionrequestheader-bin", BINARY_BYTE_MARSHALLER);
+    public static final Metadata.Key<byte[]> SCRIPT_REQUEST_HEADER_KEY = Metadata.Key.of("qlik-scriptrequestheader-bin", BINARY_BYTE_MARSHALLER);
+    public static final Metadata.Key<byte[]> COMMON_REQUEST_HEADER_KEY = Metadata.Key.of("qlik-commonrequestheader-bin", BINARY_BYTE_MARSHALLER);
+    public static final Metadata.Key<String> CACHE_KEY = Metadata.Key.of("qlik-cache", ASCII_STRING_MARSHALLER);
+
+    /**
+     * The parsed request headers of the current call. They are attached to the gRPC Context of the
+     * call, so they follow the call to whatever thread runs it.
+     */
+    public static final Context.Key<ServerSideExtension.FunctionRequestHeader> FUNCTION_REQUEST_HEADER = Context.key("qlik-functionrequestheader");
+    public static final Context.Key<ServerSideExtension.ScriptRequestHeader> SCRIPT_REQUEST_HEADER = Context.key("qlik-scriptrequestheader");
+    public static final Context.Key<ServerSideExtension.CommonRequestHeader> COMMON_REQUEST_HEADER = Context.key("qlik-commonrequestheader");
+
+    /**
+     * Headers that the service adds to the response headers of the current ExecuteFunction call, like
+     * qlik-cache. They are sent with the first response, so they must be added before it.
+     */
+    public static final Context.Key<Metadata> RESPONSE_HEADERS = Context.key("qlik-responseheaders");
+
+    private final PluginMetrics metrics;
+    private final AdmissionControl admissionControl;
+    private final CallRecorder recorder;
+    private final Executor admittedExecutor;
+
+    public PluginServerInterceptor() {
+        this(null);
     }
 
+    /**
+     * Records call, row and byte counts and latencies for every call in metrics, unless it is null.
+     */
+    public PluginServerInterceptor(PluginMetrics metrics) {
+        this(metrics, null);
+    }
+
+    /**
+     * Also admits ExecuteFunction and EvaluateScript calls through admissionControl, unless it is null.
+     */
+    public PluginServerInterceptor(PluginMetrics metrics, AdmissionControl admissionControl) {
+        this(metrics, admissionControl, null);
+    }
+
+    /**
+     * Also records the headers and bundles of ExecuteFunction and EvaluateScript calls with recorder, unless it is null.
+     */
+    public PluginServerInterceptor(PluginMetrics metrics, AdmissionControl admissionControl, CallRecorder recorder) {
+        this(metrics, admissionControl, recorder, null);
+    }
+
+    /**
+     * Calls that had to wait for admission are started on admittedExecutor, which should be the executor
+     * of the server. If it is null they are started on a cached pool of the interceptor.
+     */
+    public PluginServerInterceptor(PluginMetrics metrics, AdmissionControl admissionControl, CallRecorder recorder, 
+        Executor admittedExecutor) {
+        this.metrics = metrics;
+        this.admissionControl = admissionControl;
+        this.recorder = recorder;
+        this.admittedExecutor = admittedExecutor != null || admissionControl == null ? admittedExecutor : newAdmittedExecutor();
+    }
+
+    private static ExecutorService newAdmittedExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sse-admitted-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
 
     @Override
     public <RequestT,ResponseT>ServerCall.Listener<RequestT> interceptCall(
         ServerCall<RequestT,ResponseT> serverCall, final Metadata metadata, ServerCallHandler<RequestT,ResponseT> serverCallHandler) {
         logger.finer("Intercepting call to get metadata.");
-        plugin.setMetadata(metadata);
         logHeader(metadata);
-        return serverCallHandler.startCall(new SimpleForwardingServerCall<RequestT,ResponseT>(serverCall){
+        
+        final ServerSideExtension.FunctionRequestHeader functionHeader = parseFunctionRequestHeader(metadata);
+        ServerSideExtension.ScriptRequestHeader scriptHeader = parseScriptRequestHeader(metadata);
+        ServerSideExtension.CommonRequestHeader commonHeader = parseCommonRequestHeader(metadata);
+        final Metadata addedHeaders = functionHeader == null ? null : new Metadata();
+        Context context = Context.current().withValues(FUNCTION_REQUEST_HEADER, functionHeader, SCRIPT_REQUEST_HEADER, scriptHeader, 
+            COMMON_REQUEST_HEADER, commonHeader, RESPONSE_HEADERS, addedHeaders);
+        
+        final PluginMetrics.CallMetrics callMetrics = metrics == null ? null 
+            : metrics.forCall(methodName(serverCall), functionLabel(functionHeader, scriptHeader));
+        final long start = System.nanoTime();
+        if(callMetrics != null) {
+            callMetrics.callStarted();
+        }
+        
+        AdmissionControl.Ticket ticket = null;
+        Status rejection = null;
+        if(admissionControl != null && (functionHeader != null || scriptHeader != null)) {
+            try {
+                ticket = commonHeader == null ? admissionControl.newTicket("", "", 0)
+                    : admissionControl.newTicket(commonHeader.getAppId(), commonHeader.getUserId(), commonHeader.getCardinality());
+            } catch (StatusRuntimeException e) {
+                rejection = e.getStatus();
+            }
+        }
+        final AdmissionControl.Ticket admission = ticket;
+        
+        ServerCall<RequestT,ResponseT> call = new SimpleForwardingServerCall<RequestT,ResponseT>(serverCall){
+            @Override
+            public void sendMessage(ResponseT message) {
+                if(metrics != null) {
+                    metrics.responseSent();
+                }
+                if(callMetrics != null && message instanceof ServerSideExtension.BundledRows) {
+                    ServerSideExtension.BundledRows bundledRows = (ServerSideExtension.BundledRows) message;
+                    callMetrics.bundleSent(bundledRows.getRowsCount(), bundledRows.getSerializedSize());
+                } else if(callMetrics != null && message instanceof EncodedBundle) {
+                    EncodedBundle bundle = (EncodedBundle) message;
+                    callMetrics.bundleSent(bundle.getRowCount(), bundle.getSerializedSize());
+                }
+                super.sendMessage(message);
+            }
+            
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if(callMetrics != null) {
+                    callMetrics.callEnded(System.nanoTime() - start, status.isOk());
+                }
+                super.close(status, trailers);
+                if(admission != null) {
+                    admission.release();
+                }
+            }
+            
             @Override
             public void sendHeaders(Metadata responseHeaders) {
                 logger.finest("Send headers.");
-                try {
-                    ServerSideExtension.FunctionRequestHeader header = ServerSideExtension.FunctionRequestHeader
-                    .parseFrom(metadata.get(Metadata.Key.of("qlik-functionrequestheader-bin", BINARY_BYTE_MARSHALLER)));
+                if(functionHeader != null) {
                     logger.finest("Function request header.");
                     logHeader(responseHeaders);
-                    if(header.getFunctionId() == 5) {
-                        String value = "no-store";
-                        responseHeaders.put(Metadata.Key.of("qlik-cache", ASCII_STRING_MARSHALLER),value);
-                    } else {
-                        String value = "no-store";
-                        responseHeaders.remove(Metadata.Key.of("qlik-cache", ASCII_STRING_MARSHALLER),value);
+                    synchronized(addedHeaders) {
+                        if(addedHeaders.containsKey(CACHE_KEY)) {
+                            responseHeaders.discardAll(CACHE_KEY);
+                        }
+                        responseHeaders.merge(addedHeaders);
                     }
-                } catch(Exception e) {}
+                }
                 super.sendHeaders(responseHeaders);
             }
-        }, metadata);
+        };
+        
+        ServerCall.Listener<RequestT> listener;
+        if(rejection != null) {
+            call.close(rejection, new Metadata());
+            return new ServerCall.Listener<RequestT>() {};
+        } else if(admission == null) {
+            listener = Contexts.interceptCall(context, call, metadata, serverCallHandler);
+        } else {
+            DeferredListener<RequestT,ResponseT> deferred = new DeferredListener<RequestT,ResponseT>(admission, callMetrics, context, call, 
+                metadata, serverCallHandler, admittedExecutor);
+            try {
+                if(admission.submit(deferred)) {
+                    deferred.start();
+                }
+            } catch (StatusRuntimeException e) {
+                call.close(e.getStatus(), new Metadata());
+                return new ServerCall.Listener<RequestT>() {};
+            }
+            listener = deferred;
+        }
+        
+        final boolean record = recorder != null && (functionHeader != null || scriptHeader != null);
+        if(callMetrics == null && !record) {
+            return listener;
+        }
+        final long recordedCallId = record ? recorder.callStarted(methodName(serverCall), metadata.get(FUNCTION_REQUEST_HEADER_KEY), 
+            metadata.get(SCRIPT_REQUEST_HEADER_KEY), metadata.get(COMMON_REQUEST_HEADER_KEY)) : -1;
+        return new SimpleForwardingServerCallListener<RequestT>(listener) {
+            @Override
+            public void onMessage(RequestT message) {
+                if(record) {
+                    recorder.bundleReceived(recordedCallId, message);
+                }
+                if(callMetrics != null && message instanceof ServerSideExtension.BundledRows) {
+                    ServerSideExtension.BundledRows bundledRows = (ServerSideExtension.BundledRows) message;
+                    callMetrics.bundleReceived(bundledRows.getRowsCount(), bundledRows.getSerializedSize());
+                } else if(callMetrics != null && message instanceof RawBundle) {
+                    RawBundle bundle = (RawBundle) message;
+                    callMetrics.bundleReceived(bundle.getRowCount(), bundle.getSerializedSize());
+                }
+                super.onMessage(message);
+            }
+            
+            @Override
+            public void onHalfClose() {
+                if(record) {
+                    recorder.inputCompleted(recordedCallId);
+                }
+                super.onHalfClose();
+            }
+            
+            @Override
+            public void onCancel() {
+                if(callMetrics != null) {
+                    callMetrics.callCancelled();
+                }
+                super.onCancel();
+            }
+        };
+    }
+    
+    /**
+     * Sets the qlik-cache header in responseHeaders, the RESPONSE_HEADERS of a call. Nothing is set if it is null.
+     */
+    public static void setCacheHeader(Metadata responseHeaders, String value) {
+        if(responseHeaders == null) {
+            return;
+        }
+        synchronized(responseHeaders) {
+            responseHeaders.discardAll(CACHE_KEY);
+            responseHeaders.put(CACHE_KEY, value);
+        }
+    }
+
+    private static String methodName(ServerCall<?,?> serverCall) {
+        String fullMethodName = serverCall.getMethodDescriptor().getFullMethodName();
+        return fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1);
+    }
+    
+    private static String functionLabel(ServerSideExtension.FunctionRequestHeader functionHeader, 
+        ServerSideExtension.ScriptRequestHeader scriptHeader) {
+        if(functionHeader != null) {
+            return String.valueOf(functionHeader.getFunctionId());
+        }
+        return scriptHeader != null ? "script" : "";
+    }
+    
+    private ServerSideExtension.FunctionRequestHeader parseFunctionRequestHeader(Metadata metadata) {
+        byte[] bytes = metadata.get(FUNCTION_REQUEST_HEADER_KEY);
+        if(bytes == null) {
+            return null;
+        }
+        try {
+            return ServerSideExtension.FunctionRequestHeader.parseFrom(bytes);
+        } catch(Exception e) {
+            logger.log(Level.WARNING, "Could not parse the function request header.", e);
+            return null;
+        }
+    }
+    
+    private ServerSideExtension.ScriptRequestHeader parseScriptRequestHeader(Metadata metadata) {
+        byte[] bytes = metadata.get(SCRIPT_REQUEST_HEADER_KEY);
+        if(bytes == null) {
+            return null;
+        }
+        try {
+            return ServerSideExtension.ScriptRequestHeader.parseFrom(bytes);
+        } catch(Exception e) {
+            logger.log(Level.WARNING, "Could not parse the script request header.", e);
+            return null;
+        }
+    }
+    
+    private ServerSideExtension.CommonRequestHeader parseCommonRequestHeader(Metadata metadata) {
+        byte[] bytes = metadata.get(COMMON_REQUEST_HEADER_KEY);
+        if(bytes == null) {
+            return null;
+        }
+        try {
+            return ServerSideExtension.CommonRequestHeader.parseFrom(bytes);
+        } catch(Exception e) {
+            logger.log(Level.WARNING, "Could not parse the common request header.", e);
+            return null;
+        }
     }
     
     private void logHeader(Metadata header) {
+        if(!logger.isLoggable(Level.FINEST)) {
+            return;
+        }
         Set<String> keys = header.keys();
         logger.finest("Is header empty? " + keys.isEmpty());
         for(String key : keys) {
@@ -66,4 +321,201 @@ public class PluginServerInterceptor implements ServerInterceptor {
             
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * The listener of a call that waits for admission. Nothing is requested from the call before it
+     * starts, so at most a half-close, a cancel or a complete can arrive before that. Events are
+     * queued and delivered in order, one at a time, by the thread that starts the call or by the
+     * thread that delivers an event when no other thread is delivering. No thread waits for another,
+     * so a call that runs long in startCall or in an event only holds its own thread. When a waiting
+     * call is admitted, the admission thread only hands it to the executor, which starts it.
+     */
+    private static final class DeferredListener<RequestT,ResponseT> extends ServerCall.Listener<RequestT> implements Runnable {
+        private final AdmissionControl.Ticket ticket;
+        private final PluginMetrics.CallMetrics callMetrics;
+        private final Context context;
+        private final ServerCall<RequestT,ResponseT> call;
+        private final Metadata metadata;
+        private final ServerCallHandler<RequestT,ResponseT> serverCallHandler;
+        private final Executor executor;
+        private final Queue<Runnable> events = new ArrayDeque<Runnable>();
+        private ServerCall.Listener<RequestT> delegate;
+        private boolean started;
+        private boolean delivering;
+        private boolean cancelled;
+
+        DeferredListener(AdmissionControl.Ticket ticket, PluginMetrics.CallMetrics callMetrics, Context context, 
+            ServerCall<RequestT,ResponseT> call, Metadata metadata, ServerCallHandler<RequestT,ResponseT> serverCallHandler, 
+            Executor executor) {
+            this.ticket = ticket;
+            this.callMetrics = callMetrics;
+            this.context = context;
+            this.call = call;
+            this.metadata = metadata;
+            this.serverCallHandler = serverCallHandler;
+            this.executor = executor;
+        }
+
+        /**
+         * Runs on the admission thread when a waiting call is admitted, and hands the start to the executor.
+         */
+        @Override
+        public void run() {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        start();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.warning("Could not start an admitted call, the executor is full.");
+                synchronized(this) {
+                    cancelled = true;
+                    events.clear();
+                }
+                call.close(Status.RESOURCE_EXHAUSTED.withDescription("The plugin is busy."), new Metadata());
+            }
+        }
+
+        void start() {
+            synchronized(this) {
+                if(cancelled) {
+                    return;
+                }
+                started = true;
+                delivering = true;
+            }
+            if(callMetrics != null) {
+                callMetrics.callAdmitted(ticket.getWaitNanos());
+            }
+            try {
+                delegate = Contexts.interceptCall(context, call, metadata, serverCallHandler);
+                if(call.isReady()) {
+                    delegate.onReady();
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Could not start an admitted call.", e);
+                synchronized(this) {
+                    cancelled = true;
+                    events.clear();
+                    delivering = false;
+                }
+                call.close(Status.INTERNAL.withDescription("Could not start the call."), new Metadata());
+                return;
+            }
+            deliverQueued();
+        }
+
+        private void deliver(Runnable event) {
+            synchronized(this) {
+                if(cancelled) {
+                    return;
+                }
+                events.add(event);
+                if(!started || delivering) {
+                    return;
+                }
+                delivering = true;
+            }
+            deliverQueued();
+        }
+
+        private void deliverQueued() {
+            while(true) {
+                Runnable event;
+                synchronized(this) {
+                    event = events.poll();
+                    if(event == null) {
+                        delivering = false;
+                        return;
+                    }
+                }
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    synchronized(this) {
+                        delivering = false;
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void onMessage(final RequestT message) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.onMessage(message);
+                }
+            });
+        }
+
+        @Override
+        public void onHalfClose() {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.onHalfClose();
+                }
+            });
+        }
+
+        @Override
+        public void onCancel() {
+            if(!dropIfNotStarted()) {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        delegate.onCancel();
+                    }
+                });
+            }
+            ticket.release();
+        }
+
+        @Override
+        public void onComplete() {
+            if(!dropIfNotStarted()) {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        delegate.onComplete();
+                    }
+                });
+            }
+            ticket.release();
+        }
+
+        /**
+         * The start calls onReady if the call is ready, so earlier onReady events are not kept.
+         */
+        @Override
+        public void onReady() {
+            synchronized(this) {
+                if(!started) {
+                    return;
+                }
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.onReady();
+                }
+            });
+        }
+
+        /**
+         * Drops the call and returns true if it has not started, since it then ends before it starts.
+         */
+        private synchronized boolean dropIfNotStarted() {
+            if(started) {
+                return false;
+            }
+            cancelled = true;
+            events.clear();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import com.google.protobuf.CodedInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * BundledRows as they were received, in serialized form. The columnar ExecuteFunction decodes
+ * them straight into a ColumnBatch, other calls parse them into BundledRows.
+ */
+public class RawBundle {
+
+    private static final int ROWS_TAG = 10;
+
+    /**
+     * Copies each incoming message into a byte array and does not parse it.
+     */
+    public static final MethodDescriptor.Marshaller<RawBundle> MARSHALLER = new MethodDescriptor.Marshaller<RawBundle>() {
+        @Override
+        public InputStream stream(RawBundle bundle) {
+            return new ByteArrayInputStream(bundle.bytes, 0, bundle.length);
+        }
+
+        @Override
+        public RawBundle parse(InputStream stream) {
+            try {
+                return readFully(stream);
+            } catch (IOException e) {
+                throw Status.INTERNAL.withDescription("Could not read BundledRows.").withCause(e).asRuntimeException();
+            }
+        }
+    };
+
+    private final byte[] bytes;
+    private final int length;
+    private int rowCount = -1;
+
+    public RawBundle(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    public static RawBundle of(ServerSideExtension.BundledRows bundledRows) {
+        byte[] bytes = bundledRows.toByteArray();
+        return new RawBundle(bytes, bytes.length);
+    }
+
+    private static RawBundle readFully(InputStream stream) throws IOException {
+        byte[] bytes = new byte[Math.max(stream.available(), stream instanceof KnownLength ? 0 : 4096)];
+        int length = 0;
+        while(true) {
+            if(length == bytes.length) {
+                int next = stream.read();
+                if(next < 0) {
+                    break;
+                }
+                bytes = Arrays.copyOf(bytes, Math.max(16, bytes.length * 2));
+                bytes[length++] = (byte) next;
+            }
+            int read = stream.read(bytes, length, bytes.length - length);
+            if(read < 0) {
+                break;
+            }
+            length += read;
+        }
+        stream.close();
+        return new RawBundle(bytes, length);
+    }
+
+    public ColumnBatch decodeInto(ColumnBatch batch) throws IOException {
+        return batch.decode(bytes, length);
+    }
+
+    public ServerSideExtension.BundledRows toBundledRows() throws IOException {
+        return ServerSideExtension.BundledRows.parseFrom(CodedInputStream.newInstance(bytes, 0, length));
+    }
+
+    /**
+     * The array the message was read into, only the first getSerializedSize() bytes belong to it.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getSerializedSize() {
+        return length;
+    }
+
+    /**
+     * Counts the rows without decoding them.
+     */
+    public int getRowCount() {
+        if(rowCount < 0) {
+            int rows = 0;
+            try {
+                CodedInputStream input = CodedInputStream.newInstance(bytes, 0, length);
+                int tag;
+                while((tag = input.readTag()) != 0) {
+                    if(tag == ROWS_TAG) {
+                        rows++;
+                    }
+                    input.skipField(tag);
+                }
+            } catch (IOException e) {
+                return rows;
+            }
+            rowCount = rows;
+        }
+        return rowCount;
+    }
+}
@@ -0,0 +1,138 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.stub.StreamObserver;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Collects the result rows of a call and sends them as BundledRows of about targetBytes serialized
+ * bytes, independent of how the rows were bundled by the function. Rows that have waited for
+ * maxLatencyMillis are flushed by the timer even if the target size is not reached.
+ *
+ * All methods are synchronized, so the observer is never called concurrently. Backpressure is
+ * handled by the callers, which stop reading bundles while the response stream is not ready.
+ */
+public class ResponseBundler implements StreamObserver<ServerSideExtension.BundledRows> {
+
+    private static final Logger logger = Logger.getLogger(ResponseBundler.class.getName());
+
+    private final StreamObserver<ServerSideExtension.BundledRows> responseObserver;
+    private final int targetBytes;
+    private final long maxLatencyNanos;
+    private final ServerSideExtension.BundledRows.Builder pending = ServerSideExtension.BundledRows.newBuilder();
+    private int pendingBytes;
+    private long pendingSince;
+    private boolean closed;
+    private ScheduledFuture<?> flushTask;
+
+    /**
+     * With a null timer or a maxLatencyMillis of 0, rows are only flushed when the target size is
+     * reached and when the call is completed.
+     */
+    public ResponseBundler(StreamObserver<ServerSideExtension.BundledRows> responseObserver, int targetBytes,
+        long maxLatencyMillis, ScheduledExecutorService timer) {
+        this.responseObserver = responseObserver;
+        this.targetBytes = targetBytes;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        if(timer != null && maxLatencyMillis > 0) {
+            flushTask = timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flushIfStale();
+                }
+            }, maxLatencyMillis, maxLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void onNext(ServerSideExtension.BundledRows bundledRows) {
+        if(closed) {
+            return;
+        }
+        if(pending.getRowsCount() == 0) {
+            int size = bundledRows.getSerializedSize();
+            if(size <= targetBytes && size >= targetBytes / 2) {
+                responseObserver.onNext(bundledRows);
+                return;
+            }
+        }
+        for(ServerSideExtension.Row row : bundledRows.getRowsList()) {
+            int rowBytes = CodedOutputStream.computeMessageSize(ServerSideExtension.BundledRows.ROWS_FIELD_NUMBER, row);
+            if(pendingBytes > 0 && pendingBytes + rowBytes > targetBytes) {
+                flush();
+            }
+            if(pendingBytes == 0) {
+                pendingSince = System.nanoTime();
+            }
+            pending.addRows(row);
+            pendingBytes += rowBytes;
+        }
+        if(pendingBytes >= targetBytes) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        if(pending.getRowsCount() == 0 || closed) {
+            return;
+        }
+        logger.finest("Sending " + pending.getRowsCount() + " rows in " + pendingBytes + " bytes.");
+        responseObserver.onNext(pending.build());
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    private synchronized void flushIfStale() {
+        if(pending.getRowsCount() > 0 && System.nanoTime() - pendingSince >= maxLatencyNanos) {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        if(closed) {
+            return;
+        }
+        close();
+        responseObserver.onError(t);
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+        if(closed) {
+            return;
+        }
+        flush();
+        close();
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Drops the pending rows and stops the timer of output if it is a ResponseBundler, for a call
+     * that has been cancelled and can not be sent anything more. Other observers need nothing.
+     */
+    public static void discard(StreamObserver<ServerSideExtension.BundledRows> output) {
+        if(output instanceof ResponseBundler) {
+            ResponseBundler bundler = (ResponseBundler) output;
+            synchronized(bundler) {
+                bundler.close();
+            }
+        }
+    }
+
+    private void close() {
+        closed = true;
+        pending.clear();
+        pendingBytes = 0;
+        if(flushTask != null) {
+            flushTask.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A plugin side cache of the results of DETERMINISTIC tensor functions. A result is stored
+ * per bundle, keyed by the function id and the SHA-256 digest of the serialized bundle. Entries
+ * are evicted least recently used first when the cache is over maxBytes, and expire after
+ * ttlMillis. With offHeap set, results are stored serialized in direct buffers, outside of
+ * the Java heap, and parsed again on every hit.
+ */
+public class ResultCache {
+
+    private static final Logger logger = Logger.getLogger(ResultCache.class.getName());
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final boolean offHeap;
+    private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+    private long usedBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResultCache(long maxBytes, long ttlMillis, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.offHeap = offHeap;
+    }
+
+    public static boolean canCache(PluginFunction function) {
+        return function.getFunctionType() == ServerSideExtension.FunctionType.TENSOR
+            && function.hasTrait(PluginFunction.Trait.DETERMINISTIC);
+    }
+
+    /**
+     * Returns a function that looks up every bundle in the cache before calling the function.
+     */
+    public PluginFunction cached(int functionId, PluginFunction function) {
+        return new CachingFunction(functionId, function);
+    }
+
+    public ServerSideExtension.BundledRows get(int functionId, byte[] input) {
+        Key key = new Key(functionId, input);
+        Entry entry;
+        synchronized(this) {
+            entry = entries.get(key);
+            if(entry != null && entry.expires < System.currentTimeMillis()) {
+                remove(key);
+                entry = null;
+            }
+        }
+        if(entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        try {
+            return entry.result != null ? entry.result 
+                : ServerSideExtension.BundledRows.parseFrom(entry.serialized.duplicate());
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Could not read a cached result.", e);
+            return null;
+        }
+    }
+
+    public void put(int functionId, byte[] input, ServerSideExtension.BundledRows result) {
+        int size = result.getSerializedSize();
+        if(size > maxBytes) {
+            return;
+        }
+        Entry entry;
+        if(offHeap) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+            buffer.put(result.toByteArray());
+            buffer.flip();
+            entry = new Entry(null, buffer.asReadOnlyBuffer(), size, System.currentTimeMillis() + ttlMillis);
+        } else {
+            entry = new Entry(result, null, size, System.currentTimeMillis() + ttlMillis);
+        }
+        Key key = new Key(functionId, input);
+        synchronized(this) {
+            remove(key);
+            entries.put(key, entry);
+            usedBytes += size;
+            Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+            while(usedBytes > maxBytes && eldest.hasNext()) {
+                usedBytes -= eldest.next().getValue().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(Key key) {
+        Entry removed = entries.remove(key);
+        if(removed != null) {
+            usedBytes -= removed.size;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public String getStats() {
+        return "hits: " + getHits() + ", misses: " + getMisses() + ", evictions: " + getEvictions()
+            + ", bytes: " + getUsedBytes() + "/" + maxBytes;
+    }
+
+    private static final class Entry {
+        private final ServerSideExtension.BundledRows result;
+        private final ByteBuffer serialized;
+        private final int size;
+        private final long expires;
+
+        Entry(ServerSideExtension.BundledRows result, ByteBuffer serialized, int size, long expires) {
+            this.result = result;
+            this.serialized = serialized;
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The function id and the SHA-256 digest of the serialized bundle. The digests are compared
+     * in full, and two different bundles with the same SHA-256 digest are not a practical concern.
+     */
+    private static final class Key {
+        private final int functionId;
+        private final byte[] digest;
+
+        Key(int functionId, byte[] input) {
+            this.functionId = functionId;
+            this.digest = DIGEST.get().digest(input);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8 | (digest[3] & 0xFF)) 
+                + 31 * functionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return functionId == other.functionId && Arrays.equals(digest, other.digest);
+        }
+    }
+
+    private final class CachingFunction extends PluginFunction {
+        private final int functionId;
+        private final PluginFunction function;
+
+        CachingFunction(int functionId, PluginFunction function) {
+            super(function);
+            this.functionId = functionId;
+            this.function = function;
+        }
+
+        @Override
+        public FunctionCall newCall() {
+            return newCall(0);
+        }
+
+        @Override
+        public FunctionCall newCall(int expectedRows) {
+            final FunctionCall call = function.newCall(expectedRows);
+            return new FunctionCall() {
+                @Override
+                public ServerSideExtension.BundledRows onBundle(ServerSideExtension.BundledRows bundledRows) {
+                    byte[] input = bundledRows.toByteArray();
+                    ServerSideExtension.BundledRows result = get(functionId, input);
+                    if(result == null) {
+                        result = call.onBundle(bundledRows);
+                        if(result != null) {
+                            put(functionId, input, result);
+                        }
+                    }
+                    return result;
+                }
+                
+                @Override
+                public ServerSideExtension.BundledRows onCompleted() {
+                    logger.finer("Result cache: " + getStats() + ".");
+                    return call.onCompleted();
+                }
+                
+                @Override
+                public void cancel() {
+                    call.cancel();
+                }
+            };
+        }
+    }
+}
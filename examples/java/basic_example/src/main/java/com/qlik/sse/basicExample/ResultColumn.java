@@ -0,0 +1,85 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.Arrays;
+
+/**
+ * A single column of results. Like ColumnBatch, the arrays are reused between bundles
+ * and only grow when a bundle has more rows than any bundle before it.
+ */
+public class ResultColumn {
+
+    private final ServerSideExtension.DataType dataType;
+    private double[] numData = new double[0];
+    private String[] strData = new String[0];
+    private int size;
+
+    public ResultColumn(ServerSideExtension.DataType dataType) {
+        this.dataType = dataType;
+    }
+
+    public ServerSideExtension.DataType getDataType() {
+        return dataType;
+    }
+
+    public void clear() {
+        Arrays.fill(strData, 0, size, null);
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if(numData.length < capacity) {
+            numData = Arrays.copyOf(numData, capacity);
+            strData = Arrays.copyOf(strData, capacity);
+        }
+    }
+
+    public void add(double num) {
+        add(num, "");
+    }
+
+    public void add(String str) {
+        add(0, str);
+    }
+
+    public void add(double num, String str) {
+        if(size == numData.length) {
+            ensureCapacity(Math.max(16, size * 2));
+        }
+        numData[size] = num;
+        strData[size] = str;
+        size++;
+    }
+
+    /**
+     * Returns the numeric array to write to directly, for example when a function computes
+     * a whole column at once. Call setSize afterwards.
+     */
+    public double[] numericBuffer(int capacity) {
+        ensureCapacity(capacity);
+        return numData;
+    }
+
+    public String[] stringBuffer(int capacity) {
+        ensureCapacity(capacity);
+        return strData;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getNumeric(int row) {
+        return numData[row];
+    }
+
+    public String getString(int row) {
+        String str = strData[row];
+        return str == null ? "" : str;
+    }
+}
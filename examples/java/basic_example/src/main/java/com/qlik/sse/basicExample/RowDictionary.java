@@ -0,0 +1,253 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Dictionary encodes the rows of one call, so that a deterministic function or script is only
+ * evaluated once for every distinct row and the result is fanned back out to all rows with the
+ * same values. Every new row gets a code the first time it is seen, in any bundle of the call,
+ * until the dictionary holds maxSize rows. Rows that do not fit are evaluated as usual, so memory
+ * stays bounded however many distinct values a call has.
+ *
+ * A dictionary belongs to one call and is used by one thread at a time.
+ */
+public class RowDictionary {
+
+    private static final Logger logger = Logger.getLogger(RowDictionary.class.getName());
+
+    /** Evaluates the rows of a batch, adding one result per row. */
+    public interface Evaluator {
+        void evaluate(ColumnBatch batch, ResultColumn result) throws Exception;
+    }
+
+    private final ServerSideExtension.DataType[] dataTypes;
+    private final int maxSize;
+    private final Map<Object, Integer> codes = new HashMap<Object, Integer>();
+    private double[] numResults = new double[0];
+    private String[] strResults = new String[0];
+    private int[] rowCodes = new int[0];
+    private int[] pendingRows = new int[0];
+    private int[] pendingCodes = new int[0];
+    private final ColumnBatch pendingBatch = new ColumnBatch();
+    private final ResultColumn pendingResult;
+    private long hits;
+    private long misses;
+
+    public RowDictionary(List<ServerSideExtension.Parameter> params, ServerSideExtension.DataType returnType, int maxSize) {
+        this.dataTypes = new ServerSideExtension.DataType[params.size()];
+        for(int c = 0; c < dataTypes.length; c++) {
+            dataTypes[c] = params.get(c).getDataType();
+        }
+        this.maxSize = maxSize;
+        this.pendingResult = new ResultColumn(returnType);
+    }
+
+    /**
+     * Only rows with strings are worth encoding, numbers are cheaper to compute than to look up.
+     */
+    public static boolean canEncode(List<ServerSideExtension.Parameter> params) {
+        for(ServerSideExtension.Parameter param : params) {
+            if(param.getDataType() != ServerSideExtension.DataType.NUMERIC) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean canMemoize(PluginFunction function) {
+        return function instanceof TensorFunction && canEncode(function.getParams())
+            && (function.hasTrait(PluginFunction.Trait.DETERMINISTIC) || function.hasTrait(PluginFunction.Trait.DETERMINISTIC_IN_CALL));
+    }
+
+    /**
+     * Returns a function for one call that evaluates the function once per distinct row. It is not
+     * PARALLEL_SAFE, since the bundles share the dictionary.
+     */
+    public static TensorFunction memoized(TensorFunction function, int maxSize) {
+        return new MemoizedFunction(function, maxSize);
+    }
+
+    /**
+     * Evaluates the rows of the batch that are not in the dictionary yet, and the rows that do not
+     * fit, and writes the results of all rows to result.
+     */
+    public void evaluate(ColumnBatch batch, ResultColumn result, Evaluator evaluator) throws Exception {
+        int nbrOfRows = batch.getColumnCount() > 0 ? batch.getRowCount() : 0;
+        if(rowCodes.length < nbrOfRows) {
+            rowCodes = new int[nbrOfRows];
+            pendingRows = new int[nbrOfRows];
+            pendingCodes = new int[nbrOfRows];
+        }
+        int nbrOfPending = 0;
+        for(int r = 0; r < nbrOfRows; r++) {
+            Object key = key(batch, r);
+            Integer code = codes.get(key);
+            if(code != null) {
+                rowCodes[r] = code;
+                hits++;
+                continue;
+            }
+            misses++;
+            int newCode = -1;
+            if(codes.size() < maxSize) {
+                newCode = codes.size();
+                codes.put(key, newCode);
+                rowCodes[r] = newCode;
+            } else {
+                rowCodes[r] = -(nbrOfPending + 1);
+            }
+            pendingRows[nbrOfPending] = r;
+            pendingCodes[nbrOfPending] = newCode;
+            nbrOfPending++;
+        }
+
+        pendingResult.clear();
+        if(nbrOfPending == nbrOfRows) {
+            evaluator.evaluate(batch, pendingResult);
+        } else if(nbrOfPending > 0) {
+            evaluator.evaluate(pendingBatch.select(batch, pendingRows, nbrOfPending), pendingResult);
+        }
+        if(pendingResult.size() < nbrOfPending) {
+            throw new IllegalStateException("Got " + pendingResult.size() + " results for " + nbrOfPending + " rows.");
+        }
+        if(numResults.length < codes.size()) {
+            int capacity = Math.min(maxSize, Math.max(codes.size(), numResults.length * 2));
+            numResults = Arrays.copyOf(numResults, capacity);
+            strResults = Arrays.copyOf(strResults, capacity);
+        }
+        for(int i = 0; i < nbrOfPending; i++) {
+            int code = pendingCodes[i];
+            if(code >= 0) {
+                numResults[code] = pendingResult.getNumeric(i);
+                strResults[code] = pendingResult.getString(i);
+            }
+        }
+
+        result.clear();
+        double[] num = result.numericBuffer(nbrOfRows);
+        String[] str = result.stringBuffer(nbrOfRows);
+        for(int r = 0; r < nbrOfRows; r++) {
+            int code = rowCodes[r];
+            if(code >= 0) {
+                num[r] = numResults[code];
+                str[r] = strResults[code];
+            } else {
+                num[r] = pendingResult.getNumeric(-code - 1);
+                str[r] = pendingResult.getString(-code - 1);
+            }
+        }
+        result.setSize(nbrOfRows);
+    }
+
+    private Object key(ColumnBatch batch, int row) {
+        if(dataTypes.length == 1) {
+            return value(batch, 0, row);
+        }
+        Object[] values = new Object[dataTypes.length];
+        for(int c = 0; c < values.length; c++) {
+            values[c] = value(batch, c, row);
+        }
+        return Arrays.asList(values);
+    }
+
+    private Object value(ColumnBatch batch, int column, int row) {
+        if(column >= batch.getColumnCount()) {
+            return "";
+        }
+        switch(dataTypes[column]) {
+            case NUMERIC:
+                return batch.getNumeric(column, row);
+            case STRING:
+                return batch.getString(column, row);
+            default:
+                return new DualKey(batch.getNumeric(column, row), batch.getString(column, row));
+        }
+    }
+
+    public int size() {
+        return codes.size();
+    }
+
+    /** The number of rows whose result came from the dictionary. */
+    public long getHits() {
+        return hits;
+    }
+
+    /** The number of rows that were evaluated. */
+    public long getMisses() {
+        return misses;
+    }
+
+    public String getStats() {
+        return "hits: " + hits + ", misses: " + misses + ", values: " + codes.size() + "/" + maxSize;
+    }
+
+    private static final class DualKey {
+        private final double num;
+        private final String str;
+
+        DualKey(double num, String str) {
+            this.num = num;
+            this.str = str;
+        }
+
+        @Override
+        public int hashCode() {
+            return str.hashCode() * 31 + Double.valueOf(num).hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof DualKey)) {
+                return false;
+            }
+            DualKey other = (DualKey) o;
+            return Double.compare(num, other.num) == 0 && str.equals(other.str);
+        }
+    }
+
+    private static final class MemoizedFunction extends TensorFunction {
+        private final TensorFunction function;
+        private final RowDictionary dictionary;
+
+        MemoizedFunction(TensorFunction function, int maxSize) {
+            super(function, withoutTrait(function, Trait.PARALLEL_SAFE));
+            this.function = function;
+            this.dictionary = new RowDictionary(function.getParams(), function.getReturnType(), maxSize);
+        }
+
+        private static EnumSet<Trait> withoutTrait(PluginFunction function, Trait trait) {
+            EnumSet<Trait> traits = EnumSet.noneOf(Trait.class);
+            for(Trait t : Trait.values()) {
+                if(t != trait && function.hasTrait(t)) {
+                    traits.add(t);
+                }
+            }
+            return traits;
+        }
+
+        @Override
+        protected void apply(ColumnBatch batch, ResultColumn result) {
+            try {
+                dictionary.evaluate(batch, result, new Evaluator() {
+                    @Override
+                    public void evaluate(ColumnBatch rows, ResultColumn rowResults) {
+                        function.apply(rows, rowResults);
+                    }
+                });
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            logger.finer("Dictionary of " + getName() + ": " + dictionary.getStats() + ".");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+/**
+ * Evaluates the JavaScript of EvaluateScript calls. A backend is shared by all calls and hands
+ * out sessions, each of which is used by one thread for one bundle.
+ */
+public interface ScriptBackend {
+
+    /**
+     * Returns a session for the script of the header, compiling the script if it is not cached.
+     */
+    Session open(ServerSideExtension.ScriptRequestHeader header) throws Exception;
+
+    /**
+     * Creates the engines of the pool, or initializes the language, now instead of when the first calls need them.
+     */
+    void prestart();
+
+    String getName();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    String getStats();
+
+    void close();
+
+    /**
+     * The variables bound with put are visible to the script until the session is closed.
+     */
+    interface Session {
+
+        void put(String name, Object value);
+
+        /**
+         * Evaluates the script and returns its value as a Java object: a String, a Number, a
+         * Boolean or null, or the object itself for other values.
+         */
+        Object eval() throws Exception;
+
+        /**
+         * Stops an eval that is running on another thread, which then throws. Does not block, and
+         * does nothing if the backend can not interrupt scripts.
+         */
+        void interrupt();
+
+        /**
+         * Discards the variables and the globals of the script and returns the session to the backend.
+         */
+        void close();
+    }
+}
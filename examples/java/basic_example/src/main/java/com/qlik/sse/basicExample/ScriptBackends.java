@@ -0,0 +1,38 @@
+package com.qlik.sse.basicexample;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the script backend by name: "graal", "jsr223", or "auto", which uses GraalVM JavaScript
+ * when the polyglot API and the js language are on the class path and javax.script otherwise.
+ */
+public final class ScriptBackends {
+
+    private static final Logger logger = Logger.getLogger(ScriptBackends.class.getName());
+
+    public static final String JSR223_ENGINE_NAME = "JavaScript";
+
+    private ScriptBackends() {
+    }
+
+    public static ScriptBackend create(String name, int poolSize, int cacheSize) {
+        if("jsr223".equals(name)) {
+            return new Jsr223ScriptBackend(JSR223_ENGINE_NAME, poolSize, cacheSize);
+        }
+        if(!"graal".equals(name) && !"auto".equals(name)) {
+            logger.log(Level.WARNING, "Invalid script backend, using default value: auto");
+        }
+        Level fallbackLevel = "graal".equals(name) ? Level.WARNING : Level.INFO;
+        try {
+            ScriptBackend backend = new GraalScriptBackend(poolSize, cacheSize);
+            logger.info("Using GraalVM JavaScript for scripts.");
+            return backend;
+        } catch (LinkageError e) {
+            logger.log(fallbackLevel, "The GraalVM polyglot API is not available, using javax.script.");
+        } catch (RuntimeException e) {
+            logger.log(fallbackLevel, "GraalVM JavaScript is not available, using javax.script.", e);
+        }
+        return new Jsr223ScriptBackend(JSR223_ENGINE_NAME, poolSize, cacheSize);
+    }
+}
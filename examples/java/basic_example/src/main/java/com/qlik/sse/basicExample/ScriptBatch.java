@@ -0,0 +1,133 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binds a whole bundle to a script session as column arrays, for scripts that run once per bundle
+ * instead of once per row. The script sees:
+ * <ul>
+ * <li>{@code rows}: the number of rows in the bundle.</li>
+ * <li>{@code num[c]}: the numbers of parameter c, for NUMERIC and DUAL parameters.</li>
+ * <li>{@code str[c]}: the strings of parameter c, for STRING and DUAL parameters.</li>
+ * <li>{@code result}: an array of rows elements for the results of a tensor script, numbers for
+ * a NUMERIC return type and strings for STRING and DUAL.</li>
+ * <li>{@code state} and {@code done}: for aggregation scripts, a java.util.Map that is kept for
+ * the whole call, and whether this is the final evaluation after the last bundle. Use get and put
+ * on the map, since property access to map entries only works with Nashorn.</li>
+ * </ul>
+ */
+public final class ScriptBatch {
+
+    /** Tensor scripts that start with this directive, for example 'use batch';, run in batch mode. */
+    public static final String BATCH_DIRECTIVE = "use batch";
+
+    /**
+     * Tensor scripts that start with this directive give the same result for the same arguments, so
+     * with a row dictionary they are evaluated once per distinct row of a call.
+     */
+    public static final String DETERMINISTIC_DIRECTIVE = "use deterministic";
+
+    private static final String ROWS = "rows";
+    private static final String NUM = "num";
+    private static final String STR = "str";
+    private static final String RESULT = "result";
+    private static final String STATE = "state";
+    private static final String DONE = "done";
+
+    private ScriptBatch() {
+    }
+
+    public static boolean isBatchScript(String script) {
+        return hasDirective(script, BATCH_DIRECTIVE);
+    }
+
+    /**
+     * Whether the script starts with the directive, among the string literals at its start, for
+     * example 'use batch'; 'use deterministic';.
+     */
+    public static boolean hasDirective(String script, String directive) {
+        int i = 0;
+        int length = script.length();
+        while(true) {
+            while(i < length && (Character.isWhitespace(script.charAt(i)) || script.charAt(i) == ';')) {
+                i++;
+            }
+            if(i == length || (script.charAt(i) != '\'' && script.charAt(i) != '"')) {
+                return false;
+            }
+            int end = script.indexOf(script.charAt(i), i + 1);
+            if(end < 0) {
+                return false;
+            }
+            if(script.regionMatches(i + 1, directive, 0, directive.length()) && end == i + 1 + directive.length()) {
+                return true;
+            }
+            i = end + 1;
+        }
+    }
+
+    public static void bindColumns(ScriptBackend.Session session, ColumnBatch batch, List<ServerSideExtension.Parameter> params) {
+        int nbrOfRows = batch.getColumnCount() > 0 ? batch.getRowCount() : 0;
+        Object[] num = new Object[params.size()];
+        Object[] str = new Object[params.size()];
+        for(int c = 0; c < params.size() && c < batch.getColumnCount(); c++) {
+            ServerSideExtension.DataType dataType = params.get(c).getDataType();
+            if(dataType != ServerSideExtension.DataType.STRING) {
+                double[] numbers = batch.getNumeric(c);
+                num[c] = numbers.length == nbrOfRows ? numbers : Arrays.copyOf(numbers, nbrOfRows);
+            }
+            if(dataType != ServerSideExtension.DataType.NUMERIC) {
+                String[] strings = batch.getStrings(c);
+                str[c] = strings.length == nbrOfRows ? strings : Arrays.copyOf(strings, nbrOfRows);
+            }
+        }
+        session.put(ROWS, nbrOfRows);
+        session.put(NUM, num);
+        session.put(STR, str);
+    }
+
+    /**
+     * Binds and returns an empty result array for the rows of a tensor script.
+     */
+    public static Object bindResult(ScriptBackend.Session session, ServerSideExtension.DataType returnType, int nbrOfRows) {
+        Object result = returnType == ServerSideExtension.DataType.NUMERIC ? new double[nbrOfRows] : new String[nbrOfRows];
+        session.put(RESULT, result);
+        return result;
+    }
+
+    /**
+     * Copies the result array that the script has filled in to the result column. Like in row mode,
+     * the numbers of a DUAL result are parsed from the strings.
+     */
+    public static void readResult(Object array, ResultColumn result, int nbrOfRows) {
+        result.clear();
+        if(array instanceof double[]) {
+            System.arraycopy((double[]) array, 0, result.numericBuffer(nbrOfRows), 0, nbrOfRows);
+            result.setSize(nbrOfRows);
+            return;
+        }
+        String[] strings = (String[]) array;
+        boolean dual = result.getDataType() == ServerSideExtension.DataType.DUAL;
+        for(int r = 0; r < nbrOfRows; r++) {
+            String str = strings[r] == null ? "" : strings[r];
+            result.add(dual ? parseNumber(str) : 0, str);
+        }
+    }
+
+    private static double parseNumber(String str) {
+        try {
+            return Double.parseDouble(str);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    public static void bindState(ScriptBackend.Session session, Map<String, Object> state, boolean done) {
+        session.put(STATE, state);
+        session.put(DONE, done);
+    }
+}
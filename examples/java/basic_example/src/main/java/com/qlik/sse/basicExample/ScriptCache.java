@@ -0,0 +1,135 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * A bounded LRU cache of compiled scripts for one script engine. A CompiledScript is
+ * tied to the engine that compiled it, so every pooled engine has its own cache.
+ */
+public class ScriptCache {
+
+    private static final Logger logger = Logger.getLogger(ScriptCache.class.getName());
+
+    private final ScriptEngine engine;
+    private final int maxEntries;
+    private final Map<Key, CompiledScript> scripts;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ScriptCache(ScriptEngine engine, final int maxEntries) {
+        this.engine = engine;
+        this.maxEntries = maxEntries;
+        this.scripts = new LinkedHashMap<Key, CompiledScript>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CompiledScript> eldest) {
+                if(size() > ScriptCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    logger.finer("Evicted a compiled script from the script cache.");
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized CompiledScript get(String script, List<ServerSideExtension.Parameter> params) throws ScriptException {
+        Key key = new Key(script, params);
+        CompiledScript compiled = scripts.get(key);
+        if(compiled != null) {
+            hits.incrementAndGet();
+            return compiled;
+        }
+        misses.incrementAndGet();
+        if(engine instanceof Compilable) {
+            compiled = ((Compilable) engine).compile(script);
+        } else {
+            compiled = new InterpretedScript(engine, script);
+        }
+        if(maxEntries > 0) {
+            scripts.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int size() {
+        return scripts.size();
+    }
+
+    private static final class Key {
+        private final String script;
+        private final ServerSideExtension.DataType[] paramTypes;
+        private final int hash;
+
+        Key(String script, List<ServerSideExtension.Parameter> params) {
+            this.script = script;
+            this.paramTypes = new ServerSideExtension.DataType[params.size()];
+            for(int i = 0; i < paramTypes.length; i++) {
+                paramTypes[i] = params.get(i).getDataType();
+            }
+            this.hash = 31 * script.hashCode() + Arrays.hashCode(paramTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && script.equals(other.script) && Arrays.equals(paramTypes, other.paramTypes);
+        }
+    }
+
+    /**
+     * Used for engines that do not implement Compilable, the script is parsed on every eval.
+     */
+    private static final class InterpretedScript extends CompiledScript {
+        private final ScriptEngine engine;
+        private final String script;
+
+        InterpretedScript(ScriptEngine engine, String script) {
+            this.engine = engine;
+            this.script = script;
+        }
+
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException {
+            return engine.eval(script, context);
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return engine;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.qlik.sse.basicexample;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+/**
+ * A pool of script engines that can be shared between concurrent calls. An engine is
+ * only used by one thread at a time, between borrow and release.
+ */
+public class ScriptEnginePool {
+
+    private static final Logger logger = Logger.getLogger(ScriptEnginePool.class.getName());
+
+    private final ScriptEngineManager manager = new ScriptEngineManager();
+    private final String engineName;
+    private final int poolSize;
+    private final int cacheSize;
+    private final BlockingQueue<Entry> idle = new LinkedBlockingQueue<Entry>();
+    private final List<Entry> all = new CopyOnWriteArrayList<Entry>();
+
+    public ScriptEnginePool(String engineName, int poolSize, int cacheSize) {
+        this.engineName = engineName;
+        this.poolSize = Math.max(1, poolSize);
+        this.cacheSize = cacheSize;
+    }
+
+    public Entry borrow() throws InterruptedException {
+        Entry entry = idle.poll();
+        if(entry != null) {
+            return entry;
+        }
+        synchronized(this) {
+            if(all.size() < poolSize) {
+                return newEntry();
+            }
+        }
+        return idle.take();
+    }
+
+    /**
+     * Creates the engines that have not been created yet.
+     */
+    public synchronized void prestart() {
+        while(all.size() < poolSize) {
+            idle.offer(newEntry());
+        }
+    }
+
+    private Entry newEntry() {
+        ScriptEngine engine = manager.getEngineByName(engineName);
+        if(engine == null) {
+            throw new IllegalStateException("No script engine found for " + engineName + ".");
+        }
+        Entry entry = new Entry(engine, new ScriptCache(engine, cacheSize));
+        all.add(entry);
+        logger.fine("Created script engine " + all.size() + " of " + poolSize + ".");
+        return entry;
+    }
+
+    public void release(Entry entry) {
+        if(entry != null) {
+            idle.offer(entry);
+        }
+    }
+
+    public long getHits() {
+        long hits = 0;
+        for(Entry entry : all) {
+            hits += entry.cache.getHits();
+        }
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+        for(Entry entry : all) {
+            misses += entry.cache.getMisses();
+        }
+        return misses;
+    }
+
+    public long getEvictions() {
+        long evictions = 0;
+        for(Entry entry : all) {
+            evictions += entry.cache.getEvictions();
+        }
+        return evictions;
+    }
+
+    public int getEngineCount() {
+        return all.size();
+    }
+
+    public String getStats() {
+        return "engines: " + getEngineCount() + "/" + poolSize + ", hits: " + getHits() 
+            + ", misses: " + getMisses() + ", evictions: " + getEvictions();
+    }
+
+    public static final class Entry {
+        private final ScriptEngine engine;
+        private final ScriptCache cache;
+
+        private Entry(ScriptEngine engine, ScriptCache cache) {
+            this.engine = engine;
+            this.cache = cache;
+        }
+
+        public ScriptEngine getEngine() {
+            return engine;
+        }
+
+        public ScriptCache getCache() {
+            return cache;
+        }
+    }
+}
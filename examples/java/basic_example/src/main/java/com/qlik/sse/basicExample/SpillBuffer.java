@@ -0,0 +1,205 @@
+package com.qlik.sse.basicexample;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An append-only list of strings for the state of an aggregation that needs to keep its rows.
+ * The strings are stored as length-prefixed UTF-8 in heap pages for as long as the lease of the
+ * call can reserve memory for them. When it can not, the buffer spills: the following pages are
+ * memory-mapped segments of a temporary file, which the operating system writes out and pages in
+ * as needed, so the heap only holds what was reserved. The strings are read back in order with a
+ * Reader. The buffer must be closed, which releases the lease and deletes the file.
+ *
+ * The file is opened with DELETE_ON_CLOSE. Java 8 can not unmap a file, the mappings are freed
+ * when they are garbage collected, so on Windows the file is only deleted after that.
+ */
+public class SpillBuffer {
+
+    private static final Logger logger = Logger.getLogger(SpillBuffer.class.getName());
+
+    private static final int FIRST_PAGE_BYTES = 4 * 1024;
+    private static final int MAX_PAGE_BYTES = 1024 * 1024;
+    private static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    private final MemoryBudget.Lease lease;
+    private final int segmentBytes;
+    private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+    private final byte[] lengthBytes = new byte[4];
+    private ByteBuffer page;
+    private FileChannel file;
+    private long fileBytes;
+    private long bytes;
+    private int size;
+
+    public SpillBuffer(MemoryBudget.Lease lease) {
+        this(lease, SEGMENT_BYTES);
+    }
+
+    SpillBuffer(MemoryBudget.Lease lease, int segmentBytes) {
+        this.lease = lease;
+        this.segmentBytes = segmentBytes;
+    }
+
+    public void add(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        int length = utf8.length;
+        lengthBytes[0] = (byte) (length >>> 24);
+        lengthBytes[1] = (byte) (length >>> 16);
+        lengthBytes[2] = (byte) (length >>> 8);
+        lengthBytes[3] = (byte) length;
+        write(lengthBytes);
+        write(utf8);
+        size++;
+        if(file != null) {
+            lease.getBudget().spilled(4 + length);
+        }
+    }
+
+    private void write(byte[] source) {
+        int offset = 0;
+        while(offset < source.length) {
+            if(page == null || !page.hasRemaining()) {
+                page = nextPage(source.length - offset);
+                pages.add(page);
+            }
+            int length = Math.min(page.remaining(), source.length - offset);
+            page.put(source, offset, length);
+            offset += length;
+        }
+        bytes += source.length;
+    }
+
+    private ByteBuffer nextPage(int needed) {
+        if(file == null) {
+            int pageBytes = page == null ? FIRST_PAGE_BYTES : Math.min(MAX_PAGE_BYTES, page.capacity() * 2);
+            while(pageBytes < needed && pageBytes < MAX_PAGE_BYTES) {
+                pageBytes *= 2;
+            }
+            if(lease.tryReserve(pageBytes)) {
+                return ByteBuffer.allocate(pageBytes);
+            }
+            openFile();
+        }
+        try {
+            ByteBuffer segment = file.map(FileChannel.MapMode.READ_WRITE, fileBytes, segmentBytes);
+            fileBytes += segmentBytes;
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not grow the spill file to " + (fileBytes + segmentBytes) + " bytes.", e);
+        }
+    }
+
+    private void openFile() {
+        MemoryBudget budget = lease.getBudget();
+        try {
+            Path path = budget.getDirectory() != null
+                ? Files.createTempFile(budget.getDirectory().toPath(), "sse-spill-", ".tmp")
+                : Files.createTempFile("sse-spill-", ".tmp");
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            budget.spillFileOpened();
+            logger.fine("Spilling to " + path + " after " + bytes + " bytes in memory.");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create a spill file.", e);
+        }
+    }
+
+    /** The number of strings. */
+    public int size() {
+        return size;
+    }
+
+    /** The size of the strings in the buffer, in bytes of UTF-8 and length prefixes. */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** The heap reserved for the pages, the rest of the strings are in the spill file. */
+    public long getHeapBytes() {
+        return lease.getReservedBytes();
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Reads the strings from the start. Strings added after the reader was created are not read.
+     */
+    public Reader reader() {
+        return new Reader();
+    }
+
+    /**
+     * Releases the memory of the buffer and deletes the spill file. Can be called more than once.
+     */
+    public void close() {
+        pages.clear();
+        page = null;
+        lease.close();
+        if(file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.fine("Could not close the spill file: " + e.getMessage());
+            }
+            file = null;
+            lease.getBudget().spillFileClosed();
+        }
+    }
+
+    public final class Reader {
+        private final List<ByteBuffer> views = new ArrayList<ByteBuffer>();
+        private final byte[] header = new byte[4];
+        private final int count = size;
+        private int pageIndex;
+        private int read;
+        private byte[] scratch = new byte[64];
+
+        private Reader() {
+            for(ByteBuffer written : pages) {
+                ByteBuffer view = written.duplicate();
+                view.flip();
+                views.add(view);
+            }
+        }
+
+        public boolean hasNext() {
+            return read < count;
+        }
+
+        public String next() {
+            readFully(header, 4);
+            int length = (header[0] & 0xff) << 24 | (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | (header[3] & 0xff);
+            if(scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            readFully(scratch, length);
+            read++;
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private void readFully(byte[] target, int length) {
+            int offset = 0;
+            while(offset < length) {
+                ByteBuffer view = views.get(pageIndex);
+                if(!view.hasRemaining()) {
+                    pageIndex++;
+                    continue;
+                }
+                int chunk = Math.min(view.remaining(), length - offset);
+                view.get(target, offset, chunk);
+                offset += chunk;
+            }
+        }
+    }
+}
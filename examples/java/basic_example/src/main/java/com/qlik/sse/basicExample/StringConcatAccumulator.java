@@ -0,0 +1,103 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.logging.Logger;
+
+/**
+ * Concatenates one string column. The result is capped at maxLength characters so that a
+ * large call can not grow the result without bound, the rest of the rows are dropped. The
+ * values are kept in a SpillBuffer until finish, so while the bundles of a call come in, a call
+ * that goes over its memory budget keeps them on disk instead of on the heap. The result is one
+ * string, which is built on the heap in finish.
+ */
+public class StringConcatAccumulator implements Accumulator<StringConcatAccumulator> {
+
+    private static final Logger logger = Logger.getLogger(StringConcatAccumulator.class.getName());
+
+    private final int column;
+    private final int maxLength;
+    private final MemoryBudget budget;
+    private SpillBuffer values;
+    private long length;
+    private boolean truncated;
+
+    public StringConcatAccumulator(int column, int maxLength, MemoryBudget budget) {
+        this.column = column;
+        this.maxLength = maxLength;
+        this.budget = budget;
+    }
+
+    @Override
+    public void init() {
+        release();
+        values = new SpillBuffer(budget.newLease());
+        length = 0;
+        truncated = false;
+    }
+
+    @Override
+    public void accumulate(ColumnBatch batch) {
+        if(truncated || batch.getColumnCount() <= column) {
+            return;
+        }
+        String[] strings = batch.getStrings(column);
+        for(int r = 0; r < batch.getRowCount() && !truncated; r++) {
+            append(strings[r]);
+        }
+    }
+
+    private void append(String value) {
+        long space = maxLength - length;
+        if(value.length() <= space) {
+            values.add(value);
+            length += value.length();
+        } else {
+            values.add(value.substring(0, (int) Math.max(0, space)));
+            length = maxLength;
+            truncated = true;
+            logger.warning("The aggregated string was truncated at " + maxLength + " characters.");
+        }
+    }
+
+    @Override
+    public void merge(StringConcatAccumulator other) {
+        if(other.values == null) {
+            return;
+        }
+        SpillBuffer.Reader reader = other.values.reader();
+        while(!truncated && reader.hasNext()) {
+            append(reader.next());
+        }
+        truncated |= other.truncated;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public boolean isSpilled() {
+        return values != null && values.isSpilled();
+    }
+
+    @Override
+    public void finish(ServerSideExtension.Dual.Builder result) {
+        StringBuilder builder = new StringBuilder((int) length);
+        if(values != null) {
+            SpillBuffer.Reader reader = values.reader();
+            while(reader.hasNext()) {
+                builder.append(reader.next());
+            }
+            release();
+        }
+        result.setStrData(builder.toString());
+    }
+
+    @Override
+    public void release() {
+        if(values != null) {
+            values.close();
+            values = null;
+        }
+    }
+}
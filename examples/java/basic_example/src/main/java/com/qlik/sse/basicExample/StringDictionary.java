@@ -0,0 +1,86 @@
+package com.qlik.sse.basicexample;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes UTF-8 strings through a dictionary keyed by their bytes, so that a value that repeats
+ * in the bundles of a call is only decoded once and all rows share the same String. The table is
+ * open addressed and holds at most maxSize strings, later values are decoded without it.
+ */
+public class StringDictionary {
+
+    private final int maxSize;
+    private byte[][] keys = new byte[16][];
+    private String[] values = new String[16];
+    private int size;
+
+    public StringDictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public String decode(byte[] source, int offset, int length) {
+        int hash = hash(source, offset, length);
+        int mask = keys.length - 1;
+        for(int i = hash & mask; ; i = (i + 1) & mask) {
+            byte[] key = keys[i];
+            if(key == null) {
+                String value = new String(source, offset, length, StandardCharsets.UTF_8);
+                if(size < maxSize) {
+                    keys[i] = Arrays.copyOfRange(source, offset, offset + length);
+                    values[i] = value;
+                    if(++size * 2 > keys.length) {
+                        grow();
+                    }
+                }
+                return value;
+            }
+            if(equals(key, source, offset, length)) {
+                return values[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        String[] oldValues = values;
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for(int j = 0; j < oldKeys.length; j++) {
+            byte[] key = oldKeys[j];
+            if(key != null) {
+                int i = hash(key, 0, key.length) & mask;
+                while(keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int hash(byte[] source, int offset, int length) {
+        int h = length;
+        for(int i = offset; i < offset + length; i++) {
+            h = 31 * h + source[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(byte[] key, byte[] source, int offset, int length) {
+        if(key.length != length) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            if(key[i] != source[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
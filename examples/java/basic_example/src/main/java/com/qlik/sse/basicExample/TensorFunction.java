@@ -0,0 +1,58 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.util.EnumSet;
+
+/**
+ * A function that returns one row for every row it receives. Implementations work on
+ * a whole ColumnBatch at a time and write one value per row to the ResultColumn.
+ */
+public abstract class TensorFunction extends PluginFunction {
+
+    protected TensorFunction(String name, ServerSideExtension.DataType returnType, EnumSet<Trait> traits) {
+        super(name, ServerSideExtension.FunctionType.TENSOR, returnType, withTrait(traits, Trait.VECTORIZABLE));
+    }
+
+    /**
+     * Copies the signature of another tensor function, with other traits, for functions that wrap it.
+     */
+    protected TensorFunction(TensorFunction function, EnumSet<Trait> traits) {
+        super(function, traits);
+    }
+
+    protected abstract void apply(ColumnBatch batch, ResultColumn result);
+
+    @Override
+    public FunctionCall newCall() {
+        return newCall(0);
+    }
+
+    @Override
+    public FunctionCall newCall(int expectedRows) {
+        final ColumnBatch batch = new ColumnBatch();
+        final ResultColumn result = new ResultColumn(getReturnType());
+        final BundleEncoder encoder = new BundleEncoder();
+        batch.ensureCapacity(expectedRows, getParams().size());
+        result.ensureCapacity(expectedRows);
+        
+        return new FunctionCall() {
+            @Override
+            public ServerSideExtension.BundledRows onBundle(ServerSideExtension.BundledRows bundledRows) {
+                batch.decode(bundledRows);
+                result.clear();
+                apply(batch, result);
+                return encoder.encode(result);
+            }
+            
+            @Override
+            public ServerSideExtension.BundledRows onCompleted() {
+                return null;
+            }
+            
+            @Override
+            public void cancel() {
+            }
+        };
+    }
+}
@@ -0,0 +1,179 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ConnectorGrpc;
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs synthetic calls through the service of the plugin before the server starts listening, so
+ * that the classes of the call path are loaded and the hot loops are JIT compiled before Qlik
+ * sends the first real call. The calls go through an in-process gRPC server with a
+ * PluginServerInterceptor without metrics, so the marshallers, the header handling and the
+ * functions all run, but the calls do not show in the call metrics. Every function in the
+ * capabilities is called with rows that fit its parameters, and a row and a batch script are
+ * evaluated when the plugin allows scripts.
+ */
+public class WarmUp {
+
+    private static final Logger logger = Logger.getLogger(WarmUp.class.getName());
+
+    private static final int BUNDLE_ROWS = 1000;
+    private static final long CALL_TIMEOUT_SECONDS = 60;
+    private static final String ROW_SCRIPT = "args[0].getNumData() + args[1].getStrData().length";
+    private static final String BATCH_SCRIPT = "'use batch'; for (var r = 0; r < rows; r++) { result[r] = num[0][r] + str[1][r].length; }";
+
+    private final int calls;
+    private final int rows;
+
+    /**
+     * Makes calls calls to every function and script, with rows rows each.
+     */
+    public WarmUp(int calls, int rows) {
+        this.calls = calls;
+        this.rows = Math.max(1, rows);
+    }
+
+    /**
+     * Runs the calls and returns the time it took in milliseconds. A call that fails is logged, and
+     * the warm-up goes on with the next one.
+     */
+    public long run(ServerServiceDefinition service) throws Exception {
+        long start = System.nanoTime();
+        String name = "sse-warmup-" + System.nanoTime();
+        Server server = InProcessServerBuilder.forName(name)
+            .addService(ServerInterceptors.intercept(service, new PluginServerInterceptor()))
+            .build()
+            .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+        try {
+            ServerSideExtension.Capabilities capabilities = ConnectorGrpc.newBlockingStub(channel)
+                .getCapabilities(ServerSideExtension.Empty.getDefaultInstance());
+            List<ServerSideExtension.Parameter> scriptParams = new ArrayList<ServerSideExtension.Parameter>();
+            scriptParams.add(param(ServerSideExtension.DataType.NUMERIC));
+            scriptParams.add(param(ServerSideExtension.DataType.STRING));
+            List<ServerSideExtension.BundledRows> scriptBundles = bundles(scriptParams);
+            List<List<ServerSideExtension.BundledRows>> functionBundles = new ArrayList<List<ServerSideExtension.BundledRows>>();
+            for(ServerSideExtension.FunctionDefinition function : capabilities.getFunctionsList()) {
+                functionBundles.add(bundles(function.getParamsList()));
+            }
+
+            for(int i = 0; i < calls; i++) {
+                for(int f = 0; f < capabilities.getFunctionsCount(); f++) {
+                    ServerSideExtension.FunctionDefinition function = capabilities.getFunctions(f);
+                    Metadata headers = new Metadata();
+                    headers.put(PluginServerInterceptor.FUNCTION_REQUEST_HEADER_KEY, ServerSideExtension.FunctionRequestHeader.newBuilder()
+                        .setFunctionId(function.getFunctionId())
+                        .build()
+                        .toByteArray());
+                    call(channel, headers, false, functionBundles.get(f), function.getName());
+                }
+                if(capabilities.getAllowScript()) {
+                    for(String script : new String[] {ROW_SCRIPT, BATCH_SCRIPT}) {
+                        Metadata headers = new Metadata();
+                        headers.put(PluginServerInterceptor.SCRIPT_REQUEST_HEADER_KEY, ServerSideExtension.ScriptRequestHeader.newBuilder()
+                            .setScript(script)
+                            .setFunctionType(ServerSideExtension.FunctionType.TENSOR)
+                            .setReturnType(ServerSideExtension.DataType.NUMERIC)
+                            .addAllParams(scriptParams)
+                            .build()
+                            .toByteArray());
+                        call(channel, headers, true, scriptBundles, "script");
+                    }
+                }
+            }
+        } finally {
+            channel.shutdownNow();
+            server.shutdownNow();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private void call(ManagedChannel channel, Metadata headers, boolean script, List<ServerSideExtension.BundledRows> bundles,
+        String name) throws InterruptedException {
+        ConnectorGrpc.ConnectorStub stub = MetadataUtils.attachHeaders(ConnectorGrpc.newStub(channel), headers);
+        Completion completion = new Completion();
+        StreamObserver<ServerSideExtension.BundledRows> requests = script ? stub.evaluateScript(completion) : stub.executeFunction(completion);
+        for(ServerSideExtension.BundledRows bundledRows : bundles) {
+            requests.onNext(bundledRows);
+        }
+        requests.onCompleted();
+        if(!completion.done.await(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            logger.warning("The warm-up call to " + name + " did not complete within " + CALL_TIMEOUT_SECONDS + " seconds.");
+        } else if(completion.error != null) {
+            logger.log(Level.FINE, "The warm-up call to " + name + " failed.", completion.error);
+        }
+    }
+
+    private static ServerSideExtension.Parameter param(ServerSideExtension.DataType dataType) {
+        return ServerSideExtension.Parameter.newBuilder()
+            .setDataType(dataType)
+            .build();
+    }
+
+    /**
+     * Rows with a hundred distinct values per column, as numbers, strings or both, depending on
+     * the type of the parameter.
+     */
+    private List<ServerSideExtension.BundledRows> bundles(List<ServerSideExtension.Parameter> params) {
+        List<ServerSideExtension.BundledRows> bundles = new ArrayList<ServerSideExtension.BundledRows>();
+        ServerSideExtension.BundledRows.Builder bundleBuilder = ServerSideExtension.BundledRows.newBuilder();
+        for(int r = 0; r < rows; r++) {
+            ServerSideExtension.Row.Builder rowBuilder = ServerSideExtension.Row.newBuilder();
+            for(ServerSideExtension.Parameter param : params) {
+                ServerSideExtension.Dual.Builder dualBuilder = ServerSideExtension.Dual.newBuilder();
+                if(param.getDataType() != ServerSideExtension.DataType.STRING) {
+                    dualBuilder.setNumData(r % 100);
+                }
+                if(param.getDataType() != ServerSideExtension.DataType.NUMERIC) {
+                    dualBuilder.setStrData("value" + (r % 100));
+                }
+                rowBuilder.addDuals(dualBuilder);
+            }
+            bundleBuilder.addRows(rowBuilder);
+            if(bundleBuilder.getRowsCount() == BUNDLE_ROWS) {
+                bundles.add(bundleBuilder.build());
+                bundleBuilder.clear();
+            }
+        }
+        if(bundleBuilder.getRowsCount() > 0) {
+            bundles.add(bundleBuilder.build());
+        }
+        return bundles;
+    }
+
+    private static final class Completion implements StreamObserver<ServerSideExtension.BundledRows> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable error;
+
+        @Override
+        public void onNext(ServerSideExtension.BundledRows bundledRows) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.qlik.sse.basicexample;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Submits calls of several apps and users to an AdmissionControl and checks the order in which
+ * waiting calls are admitted, the concurrency limits, the row rate of users and the rejections.
+ */
+public class AdmissionControlTest extends TestCase {
+
+    private ScheduledExecutorService executor;
+    private AdmissionControl admission;
+    private final BlockingQueue<String> admitted = new LinkedBlockingQueue<String>();
+    private final Map<String, AdmissionControl.Ticket> tickets = new HashMap<String, AdmissionControl.Ticket>();
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        admission = new AdmissionControl(executor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Submits a call and returns true if it was admitted right away. A call that waits is added to
+     * admitted when the admission control admits it.
+     */
+    private boolean submit(final String name, String appId, String userId, long cardinality) {
+        AdmissionControl.Ticket ticket = admission.newTicket(appId, userId, cardinality);
+        tickets.put(name, ticket);
+        return ticket.submit(new Runnable() {
+            @Override
+            public void run() {
+                admitted.add(name);
+            }
+        });
+    }
+
+    private String nextAdmitted() throws InterruptedException {
+        String name = admitted.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No call was admitted.", name);
+        return name;
+    }
+
+    private void assertNoneAdmitted() throws InterruptedException {
+        assertNull(admitted.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Admits the waiting calls one at a time, releasing each before the next can start.
+     */
+    private List<String> admitAll(String running, int count) throws InterruptedException {
+        List<String> order = new ArrayList<String>();
+        tickets.get(running).release();
+        for(int i = 0; i < count; i++) {
+            String name = nextAdmitted();
+            order.add(name);
+            tickets.get(name).release();
+        }
+        return order;
+    }
+
+    public void testCallsStartRightAwayWithoutLimits() throws Exception {
+        assertTrue(submit("a1", "A", "u1", 1000));
+        assertTrue(submit("a2", "A", "u1", 1000));
+        assertEquals(2, admission.getRunningCalls());
+        assertEquals(0, admission.getQueuedCalls());
+        tickets.get("a1").release();
+        tickets.get("a1").release();
+        assertEquals(1, admission.getRunningCalls());
+    }
+
+    public void testSmallCallIsNotStarvedByTheBacklogOfAnotherApp() throws Exception {
+        admission.setConcurrencyLimits(1, 0, 0);
+        assertTrue(submit("running", "C", "u0", 1));
+        assertFalse(submit("a1", "A", "u1", 100));
+        assertFalse(submit("a2", "A", "u1", 100));
+        assertFalse(submit("a3", "A", "u1", 100));
+        assertFalse(submit("b1", "B", "u2", 100));
+        assertEquals(4, admission.getQueuedCalls());
+        assertNoneAdmitted();
+
+        List<String> order = admitAll("running", 4);
+        assertTrue(order.toString(), order.indexOf("b1") < 2);
+        assertEquals(order.toString(), "a3", order.get(3));
+        assertTrue(order.toString(), order.indexOf("a1") < order.indexOf("a2"));
+    }
+
+    public void testAppWeights() throws Exception {
+        admission.setConcurrencyLimits(1, 0, 0);
+        admission.setAppWeight("A", 4);
+        assertTrue(submit("running", "C", "u0", 1));
+        assertFalse(submit("a1", "A", "u1", 100));
+        assertFalse(submit("a2", "A", "u1", 100));
+        assertFalse(submit("a3", "A", "u1", 100));
+        assertFalse(submit("b1", "B", "u2", 100));
+        assertFalse(submit("b2", "B", "u2", 100));
+
+        List<String> order = admitAll("running", 5);
+        assertEquals(order.toString(), "b2", order.get(4));
+        assertTrue(order.toString(), order.indexOf("a3") < order.indexOf("b2"));
+    }
+
+    public void testLimitPerApp() throws Exception {
+        admission.setConcurrencyLimits(0, 1, 0);
+        assertTrue(submit("a1", "A", "u1", 10));
+        assertFalse(submit("a2", "A", "u2", 10));
+        assertFalse(submit("b1", "B", "u1", 10));
+        assertEquals("b1", nextAdmitted());
+        assertNoneAdmitted();
+        assertEquals(2, admission.getRunningCalls());
+
+        tickets.get("a1").release();
+        assertEquals("a2", nextAdmitted());
+    }
+
+    public void testLimitPerUser() throws Exception {
+        admission.setConcurrencyLimits(0, 0, 1);
+        assertTrue(submit("a1", "A", "u1", 10));
+        assertFalse(submit("b1", "B", "u1", 10));
+        assertFalse(submit("b2", "B", "u2", 10));
+        assertEquals("b2", nextAdmitted());
+        assertNoneAdmitted();
+
+        tickets.get("a1").release();
+        assertEquals("b1", nextAdmitted());
+    }
+
+    public void testReleaseOfAWaitingCallRemovesIt() throws Exception {
+        admission.setConcurrencyLimits(1, 0, 0);
+        assertTrue(submit("running", "A", "u1", 10));
+        assertFalse(submit("a1", "A", "u1", 10));
+        assertFalse(submit("a2", "A", "u1", 10));
+        tickets.get("a1").release();
+        assertEquals(1, admission.getQueuedCalls());
+
+        tickets.get("running").release();
+        assertEquals("a2", nextAdmitted());
+        assertNoneAdmitted();
+    }
+
+    public void testRowRatePerUser() throws Exception {
+        admission.setMaxRowsPerSecondPerUser(1000);
+        assertTrue(submit("a1", "A", "u1", 1500));
+        long start = System.nanoTime();
+        assertFalse(submit("a2", "A", "u1", 10));
+        assertFalse(submit("b1", "B", "u2", 10));
+        assertEquals("b1", nextAdmitted());
+        assertNoneAdmitted();
+
+        assertEquals("a2", nextAdmitted());
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Admitted after " + waitedMillis + " ms.", waitedMillis >= 400);
+        assertTrue(tickets.get("a2").getWaitNanos() > 0);
+    }
+
+    public void testMaxCardinality() throws Exception {
+        admission.setMaxCardinality(1000);
+        assertTrue(submit("a1", "A", "u1", 1000));
+        try {
+            submit("a2", "A", "u1", 1001);
+            fail("The call over the cardinality limit was not rejected.");
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.RESOURCE_EXHAUSTED, e.getStatus().getCode());
+        }
+        assertEquals(1, admission.getRejectedCalls());
+    }
+
+    public void testMaxQueuedCalls() throws Exception {
+        admission.setConcurrencyLimits(1, 0, 0);
+        admission.setMaxQueuedCalls(1);
+        assertTrue(submit("a1", "A", "u1", 10));
+        assertFalse(submit("a2", "A", "u1", 10));
+        try {
+            submit("a3", "B", "u2", 10);
+            fail("The call over the queue limit was not rejected.");
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.RESOURCE_EXHAUSTED, e.getStatus().getCode());
+        }
+        assertEquals(1, admission.getRejectedCalls());
+        assertEquals(1, admission.getQueuedCalls());
+
+        tickets.get("a1").release();
+        assertEquals("a2", nextAdmitted());
+        assertNoneAdmitted();
+    }
+}
@@ -0,0 +1,98 @@
+package com.qlik.sse.basicexample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Reserves memory through leases and checks that the per-call and the global limit are kept,
+ * also when many calls reserve at the same time, and that closed leases give their memory back.
+ */
+public class MemoryBudgetTest extends TestCase {
+
+    public void testCallLimit() {
+        MemoryBudget budget = new MemoryBudget(0, 1000, null);
+        MemoryBudget.Lease lease = budget.newLease();
+        assertTrue(lease.tryReserve(600));
+        assertFalse(lease.tryReserve(500));
+        assertTrue(lease.tryReserve(400));
+        assertFalse(lease.tryReserve(1));
+        assertEquals(1000, lease.getReservedBytes());
+
+        MemoryBudget.Lease other = budget.newLease();
+        assertTrue(other.tryReserve(1000));
+        assertEquals(2000, budget.getUsedBytes());
+    }
+
+    public void testGlobalLimit() {
+        MemoryBudget budget = new MemoryBudget(1000, 0, null);
+        MemoryBudget.Lease first = budget.newLease();
+        MemoryBudget.Lease second = budget.newLease();
+        assertTrue(first.tryReserve(600));
+        assertFalse(second.tryReserve(500));
+        assertTrue(second.tryReserve(400));
+        assertEquals(1000, budget.getUsedBytes());
+        assertEquals(0, first.getReservedBytes() + second.getReservedBytes() - budget.getUsedBytes());
+
+        first.close();
+        assertEquals(400, budget.getUsedBytes());
+        assertTrue(second.tryReserve(500));
+        assertEquals(900, budget.getUsedBytes());
+    }
+
+    public void testClosedLeaseGivesItsMemoryBackOnce() {
+        MemoryBudget budget = new MemoryBudget(1000, 0, null);
+        MemoryBudget.Lease lease = budget.newLease();
+        assertTrue(lease.tryReserve(700));
+        lease.close();
+        lease.close();
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, lease.getReservedBytes());
+        assertFalse(lease.tryReserve(1));
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    public void testUnlimited() {
+        MemoryBudget budget = MemoryBudget.unlimited();
+        MemoryBudget.Lease lease = budget.newLease();
+        assertTrue(lease.tryReserve(Integer.MAX_VALUE));
+        assertTrue(lease.tryReserve(Integer.MAX_VALUE));
+        assertEquals(0, budget.getLimitBytes());
+        assertEquals(2L * Integer.MAX_VALUE, budget.getUsedBytes());
+        lease.close();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    public void testConcurrentReservationsStayWithinTheGlobalLimit() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100000, 0, null);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Long>> reserved = new ArrayList<Future<Long>>();
+            for(int i = 0; i < 8; i++) {
+                reserved.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        MemoryBudget.Lease lease = budget.newLease();
+                        while(lease.tryReserve(7)) {
+                        }
+                        return lease.getReservedBytes();
+                    }
+                }));
+            }
+            long total = 0;
+            for(Future<Long> bytes : reserved) {
+                total += bytes.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(total, budget.getUsedBytes());
+            assertTrue("Reserved " + total + " bytes.", total <= 100000 && total > 100000 - 7);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
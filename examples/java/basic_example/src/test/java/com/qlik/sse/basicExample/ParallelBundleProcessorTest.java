@@ -0,0 +1,256 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs a tensor function and an aggregation through a ParallelBundleProcessor and checks that
+ * the results come back in order, and that a call whose bundle can not be submitted to the
+ * worker pool, or whose aggregation fails in finish, ends with an error instead of hanging, and
+ * that the state of its calls is released.
+ */
+public class ParallelBundleProcessorTest extends TestCase {
+
+    private final AtomicInteger accumulators = new AtomicInteger();
+    private final AtomicInteger released = new AtomicInteger();
+
+    /**
+     * Returns the number of every row.
+     */
+    private static final class EchoFunction extends TensorFunction {
+        EchoFunction() {
+            super("Echo", ServerSideExtension.DataType.NUMERIC, EnumSet.of(PluginFunction.Trait.PARALLEL_SAFE));
+            addParam("value", ServerSideExtension.DataType.NUMERIC);
+        }
+
+        @Override
+        protected void apply(ColumnBatch batch, ResultColumn result) {
+            for(int r = 0; r < batch.getRowCount(); r++) {
+                result.add(batch.getNumeric(0, r));
+            }
+        }
+    }
+
+    /**
+     * Counts the rows of a call, and throws in finish if failInFinish is set.
+     */
+    private final class CountingAccumulator implements Accumulator<CountingAccumulator> {
+        private final boolean failInFinish;
+        private int rows;
+        private boolean isReleased;
+
+        CountingAccumulator(boolean failInFinish) {
+            this.failInFinish = failInFinish;
+            accumulators.incrementAndGet();
+        }
+
+        @Override
+        public void init() {
+            rows = 0;
+        }
+
+        @Override
+        public void accumulate(ColumnBatch batch) {
+            rows += batch.getRowCount();
+        }
+
+        @Override
+        public void merge(CountingAccumulator other) {
+            rows += other.rows;
+        }
+
+        @Override
+        public void finish(ServerSideExtension.Dual.Builder result) {
+            if(failInFinish) {
+                throw new IllegalStateException("finish failed");
+            }
+            result.setNumData(rows);
+        }
+
+        @Override
+        public void release() {
+            if(!isReleased) {
+                isReleased = true;
+                released.incrementAndGet();
+            }
+        }
+    }
+
+    private final class CountingFunction extends AggregationFunction<CountingAccumulator> {
+        private final boolean failInFinish;
+
+        CountingFunction(boolean failInFinish) {
+            super("Count", ServerSideExtension.DataType.NUMERIC, EnumSet.of(PluginFunction.Trait.PARALLEL_SAFE));
+            this.failInFinish = failInFinish;
+            addParam("value", ServerSideExtension.DataType.NUMERIC);
+        }
+
+        @Override
+        protected CountingAccumulator newAccumulator() {
+            return new CountingAccumulator(failInFinish);
+        }
+    }
+
+    /**
+     * A response stream that is always ready and records what is sent to it.
+     */
+    private static final class RecordingObserver extends ServerCallStreamObserver<ServerSideExtension.BundledRows> {
+        final List<ServerSideExtension.BundledRows> values = new ArrayList<ServerSideExtension.BundledRows>();
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+        }
+
+        @Override
+        public void setCompression(String compression) {
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+        }
+
+        @Override
+        public void request(int count) {
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+        }
+
+        @Override
+        public synchronized void onNext(ServerSideExtension.BundledRows value) {
+            values.add(value);
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            completed = true;
+        }
+    }
+
+    private static ServerSideExtension.BundledRows bundle(int first, int rows) {
+        ServerSideExtension.BundledRows.Builder bundle = ServerSideExtension.BundledRows.newBuilder();
+        for(int i = first; i < first + rows; i++) {
+            bundle.addRows(ServerSideExtension.Row.newBuilder()
+                .addDuals(ServerSideExtension.Dual.newBuilder().setNumData(i)));
+        }
+        return bundle.build();
+    }
+
+    public void testResultsKeepTheOrderOfTheBundles() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        RecordingObserver observer = new RecordingObserver();
+        ParallelBundleProcessor processor = new ParallelBundleProcessor(observer, pool, new EchoFunction(), 4);
+        for(int b = 0; b < 20; b++) {
+            processor.onNext(bundle(b * 10, 10));
+        }
+        processor.onCompleted();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        synchronized(observer) {
+            assertNull(observer.error);
+            assertTrue(observer.completed);
+            int row = 0;
+            for(ServerSideExtension.BundledRows result : observer.values) {
+                for(ServerSideExtension.Row r : result.getRowsList()) {
+                    assertEquals((double) row++, r.getDuals(0).getNumData());
+                }
+            }
+            assertEquals(200, row);
+        }
+    }
+
+    public void testCountOnTheWorkerPool() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        RecordingObserver observer = new RecordingObserver();
+        ParallelBundleProcessor processor = new ParallelBundleProcessor(observer, pool, new CountingFunction(false), 4);
+        for(int b = 0; b < 10; b++) {
+            processor.onNext(bundle(b * 10, 10));
+        }
+        processor.onCompleted();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        synchronized(observer) {
+            assertNull(observer.error);
+            assertTrue(observer.completed);
+            assertEquals(1, observer.values.size());
+            assertEquals(100.0, observer.values.get(0).getRows(0).getDuals(0).getNumData());
+        }
+        assertEquals(accumulators.get(), released.get());
+    }
+
+    public void testPoolThatIsShutDownFailsTheCall() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        RecordingObserver observer = new RecordingObserver();
+        ParallelBundleProcessor processor = new ParallelBundleProcessor(observer, pool, new EchoFunction(), 4);
+        processor.onNext(bundle(0, 10));
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        processor.onNext(bundle(10, 10));
+        processor.onNext(bundle(20, 10));
+        processor.onCompleted();
+
+        synchronized(observer) {
+            assertNotNull(observer.error);
+            assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(observer.error).getCode());
+            assertFalse(observer.completed);
+        }
+    }
+
+    public void testFinishThatThrowsFailsTheCall() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        RecordingObserver observer = new RecordingObserver();
+        ParallelBundleProcessor processor = new ParallelBundleProcessor(observer, pool, new CountingFunction(true), 4);
+        for(int b = 0; b < 10; b++) {
+            processor.onNext(bundle(b * 10, 10));
+        }
+        processor.onCompleted();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        synchronized(observer) {
+            assertNotNull(observer.error);
+            assertEquals(Status.Code.INTERNAL, Status.fromThrowable(observer.error).getCode());
+            assertFalse(observer.completed);
+            assertTrue(observer.values.isEmpty());
+        }
+        assertTrue(accumulators.get() > 0);
+        assertEquals(accumulators.get(), released.get());
+    }
+}
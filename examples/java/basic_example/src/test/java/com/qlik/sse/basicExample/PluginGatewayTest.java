@@ -0,0 +1,359 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ConnectorGrpc;
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs a PluginGateway in front of two in-process backends, B and A in that order, which both
+ * have Echo with id 0 and each have a function of its own with id 1. Checks the merged
+ * capabilities, that the ids stay the same when a backend comes up later, that calls are
+ * forwarded with the ids of the backends, that split calls return their rows in order, that
+ * the qlik-cache header of the backends is passed on and that calls go around a backend that is down.
+ */
+public class PluginGatewayTest extends TestCase {
+
+    private static final int ECHO = 0;
+    private static final int RESULT_BUNDLE_ROWS = 7;
+
+    private final List<Server> servers = new ArrayList<Server>();
+    private TestBackend backendA;
+    private TestBackend backendB;
+    private Server serverA;
+    private PluginGateway gateway;
+    private ManagedChannel channel;
+    private final AtomicReference<Metadata> responseHeaders = new AtomicReference<Metadata>();
+
+    @Override
+    protected void setUp() throws Exception {
+        String prefix = "gateway-test-" + System.nanoTime();
+        backendA = new TestBackend("A", "OnlyA");
+        backendB = new TestBackend("B", "OnlyB");
+        serverA = startServer(prefix + "-a", backendA);
+        startServer(prefix + "-b", backendB);
+        Map<String, ManagedChannel> channels = new LinkedHashMap<String, ManagedChannel>();
+        channels.put("B", InProcessChannelBuilder.forName(prefix + "-b").build());
+        channels.put("A", InProcessChannelBuilder.forName(prefix + "-a").build());
+        gateway = new PluginGateway(channels);
+        gateway.setHealthChecks(0, 1000, null);
+        startServer(prefix, gateway);
+        channel = InProcessChannelBuilder.forName(prefix).build();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        channel.shutdownNow();
+        gateway.close();
+        for(Server server : servers) {
+            server.shutdownNow();
+        }
+    }
+
+    private Server startServer(String name, ConnectorGrpc.ConnectorImplBase service) throws Exception {
+        Server server = InProcessServerBuilder.forName(name)
+            .addService(ServerInterceptors.intercept(service, new PluginServerInterceptor()))
+            .build()
+            .start();
+        servers.add(server);
+        return server;
+    }
+
+    public void testMergedCapabilities() throws Exception {
+        gateway.start();
+        Map<String, Integer> ids = functionIds();
+        assertEquals(3, ids.size());
+        assertEquals(Integer.valueOf(ECHO), ids.get("Echo"));
+        assertEquals(Integer.valueOf(1), ids.get("OnlyB"));
+        assertEquals(Integer.valueOf(2), ids.get("OnlyA"));
+        assertTrue(gateway.getBackends().get(0).isHealthy());
+        assertTrue(gateway.getBackends().get(1).isHealthy());
+    }
+
+    public void testIdsStayWhenABackendComesUpLater() throws Exception {
+        backendB.available = false;
+        gateway.start();
+        Map<String, Integer> ids = functionIds();
+        assertEquals(2, ids.size());
+        assertEquals(Integer.valueOf(1), ids.get("OnlyA"));
+        assertFalse(gateway.getBackends().get(0).isHealthy());
+
+        backendB.available = true;
+        gateway.checkBackends();
+        ids = functionIds();
+        assertEquals(3, ids.size());
+        assertEquals(Integer.valueOf(ECHO), ids.get("Echo"));
+        assertEquals(Integer.valueOf(1), ids.get("OnlyA"));
+        assertEquals(Integer.valueOf(2), ids.get("OnlyB"));
+        assertEquals(Collections.singletonList("A:OnlyA:r0"), call(1, 1, 1));
+        assertEquals(Collections.singletonList("B:OnlyB:r0"), call(2, 1, 1));
+    }
+
+    public void testForwardedCallsUseTheIdsOfTheBackends() throws Exception {
+        gateway.start();
+        assertEquals(rows("B:OnlyB:", 30), call(1, 30, 10));
+        assertEquals(rows("A:OnlyA:", 30), call(2, 30, 10));
+        List<String> echo = call(ECHO, 30, 10);
+        assertEquals(30, echo.size());
+        assertTrue(echo.get(0), echo.get(0).endsWith(":Echo:r0"));
+        assertEquals(3, gateway.getForwardedCalls());
+        assertEquals(0, gateway.getShardedCalls());
+        assertEquals(0, gateway.getBackends().get(0).getActiveCalls());
+        assertEquals(0, gateway.getBackends().get(1).getActiveCalls());
+    }
+
+    /**
+     * The backends answer in bundles of RESULT_BUNDLE_ROWS rows, across the bundles they were
+     * sent, so the gateway has to put the rows of both backends back in the order of the input.
+     */
+    public void testSplitCallReturnsTheRowsInOrder() throws Exception {
+        gateway.setSharding(100, Collections.<String>emptyList(), 4);
+        gateway.start();
+        List<String> result = call(ECHO, 1000, 20);
+        assertEquals(1000, result.size());
+        boolean sawA = false;
+        boolean sawB = false;
+        for(int i = 0; i < result.size(); i++) {
+            String row = result.get(i);
+            assertTrue(row, row.endsWith(":Echo:r" + i));
+            sawA |= row.startsWith("A:");
+            sawB |= row.startsWith("B:");
+        }
+        assertTrue(sawA && sawB);
+        assertEquals(1, gateway.getShardedCalls());
+    }
+
+    /**
+     * With bundles of one row, a backend keeps back more bundles than the gateway lets wait for
+     * their results, so the gateway has to go on reading for the backend that owes the next one.
+     */
+    public void testSplitCallWithMoreRowsKeptBackThanBundlesInFlight() throws Exception {
+        gateway.setSharding(100, Collections.<String>emptyList(), 2);
+        gateway.start();
+        List<String> result = call(ECHO, 300, 1);
+        assertEquals(300, result.size());
+        for(int i = 0; i < result.size(); i++) {
+            assertTrue(result.get(i), result.get(i).endsWith(":Echo:r" + i));
+        }
+        assertEquals(1, gateway.getShardedCalls());
+    }
+
+    public void testCacheHeaderOfTheBackendIsPassedOn() throws Exception {
+        gateway.start();
+        call(ECHO, 30, 10);
+        assertEquals("no-store", responseHeaders.get().get(PluginServerInterceptor.CACHE_KEY));
+        call(1, 30, 10);
+        assertNull(responseHeaders.get().get(PluginServerInterceptor.CACHE_KEY));
+
+        gateway.setSharding(100, Collections.<String>emptyList(), 4);
+        assertEquals(200, call(ECHO, 200, 20).size());
+        assertEquals(1, gateway.getShardedCalls());
+        assertEquals("no-store", responseHeaders.get().get(PluginServerInterceptor.CACHE_KEY));
+    }
+
+    public void testCallsGoAroundABackendThatIsDown() throws Exception {
+        gateway.setSharding(100, Collections.<String>emptyList(), 4);
+        gateway.start();
+        Map<String, Integer> ids = functionIds();
+        serverA.shutdownNow();
+        gateway.checkBackends();
+        assertFalse(gateway.getBackends().get(1).isHealthy());
+        assertTrue(gateway.getBackends().get(0).isHealthy());
+        assertEquals(ids, functionIds());
+
+        for(String row : call(ECHO, 1000, 20)) {
+            assertTrue(row, row.startsWith("B:"));
+        }
+        try {
+            call(ids.get("OnlyA"), 10, 10);
+            fail("A call to a function of a backend that is down did not fail.");
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+        }
+        assertEquals(0, gateway.getShardedCalls());
+    }
+
+    private Map<String, Integer> functionIds() {
+        ServerSideExtension.Capabilities capabilities = ConnectorGrpc.newBlockingStub(channel)
+            .getCapabilities(ServerSideExtension.Empty.getDefaultInstance());
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for(ServerSideExtension.FunctionDefinition function : capabilities.getFunctionsList()) {
+            ids.put(function.getName(), function.getFunctionId());
+        }
+        return ids;
+    }
+
+    private static List<String> rows(String prefix, int count) {
+        List<String> rows = new ArrayList<String>();
+        for(int i = 0; i < count; i++) {
+            rows.add(prefix + "r" + i);
+        }
+        return rows;
+    }
+
+    /**
+     * Calls a function of the gateway with rows r0 to r(count - 1), in bundles of bundleRows rows
+     * and with count as the cardinality, and returns the string of every result row.
+     */
+    private List<String> call(int functionId, int count, int bundleRows) throws Exception {
+        Metadata headers = new Metadata();
+        headers.put(PluginServerInterceptor.FUNCTION_REQUEST_HEADER_KEY, ServerSideExtension.FunctionRequestHeader.newBuilder()
+            .setFunctionId(functionId)
+            .build()
+            .toByteArray());
+        headers.put(PluginServerInterceptor.COMMON_REQUEST_HEADER_KEY, ServerSideExtension.CommonRequestHeader.newBuilder()
+            .setAppId("app")
+            .setUserId("user")
+            .setCardinality(count)
+            .build()
+            .toByteArray());
+        responseHeaders.set(null);
+        ConnectorGrpc.ConnectorStub stub = MetadataUtils.captureMetadata(MetadataUtils.attachHeaders(ConnectorGrpc.newStub(channel), headers), 
+            responseHeaders, new AtomicReference<Metadata>());
+
+        final List<String> result = new ArrayList<String>();
+        final Throwable[] error = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        StreamObserver<ServerSideExtension.BundledRows> requests = stub.executeFunction(new StreamObserver<ServerSideExtension.BundledRows>() {
+            @Override
+            public void onNext(ServerSideExtension.BundledRows bundledRows) {
+                synchronized(result) {
+                    for(ServerSideExtension.Row row : bundledRows.getRowsList()) {
+                        result.add(row.getDuals(0).getStrData());
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                error[0] = t;
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        });
+        ServerSideExtension.BundledRows.Builder bundle = ServerSideExtension.BundledRows.newBuilder();
+        for(int i = 0; i < count; i++) {
+            bundle.addRows(ServerSideExtension.Row.newBuilder()
+                .addDuals(ServerSideExtension.Dual.newBuilder().setStrData("r" + i)));
+            if(bundle.getRowsCount() == bundleRows || i == count - 1) {
+                requests.onNext(bundle.build());
+                bundle = ServerSideExtension.BundledRows.newBuilder();
+            }
+        }
+        requests.onCompleted();
+
+        assertTrue("The call timed out.", done.await(30, TimeUnit.SECONDS));
+        if(error[0] != null) {
+            throw Status.fromThrowable(error[0]).asRuntimeException();
+        }
+        synchronized(result) {
+            return new ArrayList<String>(result);
+        }
+    }
+
+    /**
+     * A backend with Echo, id 0, and one function of its own, id 1. Both answer every row with
+     * the name of the backend and the function in front of its string, in bundles of
+     * RESULT_BUNDLE_ROWS rows, and Echo with the header qlik-cache: no-store. A backend that is
+     * not available fails GetCapabilities.
+     */
+    private static final class TestBackend extends ConnectorGrpc.ConnectorImplBase {
+        private final String name;
+        private final ServerSideExtension.Capabilities capabilities;
+        private volatile boolean available = true;
+
+        TestBackend(String name, String function) {
+            this.name = name;
+            this.capabilities = ServerSideExtension.Capabilities.newBuilder()
+                .setAllowScript(false)
+                .setPluginIdentifier("Backend " + name)
+                .setPluginVersion("v1.0.0")
+                .addFunctions(definition("Echo", ECHO))
+                .addFunctions(definition(function, 1))
+                .build();
+        }
+
+        private static ServerSideExtension.FunctionDefinition definition(String name, int id) {
+            return ServerSideExtension.FunctionDefinition.newBuilder()
+                .setName(name)
+                .setFunctionId(id)
+                .setFunctionType(ServerSideExtension.FunctionType.SCALAR)
+                .setReturnType(ServerSideExtension.DataType.STRING)
+                .addParams(ServerSideExtension.Parameter.newBuilder()
+                    .setName("value")
+                    .setDataType(ServerSideExtension.DataType.STRING))
+                .build();
+        }
+
+        @Override
+        public void getCapabilities(ServerSideExtension.Empty request, StreamObserver<ServerSideExtension.Capabilities> responseObserver) {
+            if(!available) {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Backend " + name + " is not available.").asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(capabilities);
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<ServerSideExtension.BundledRows> executeFunction(final StreamObserver<ServerSideExtension.BundledRows> responseObserver) {
+            int functionId = PluginServerInterceptor.FUNCTION_REQUEST_HEADER.get().getFunctionId();
+            final String prefix = name + ":" + capabilities.getFunctions(functionId).getName() + ":";
+            if(functionId == ECHO) {
+                PluginServerInterceptor.setCacheHeader(PluginServerInterceptor.RESPONSE_HEADERS.get(), "no-store");
+            }
+            return new StreamObserver<ServerSideExtension.BundledRows>() {
+                private ServerSideExtension.BundledRows.Builder result = ServerSideExtension.BundledRows.newBuilder();
+
+                @Override
+                public void onNext(ServerSideExtension.BundledRows bundledRows) {
+                    for(ServerSideExtension.Row row : bundledRows.getRowsList()) {
+                        result.addRows(ServerSideExtension.Row.newBuilder()
+                            .addDuals(ServerSideExtension.Dual.newBuilder().setStrData(prefix + row.getDuals(0).getStrData())));
+                        if(result.getRowsCount() == RESULT_BUNDLE_ROWS) {
+                            responseObserver.onNext(result.build());
+                            result = ServerSideExtension.BundledRows.newBuilder();
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    if(result.getRowsCount() > 0) {
+                        responseObserver.onNext(result.build());
+                    }
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+}
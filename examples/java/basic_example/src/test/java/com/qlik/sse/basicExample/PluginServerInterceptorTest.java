@@ -0,0 +1,194 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ConnectorGrpc;
+import qlik.sse.ServerSideExtension;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs many concurrent ExecuteFunction calls with different function ids against a server
+ * with a multi-threaded executor, and checks that every call was executed by the function
+ * in its own request header. Also checks that only calls of NO_STORE functions tell Qlik not to
+ * cache their results.
+ */
+public class PluginServerInterceptorTest extends TestCase {
+
+    private static final int CALLS = 2000;
+    private static final int CLIENT_THREADS = 64;
+
+    private ForkJoinPool workerExecutor;
+    private ExecutorService serverExecutor;
+    private ExecutorService clientExecutor;
+    private Server server;
+    private ManagedChannel channel;
+
+    @Override
+    protected void setUp() throws Exception {
+        String name = "interceptor-test-" + System.nanoTime();
+        JavaPlugin plugin = new JavaPlugin();
+        workerExecutor = new ForkJoinPool(4);
+        plugin.setWorkerExecutor(workerExecutor, 8);
+        serverExecutor = Executors.newFixedThreadPool(16);
+        clientExecutor = Executors.newFixedThreadPool(CLIENT_THREADS);
+        server = InProcessServerBuilder.forName(name)
+            .executor(serverExecutor)
+            .addService(ServerInterceptors.intercept(plugin, new PluginServerInterceptor()))
+            .build()
+            .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        channel.shutdownNow();
+        server.shutdownNow();
+        clientExecutor.shutdownNow();
+        serverExecutor.shutdownNow();
+        workerExecutor.shutdownNow();
+    }
+
+    public void testEachCallSeesItsOwnFunctionHeader() throws Exception {
+        List<Future<String>> failures = new ArrayList<Future<String>>();
+        for(int i = 0; i < CALLS; i++) {
+            final int call = i;
+            failures.add(clientExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return runCall(call);
+                }
+            }));
+        }
+        for(Future<String> failure : failures) {
+            String message = failure.get(60, TimeUnit.SECONDS);
+            assertNull(message, message);
+        }
+    }
+
+    public void testOnlyNoStoreFunctionsAreAnsweredWithNoStore() throws Exception {
+        assertEquals("no-store", cacheHeader(BasicFunctions.NO_CACHE));
+        assertNull(cacheHeader(BasicFunctions.CACHE));
+        assertNull(cacheHeader(BasicFunctions.HELLO_WORLD));
+    }
+
+    /**
+     * Calls the function with one string row and returns the qlik-cache response header.
+     */
+    private String cacheHeader(int functionId) throws Exception {
+        Metadata headers = new Metadata();
+        headers.put(PluginServerInterceptor.FUNCTION_REQUEST_HEADER_KEY, ServerSideExtension.FunctionRequestHeader.newBuilder()
+            .setFunctionId(functionId)
+            .build()
+            .toByteArray());
+        AtomicReference<Metadata> responseHeaders = new AtomicReference<Metadata>();
+        ConnectorGrpc.ConnectorStub stub = MetadataUtils.captureMetadata(MetadataUtils.attachHeaders(ConnectorGrpc.newStub(channel), headers), 
+            responseHeaders, new AtomicReference<Metadata>());
+        final CountDownLatch done = new CountDownLatch(1);
+        StreamObserver<ServerSideExtension.BundledRows> requests = stub.executeFunction(new StreamObserver<ServerSideExtension.BundledRows>() {
+            @Override
+            public void onNext(ServerSideExtension.BundledRows bundledRows) {
+            }
+            
+            @Override
+            public void onError(Throwable t) {
+                done.countDown();
+            }
+            
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        });
+        requests.onNext(ServerSideExtension.BundledRows.newBuilder()
+            .addRows(ServerSideExtension.Row.newBuilder()
+                .addDuals(ServerSideExtension.Dual.newBuilder().setStrData("value")))
+            .build());
+        requests.onCompleted();
+        assertTrue("The call timed out.", done.await(30, TimeUnit.SECONDS));
+        assertNotNull(responseHeaders.get());
+        return responseHeaders.get().get(PluginServerInterceptor.CACHE_KEY);
+    }
+
+    /**
+     * Even calls run HelloWorld, which echoes the row, and odd calls run SumOfRows, which
+     * returns the sum of the row. Returns null if the call got the expected result.
+     */
+    private String runCall(int call) throws Exception {
+        int functionId = call % 2 == 0 ? BasicFunctions.HELLO_WORLD : BasicFunctions.SUM_OF_ROWS;
+        Metadata headers = new Metadata();
+        headers.put(PluginServerInterceptor.FUNCTION_REQUEST_HEADER_KEY, ServerSideExtension.FunctionRequestHeader.newBuilder()
+            .setFunctionId(functionId)
+            .build()
+            .toByteArray());
+        ConnectorGrpc.ConnectorStub stub = MetadataUtils.attachHeaders(ConnectorGrpc.newStub(channel), headers);
+        
+        final List<ServerSideExtension.BundledRows> responses = new ArrayList<ServerSideExtension.BundledRows>();
+        final Throwable[] error = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        StreamObserver<ServerSideExtension.BundledRows> requests = stub.executeFunction(new StreamObserver<ServerSideExtension.BundledRows>() {
+            @Override
+            public void onNext(ServerSideExtension.BundledRows bundledRows) {
+                synchronized(responses) {
+                    responses.add(bundledRows);
+                }
+            }
+            
+            @Override
+            public void onError(Throwable t) {
+                error[0] = t;
+                done.countDown();
+            }
+            
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        });
+        requests.onNext(ServerSideExtension.BundledRows.newBuilder()
+            .addRows(ServerSideExtension.Row.newBuilder()
+                .addDuals(ServerSideExtension.Dual.newBuilder().setNumData(call).setStrData("call " + call))
+                .addDuals(ServerSideExtension.Dual.newBuilder().setNumData(call)))
+            .build());
+        requests.onCompleted();
+        
+        if(!done.await(30, TimeUnit.SECONDS)) {
+            return "Call " + call + " timed out.";
+        }
+        if(error[0] != null) {
+            return "Call " + call + " failed: " + error[0];
+        }
+        synchronized(responses) {
+            if(responses.size() != 1 || responses.get(0).getRowsCount() != 1) {
+                return "Call " + call + " got " + responses.size() + " responses.";
+            }
+            ServerSideExtension.Row row = responses.get(0).getRows(0);
+            if(functionId == BasicFunctions.HELLO_WORLD) {
+                if(row.getDualsCount() != 2 || !row.getDuals(0).getStrData().equals("call " + call)) {
+                    return "Call " + call + " to HelloWorld got " + row + ".";
+                }
+            } else if(row.getDualsCount() != 1 || row.getDuals(0).getNumData() != 2.0 * call) {
+                return "Call " + call + " to SumOfRows got " + row + ".";
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,159 @@
+package com.qlik.sse.basicexample;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Writes strings of many lengths to SpillBuffers, so that they cross the boundaries of the
+ * heap pages and of the mapped segments, and checks that they are read back in order, that the
+ * memory of a buffer is reserved from and given back to its budget and that the spill file is
+ * gone when the buffer is closed. On Linux the file is already unlinked while it is open.
+ */
+public class SpillBufferTest extends TestCase {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("spill-buffer-test").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Strings of 0 to about 3000 characters, some of them outside ASCII, so that their length
+     * prefixes and their bytes are split over pages.
+     */
+    private static List<String> values(int count) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            builder.setLength(0);
+            int length = (i * 7919) % 3001;
+            for(int c = 0; c < length; c++) {
+                builder.append(c % 11 == 0 ? '\u00e9' : c % 13 == 0 ? '\u20ac' : (char) ('a' + (i + c) % 26));
+            }
+            values.add(builder.toString());
+        }
+        return values;
+    }
+
+    private static List<String> readAll(SpillBuffer buffer) {
+        List<String> read = new ArrayList<String>();
+        SpillBuffer.Reader reader = buffer.reader();
+        while(reader.hasNext()) {
+            read.add(reader.next());
+        }
+        return read;
+    }
+
+    public void testStringsAcrossPageBoundaries() {
+        MemoryBudget budget = MemoryBudget.unlimited();
+        SpillBuffer buffer = new SpillBuffer(budget.newLease());
+        List<String> values = values(2000);
+        for(String value : values) {
+            buffer.add(value);
+        }
+        assertFalse(buffer.isSpilled());
+        assertEquals(values.size(), buffer.size());
+        assertTrue(buffer.getHeapBytes() >= buffer.getBytes());
+        assertEquals(buffer.getHeapBytes(), budget.getUsedBytes());
+        assertEquals(values, readAll(buffer));
+        assertEquals(values, readAll(buffer));
+
+        buffer.close();
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, budget.getSpilledCalls());
+    }
+
+    public void testStringLongerThanAPage() {
+        SpillBuffer buffer = new SpillBuffer(MemoryBudget.unlimited().newLease());
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < 3 * 1024 * 1024; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        buffer.add("first");
+        buffer.add(builder.toString());
+        buffer.add("last");
+        SpillBuffer.Reader reader = buffer.reader();
+        assertEquals("first", reader.next());
+        assertEquals(builder.toString(), reader.next());
+        assertEquals("last", reader.next());
+        assertFalse(reader.hasNext());
+        buffer.close();
+    }
+
+    public void testReaderOnlyReadsWhatWasAddedBeforeIt() {
+        SpillBuffer buffer = new SpillBuffer(MemoryBudget.unlimited().newLease());
+        buffer.add("a");
+        buffer.add("b");
+        SpillBuffer.Reader reader = buffer.reader();
+        buffer.add("c");
+        assertEquals("a", reader.next());
+        assertEquals("b", reader.next());
+        assertFalse(reader.hasNext());
+        buffer.close();
+    }
+
+    public void testSpillsToMappedSegmentsOverTheCallLimit() {
+        MemoryBudget budget = new MemoryBudget(0, 16 * 1024, directory);
+        SpillBuffer buffer = new SpillBuffer(budget.newLease(), SEGMENT_BYTES);
+        List<String> values = values(300);
+        for(String value : values) {
+            buffer.add(value);
+        }
+        assertTrue(buffer.isSpilled());
+        assertTrue(buffer.getHeapBytes() <= 16 * 1024);
+        assertEquals(buffer.getHeapBytes(), budget.getUsedBytes());
+        assertTrue(budget.getSpilledBytes() > 0 && budget.getSpilledBytes() <= buffer.getBytes());
+        assertEquals(1, budget.getSpilledCalls());
+        assertEquals(1, budget.getSpillFiles());
+        assertEquals(values, readAll(buffer));
+
+        buffer.close();
+        buffer.close();
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, budget.getSpillFiles());
+        assertEquals(1, budget.getSpilledCalls());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    public void testSpillsOverTheGlobalLimit() {
+        MemoryBudget budget = new MemoryBudget(8 * 1024, 0, directory);
+        SpillBuffer first = new SpillBuffer(budget.newLease(), SEGMENT_BYTES);
+        SpillBuffer second = new SpillBuffer(budget.newLease(), SEGMENT_BYTES);
+        List<String> values = values(50);
+        for(String value : values) {
+            first.add(value);
+            second.add(value);
+        }
+        assertTrue(first.isSpilled() && second.isSpilled());
+        assertTrue(budget.getUsedBytes() <= 8 * 1024);
+        assertEquals(2, budget.getSpilledCalls());
+        assertEquals(2, budget.getSpillFiles());
+        assertEquals(values, readAll(first));
+        assertEquals(values, readAll(second));
+
+        first.close();
+        assertEquals(1, budget.getSpillFiles());
+        assertEquals(second.getHeapBytes(), budget.getUsedBytes());
+        second.close();
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, budget.getSpillFiles());
+    }
+}
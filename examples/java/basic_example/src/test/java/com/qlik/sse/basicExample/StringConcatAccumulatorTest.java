@@ -0,0 +1,104 @@
+package com.qlik.sse.basicexample;
+
+import qlik.sse.ServerSideExtension;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+/**
+ * Concatenates strings of calls that stay on the heap and of calls that spill, and checks the
+ * order of merged partials, the cap on the result and that the memory and files are released.
+ */
+public class StringConcatAccumulatorTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("string-concat-test").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        directory.delete();
+    }
+
+    /**
+     * A bundle with the values "v" + i + "," for i from first to first + rows - 1.
+     */
+    private static ColumnBatch bundle(int first, int rows) {
+        ServerSideExtension.BundledRows.Builder bundle = ServerSideExtension.BundledRows.newBuilder();
+        for(int i = first; i < first + rows; i++) {
+            bundle.addRows(ServerSideExtension.Row.newBuilder()
+                .addDuals(ServerSideExtension.Dual.newBuilder().setStrData("v" + i + ",")));
+        }
+        return new ColumnBatch().decode(bundle.build());
+    }
+
+    private static String expected(int first, int rows) {
+        StringBuilder expected = new StringBuilder();
+        for(int i = first; i < first + rows; i++) {
+            expected.append("v").append(i).append(",");
+        }
+        return expected.toString();
+    }
+
+    private static String finish(StringConcatAccumulator accumulator) {
+        ServerSideExtension.Dual.Builder result = ServerSideExtension.Dual.newBuilder();
+        accumulator.finish(result);
+        accumulator.release();
+        return result.getStrData();
+    }
+
+    public void testConcatOnTheHeap() {
+        MemoryBudget budget = MemoryBudget.unlimited();
+        StringConcatAccumulator accumulator = new StringConcatAccumulator(0, 1000000, budget);
+        accumulator.init();
+        for(int b = 0; b < 10; b++) {
+            accumulator.accumulate(bundle(b * 100, 100));
+        }
+        assertFalse(accumulator.isSpilled());
+        assertEquals(expected(0, 1000), finish(accumulator));
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    public void testConcatOfASpilledCall() {
+        MemoryBudget budget = new MemoryBudget(0, 8 * 1024, directory);
+        StringConcatAccumulator accumulator = new StringConcatAccumulator(0, 10000000, budget);
+        accumulator.init();
+        for(int b = 0; b < 100; b++) {
+            accumulator.accumulate(bundle(b * 1000, 1000));
+        }
+        assertTrue(accumulator.isSpilled());
+        assertEquals(1, budget.getSpillFiles());
+        assertEquals(expected(0, 100000), finish(accumulator));
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, budget.getSpillFiles());
+        assertEquals(1, budget.getSpilledCalls());
+    }
+
+    public void testMergedPartialsKeepTheirOrder() {
+        MemoryBudget budget = new MemoryBudget(0, 4 * 1024, directory);
+        StringConcatAccumulator first = new StringConcatAccumulator(0, 10000000, budget);
+        StringConcatAccumulator second = new StringConcatAccumulator(0, 10000000, budget);
+        first.init();
+        second.init();
+        first.accumulate(bundle(0, 5000));
+        second.accumulate(bundle(5000, 5000));
+        first.merge(second);
+        second.release();
+        assertEquals(expected(0, 10000), finish(first));
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, budget.getSpillFiles());
+    }
+
+    public void testResultIsCappedAtMaxLength() {
+        StringConcatAccumulator accumulator = new StringConcatAccumulator(0, 100, MemoryBudget.unlimited());
+        accumulator.init();
+        accumulator.accumulate(bundle(1000, 100));
+        assertTrue(accumulator.isTruncated());
+        assertEquals(expected(1000, 100).substring(0, 100), finish(accumulator));
+    }
+}